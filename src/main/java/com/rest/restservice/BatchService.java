@@ -0,0 +1,230 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Built-in batch service. Executes many sub-requests against registered services in one HTTP round trip.<br>
+ * Request body (POST), JSON array or object with "requests" array:<br>
+ * [{"method":"GET","path":"/service","query":"id=1"}, {"method":"POST","path":"/other","body":"..."}]<br>
+ * Every sub-request is dispatched in-process through RestServiceHelper.handle (getParams, verifyURL, servicehandle),
+ * authentication of the batch request applies to all sub-requests.<br>
+ * Query parameters: format=json (default, JSON array of results) or format=mixed (multipart/mixed), parallel=true to run
+ * sub-requests on the executor.
+ */
+public class BatchService extends RestHelper.RestServiceHelper {
+
+    private static final String FORMAT = "format";
+    private static final String PARALLEL = "parallel";
+    private static final String MIXED = "mixed";
+    private static final String CRLF = "\r\n";
+
+    private final int maxRequests;
+    private final long maxBytes;
+    private final Optional<Executor> executor;
+
+    /**
+     * @param url         service URL
+     * @param maxRequests maximum number of sub-requests in one batch
+     * @param maxBytes    maximum size of batch request body and maximum size of all sub-responses together
+     * @param executor    Optional, executor for parallel execution. If empty sub-requests are executed sequentially.
+     */
+    public BatchService(String url, int maxRequests, long maxBytes, Optional<Executor> executor) {
+        super(url);
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    private static class SubRequest {
+        final String method;
+        final String path;
+        final Optional<String> query;
+        final byte[] body;
+        final Headers headers = new Headers();
+
+        SubRequest(Map<?, ?> m) throws IOException {
+            if (!(m.get("path") instanceof String)) throw new IOException("Sub-request path expected");
+            this.method = m.get("method") instanceof String ? ((String) m.get("method")).toUpperCase() : RestHelper.GET;
+            this.path = (String) m.get("path");
+            this.query = m.get("query") instanceof String ? Optional.of((String) m.get("query")) : Optional.empty();
+            this.body = m.get("body") instanceof String ? ((String) m.get("body")).getBytes(StandardCharsets.UTF_8) : new byte[0];
+            if (m.get("headers") instanceof Map)
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) m.get("headers")).entrySet())
+                    headers.add(e.getKey().toString(), String.valueOf(e.getValue()));
+        }
+    }
+
+    private static class Result {
+        final int status;
+        final String contentType;
+        final byte[] body;
+
+        Result(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        static Result error(int status, String message) {
+            return new Result(status, "text/plain", message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public RestParams getParams(HttpExchange httpExchange) throws IOException {
+        String query = httpExchange.getRequestURI().getQuery();
+        boolean mixed = query != null && query.contains(FORMAT + "=" + MIXED);
+        RestParams par = new RestParams(RestHelper.POST, Optional.of(mixed ? RestParams.CONTENT.MIXED : RestParams.CONTENT.JSON), false, new ArrayList<String>());
+        par.addParam(FORMAT, PARAMTYPE.STRING, new ParamValue("json"));
+        par.addParam(PARALLEL, PARAMTYPE.BOOLEAN, new ParamValue(false));
+        return par;
+    }
+
+    private byte[] readLimited(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            if (out.size() > maxBytes) return null;
+        }
+        return out.toByteArray();
+    }
+
+    private Result execute(SubRequest r, HttpExchange parent) {
+        Optional<RestHelper.RestServiceHelper> service = RestHelper.findService(r.path);
+        if (service.isEmpty()) return Result.error(RestHelper.HTTPNOTFOUND, "No service for " + r.path);
+        // resolved the same way as the server does, also works for batch service registered at the root
+        if (service.get() instanceof BatchService) return Result.error(RestHelper.HTTPBADREQUEST, "Nested batch request not allowed");
+        URI uri;
+        try {
+            uri = new URI(null, null, r.path, null);
+            if (r.query.isPresent()) uri = new URI(uri.getRawPath() + "?" + r.query.get());
+        } catch (URISyntaxException e) {
+            return Result.error(RestHelper.HTTPBADREQUEST, "Invalid sub-request URI: " + e.getMessage());
+        }
+        MemoryHttpExchange ex = new MemoryHttpExchange(r.method, uri, r.headers, r.body, parent);
+        try {
+            service.get().handle(ex);
+        } catch (IOException e) {
+            // response already produced, handle reports secondary failure
+            if (ex.getResponseCode() == -1) return Result.error(RestHelper.HTTPINTERNALERROR, e.getMessage());
+        }
+        return new Result(ex.getResponseCode(), ex.getResponseHeaders().getFirst("Content-Type"), ex.getResponseBytes());
+    }
+
+    /**
+     * Executes the sub-request unless the sub-responses already buffered exceed the total size limit
+     *
+     * @param total running size of the sub-responses of the batch
+     */
+    private Result executeLimited(SubRequest r, HttpExchange parent, AtomicLong total) {
+        if (total.get() > maxBytes) return Result.error(RestHelper.HTTPPAYLOADTOOLARGE, "Batch response size limit exceeded");
+        Result res = execute(r, parent);
+        if (total.addAndGet(res.body.length) > maxBytes) return Result.error(RestHelper.HTTPPAYLOADTOOLARGE, "Batch response size limit exceeded");
+        return res;
+    }
+
+    private static boolean isText(String contentType) {
+        return contentType == null || contentType.startsWith("text/") || contentType.contains("json") || contentType.contains("xml") || contentType.contains("javascript");
+    }
+
+    private static byte[] toJson(List<Result> results) {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            if (i > 0) b.append(',');
+            b.append("{\"status\":").append(r.status);
+            if (r.contentType != null) b.append(",\"contentType\":").append(Json.quote(r.contentType));
+            if (isText(r.contentType)) b.append(",\"body\":").append(Json.quote(new String(r.body, StandardCharsets.UTF_8)));
+            else b.append(",\"encoding\":\"base64\",\"body\":\"").append(Base64.getEncoder().encodeToString(r.body)).append('"');
+            b.append('}');
+        }
+        return b.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] toMixed(List<Result> results) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Result r : results) {
+            StringBuilder h = new StringBuilder();
+            h.append(RestHelper.BOUNDARYSEP).append(CRLF).append("Content-Type: application/http").append(CRLF).append(CRLF);
+            h.append("HTTP/1.1 ").append(r.status).append(CRLF);
+            if (r.contentType != null) h.append("Content-Type: ").append(r.contentType).append(CRLF);
+            h.append("Content-Length: ").append(r.body.length).append(CRLF).append(CRLF);
+            out.write(h.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(r.body);
+            out.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.write((RestHelper.BOUNDARYCLOSING + CRLF).getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    @Override
+    public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+        byte[] body = readLimited(v.getT().getRequestBody());
+        if (body == null) {
+            produceResponse(v, Optional.of("Batch request larger than " + maxBytes + " bytes"), RestHelper.HTTPPAYLOADTOOLARGE);
+            return;
+        }
+        Object o = Json.parse(new String(body, StandardCharsets.UTF_8));
+        if (o instanceof Map) o = ((Map<?, ?>) o).get("requests");
+        if (!(o instanceof List)) {
+            produceResponse(v, Optional.of("JSON array of sub-requests expected"), RestHelper.HTTPBADREQUEST);
+            return;
+        }
+        List<?> list = (List<?>) o;
+        if (list.size() > maxRequests) {
+            produceResponse(v, Optional.of("Batch contains " + list.size() + " requests, maximum is " + maxRequests), RestHelper.HTTPPAYLOADTOOLARGE);
+            return;
+        }
+        List<SubRequest> reqs = new ArrayList<SubRequest>();
+        for (Object e : list) {
+            if (!(e instanceof Map)) {
+                produceResponse(v, Optional.of("Sub-request object expected"), RestHelper.HTTPBADREQUEST);
+                return;
+            }
+            reqs.add(new SubRequest((Map<?, ?>) e));
+        }
+        final HttpExchange parent = v.getT();
+        List<Result> results = new ArrayList<Result>();
+        // total size limit, once exceeded the remaining sub-requests are not dispatched and get error
+        final AtomicLong total = new AtomicLong();
+        if (getLogParam(v, PARALLEL) && executor.isPresent()) {
+            List<CompletableFuture<Result>> futures = new ArrayList<CompletableFuture<Result>>();
+            for (SubRequest r : reqs) futures.add(CompletableFuture.supplyAsync(() -> executeLimited(r, parent, total), executor.get()));
+            for (CompletableFuture<Result> f : futures) results.add(f.join());
+        } else
+            for (SubRequest r : reqs) results.add(executeLimited(r, parent, total));
+        byte[] resp = MIXED.equals(getStringParam(v, FORMAT)) ? toMixed(results) : toJson(results);
+        produceByteResponse(v, Optional.of(resp), RestHelper.HTTPOK, Optional.empty());
+    }
+}
@@ -0,0 +1,306 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Execution profile of registered service (ServiceOptions.setBulkhead).<br>
+ * INLINE : the request is handled by the server executor thread (default).<br>
+ * Dedicated : the service has its own bounded pool, a slow service exhausts only its own threads.<br>
+ * Shared : several services share one bounded pool, queued requests of higher priority are taken first.<br>
+ * The exchange is handed over to the bulkhead before tracing, authentication and the service handler, the server executor
+ * thread returns at once. If the bulkhead queue is full the request is rejected with 503 and Retry-After.
+ */
+public class Bulkhead {
+
+    private static final byte[] OVERLOADEDBODY = "Service overloaded".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Bounded thread pool running bulkhead tasks, queued tasks are ordered by priority and then by arrival
+     */
+    public static class Pool {
+        private final int queueSize;
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong sequence = new AtomicLong();
+
+        /**
+         * @param name      Thread name prefix
+         * @param threads   Number of threads
+         * @param queueSize Maximum number of requests waiting for a thread
+         */
+        public Pool(String name, int threads, int queueSize) {
+            this.queueSize = queueSize;
+            final AtomicInteger no = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), r -> {
+                Thread th = new Thread(r, name + "-" + no.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            });
+        }
+
+        private boolean offer(Task task) {
+            if (queued.incrementAndGet() > queueSize) {
+                queued.decrementAndGet();
+                return false;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                queued.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return Number of requests waiting for a thread, all lanes
+         */
+        public int getQueued() {
+            return queued.get();
+        }
+
+        /**
+         * Stops the pool threads
+         */
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        /**
+         * Waits until the pool threads are stopped after shutdown
+         *
+         * @param millis Maximum wait time
+         * @return true if stopped, false if the time elapsed
+         * @throws InterruptedException
+         */
+        public boolean awaitTermination(long millis) throws InterruptedException {
+            return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Interrupts running requests and drops the queued ones
+         */
+        public void shutdownNow() {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class Task implements Runnable, Comparable<Task> {
+        private final Pool pool;
+        private final int priority;
+        private final long seq;
+        private final Runnable command;
+
+        private Task(Pool pool, int priority, Runnable command) {
+            this.pool = pool;
+            this.priority = priority;
+            this.seq = pool.sequence.incrementAndGet();
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            pool.queued.decrementAndGet();
+            command.run();
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (priority != o.priority) return Integer.compare(o.priority, priority);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Requests are handled by the server executor thread
+     */
+    public static final Bulkhead INLINE = new Bulkhead("inline", null, 0);
+
+    private final String name;
+    private final Pool pool;
+    private final int priority;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private Bulkhead(String name, Pool pool, int priority) {
+        this.name = name;
+        this.pool = pool;
+        this.priority = priority;
+    }
+
+    /**
+     * Dedicated bounded pool
+     *
+     * @param name      Bulkhead name, thread name prefix
+     * @param threads   Number of threads
+     * @param queueSize Maximum number of requests waiting for a thread
+     * @return Bulkhead
+     */
+    public static Bulkhead dedicated(String name, int threads, int queueSize) {
+        return new Bulkhead(name, new Pool(name, threads, queueSize), 0);
+    }
+
+    /**
+     * Lane of shared pool
+     *
+     * @param name     Bulkhead name
+     * @param pool     Shared pool
+     * @param priority Priority, higher is taken first
+     * @return Bulkhead
+     */
+    public static Bulkhead shared(String name, Pool pool, int priority) {
+        return new Bulkhead(name, pool, priority);
+    }
+
+    public boolean isInline() {
+        return pool == null;
+    }
+
+    Pool getPool() {
+        return pool;
+    }
+
+    private boolean dispatch(Runnable command) {
+        final long enqueued = System.nanoTime();
+        queued.incrementAndGet();
+        Task task = new Task(pool, priority, () -> {
+            queued.decrementAndGet();
+            long wait = System.nanoTime() - enqueued;
+            waitNanos.addAndGet(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+            active.incrementAndGet();
+            try {
+                command.run();
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+        if (pool.offer(task)) return true;
+        queued.decrementAndGet();
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * First filter of the service context, continues the filter chain in the bulkhead
+     */
+    static final class DispatchFilter extends Filter {
+        private final Bulkhead bulkhead;
+
+        DispatchFilter(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            // the deadline is measured from the moment the request was queued by the server
+            final long enqueued = DeadlineExecutor.enqueuedAt().orElse(System.nanoTime());
+            // the exchange is completed in the bulkhead thread, failure there must drop the connection
+            RestHelper.guard(exchange);
+            // the drain gate keeps counting the request while it is queued and handled in the bulkhead thread
+            final RestServer.Hold hold = RestServer.retainCurrent();
+            boolean accepted = bulkhead.dispatch(() -> {
+                try {
+                    DeadlineExecutor.runEnqueued(enqueued, () -> {
+                        try {
+                            chain.doFilter(exchange);
+                        } catch (Exception e) {
+                            RestLogger.limited(Level.SEVERE, "Exception while handling request", e);
+                            RestHelper.abort(exchange);
+                        }
+                    });
+                } finally {
+                    if (hold != null) hold.release();
+                }
+            });
+            if (accepted) return;
+            if (hold != null) hold.release();
+            RestLogger.limited(Level.WARNING, "Bulkhead " + bulkhead.name + " queue full, request rejected", null);
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(RestHelper.HTTPUNAVAILABLE, OVERLOADEDBODY.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(OVERLOADEDBODY);
+            os.close();
+            exchange.close();
+        }
+
+        @Override
+        public String description() {
+            return "Bulkhead " + bulkhead.name;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of requests of this bulkhead waiting for a thread
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return Number of requests of this bulkhead being handled
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return Number of requests rejected with 503 because the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Average time spent in the bulkhead queue, milliseconds
+     */
+    public double getAverageWaitMillis() {
+        long c = completed.get() + active.get();
+        return c == 0 ? 0 : waitNanos.get() / 1e6 / c;
+    }
+
+    /**
+     * @return Maximum time spent in the bulkhead queue, milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,79 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.Headers;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * CORS policy of registered service (ServiceOptions.setCors).<br>
+ * Origins : if empty any origin is allowed (Access-Control-Allow-Origin: *), otherwise the request Origin is echoed only if
+ * it belongs to the set. Max age : Access-Control-Max-Age of preflight response, browsers cache the preflight for this time.
+ */
+public class CorsPolicy {
+
+    private final Set<String> origins;
+    private final long maxAgeSeconds;
+    private boolean credentials = false;
+
+    /**
+     * @param origins       Allowed origins, for instance https://app.example.com, empty set for any origin
+     * @param maxAgeSeconds Access-Control-Max-Age, negative: not sent
+     */
+    public CorsPolicy(Set<String> origins, long maxAgeSeconds) {
+        this.origins = Collections.unmodifiableSet(new HashSet<String>(origins));
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * Sends Access-Control-Allow-Credentials: true. The origin is always echoed then, "*" is not allowed with credentials.
+     *
+     * @param credentials true to allow credentials
+     * @return this
+     */
+    public CorsPolicy setAllowCredentials(boolean credentials) {
+        this.credentials = credentials;
+        return this;
+    }
+
+    public boolean isAllowed(String origin) {
+        return origins.isEmpty() || origins.contains(origin);
+    }
+
+    public long getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+
+    /**
+     * Adds Access-Control-Allow-Origin (and credentials) for the request origin. Not allowed origin gets no allow header
+     * and the browser blocks the response.
+     *
+     * @param h      Response headers
+     * @param origin Origin request header, can be null
+     */
+    void addOriginHeaders(Headers h, String origin) {
+        if (origins.isEmpty() && !credentials) {
+            h.set("Access-Control-Allow-Origin", "*");
+            return;
+        }
+        // the response depends on the origin, shared caches must keep variants
+        RestHelper.addVary(h, "Origin");
+        if (origin == null || !isAllowed(origin)) return;
+        h.set("Access-Control-Allow-Origin", origin);
+        if (credentials) h.set("Access-Control-Allow-Credentials", "true");
+    }
+}
@@ -0,0 +1,60 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Optional;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor wrapper recording the time the request was queued. RestServiceHelper measures the request deadline from this moment,
+ * so the time spent in the executor queue is included and requests expired while waiting are rejected before any work starts.
+ */
+public class DeadlineExecutor implements Executor {
+
+    private static final ThreadLocal<Long> ENQUEUED = new ThreadLocal<Long>();
+
+    private final Executor executor;
+
+    public DeadlineExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        final long enqueued = System.nanoTime();
+        executor.execute(() -> runEnqueued(enqueued, command));
+    }
+
+    /**
+     * Runs the command with the given queue time, used to carry the request queue time over another executor
+     *
+     * @param enqueued System.nanoTime() when the request was queued
+     * @param command  Command
+     */
+    static void runEnqueued(long enqueued, Runnable command) {
+        ENQUEUED.set(enqueued);
+        try {
+            command.run();
+        } finally {
+            ENQUEUED.remove();
+        }
+    }
+
+    /**
+     * @return System.nanoTime() when the task running in the current thread was queued, empty if not run by DeadlineExecutor
+     */
+    public static Optional<Long> enqueuedAt() {
+        return Optional.ofNullable(ENQUEUED.get());
+    }
+}
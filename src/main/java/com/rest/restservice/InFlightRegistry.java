@@ -0,0 +1,330 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of requests being executed by registered services: service, method, query parameter names, start time, phase and worker thread.<br>
+ * Query parameter values are never exposed, they can carry tokens or personal data.<br>
+ * The registry is split into stripes selected by the worker thread, registering and removing the request touches only
+ * one small concurrent set. Detached (streaming) requests are removed when the service handler returns.<br>
+ * Watchdog: if the service has the slow request threshold (ServiceOptions.setSlowRequestMillis), the requests running
+ * longer are logged together with the stack sample of the worker thread. The sampling is throttled: at most
+ * restservice.watchdog.maxsamples stacks every restservice.watchdog.interval milliseconds, the same request is sampled
+ * again only after the next threshold period.<br>
+ * InFlightService exposes the registry as optional admin endpoint.
+ */
+public final class InFlightRegistry {
+
+    /**
+     * Request execution phase
+     */
+    public enum PHASE {
+        PARAMS, VALIDATE, BODY, HANDLE, WRITE
+    }
+
+    /**
+     * Observer of phase changes in the thread running the request, used by the allocation budget test
+     */
+    interface IPhaseListener {
+        void phase(PHASE from, PHASE to);
+    }
+
+    private static volatile IPhaseListener listener = null;
+
+    private static final int STRIPES = stripeCount();
+    private static final int MAXQUERY = 256;
+    private static final long INTERVAL = Long.getLong("restservice.watchdog.interval", 1000);
+    private static final int MAXSAMPLES = Integer.getInteger("restservice.watchdog.maxsamples", 4);
+    private static final int MAXFRAMES = Integer.getInteger("restservice.watchdog.maxframes", 32);
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    private static final AtomicLong samples = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+    private static ScheduledExecutorService watchdog = null;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    private InFlightRegistry() {
+    }
+
+    private static int stripeCount() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2) - 1) << 1;
+        return Math.max(2, n);
+    }
+
+    private static final class Stripe {
+        private final Set<Entry> entries = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Request being executed
+     */
+    public static final class Entry {
+        private final String service;
+        private final String method;
+        // raw query, redacted only when read
+        private final String rawQuery;
+        private final long startMillis;
+        private final long startNanos;
+        private final long slowNanos;
+        private final Thread thread;
+        private final Stripe stripe;
+        private volatile PHASE phase = PHASE.PARAMS;
+        // next time the watchdog samples the request, touched only by the watchdog thread
+        private long nextSample;
+
+        private Entry(String service, HttpExchange t, long slowMillis, Stripe stripe) {
+            this.service = service;
+            this.method = t.getRequestMethod();
+            this.rawQuery = t.getRequestURI().getRawQuery();
+            this.startMillis = System.currentTimeMillis();
+            this.startNanos = System.nanoTime();
+            this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+            this.nextSample = startNanos + slowNanos;
+            this.thread = Thread.currentThread();
+            this.stripe = stripe;
+        }
+
+        void phase(PHASE phase) {
+            IPhaseListener l = listener;
+            if (l != null) l.phase(this.phase, phase);
+            this.phase = phase;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return Query parameter names separated by &amp;, values removed, truncated, null if no query
+         */
+        public String getQuery() {
+            if (rawQuery == null) return null;
+            StringBuilder b = new StringBuilder();
+            for (String p : rawQuery.split("&")) {
+                if (p.isEmpty()) continue;
+                if (b.length() > 0) b.append('&');
+                int eq = p.indexOf('=');
+                b.append(eq == -1 ? p : p.substring(0, eq));
+                if (b.length() > MAXQUERY) {
+                    b.setLength(MAXQUERY);
+                    return b.append("...").toString();
+                }
+            }
+            return b.toString();
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        public PHASE getPhase() {
+            return phase;
+        }
+
+        public Thread getThread() {
+            return thread;
+        }
+    }
+
+    /**
+     * @param l Phase listener, null : none
+     */
+    static void setPhaseListener(IPhaseListener l) {
+        listener = l;
+    }
+
+    /**
+     * Registers the request handled by the current thread
+     *
+     * @param service    Service URL
+     * @param t          Exchange
+     * @param slowMillis Slow request threshold, 0 if the request is not watched
+     * @return Entry to be passed to end
+     */
+    static Entry begin(String service, HttpExchange t, long slowMillis) {
+        Stripe s = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        Entry e = new Entry(service, t, slowMillis, s);
+        s.entries.add(e);
+        return e;
+    }
+
+    static void end(Entry e) {
+        e.stripe.entries.remove(e);
+    }
+
+    /**
+     * @return Requests being executed, the longest running first
+     */
+    public static List<Entry> snapshot() {
+        List<Entry> res = new ArrayList<Entry>();
+        for (Stripe s : stripes) res.addAll(s.entries);
+        res.sort(Comparator.comparingLong(e -> e.startNanos));
+        return res;
+    }
+
+    /**
+     * @return Number of requests being executed
+     */
+    public static int size() {
+        int n = 0;
+        for (Stripe s : stripes) n += s.entries.size();
+        return n;
+    }
+
+    /**
+     * @return Number of stack samples logged by the watchdog
+     */
+    public static long getSamples() {
+        return samples.get();
+    }
+
+    /**
+     * @return Number of slow request samples skipped by the throttle
+     */
+    public static long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Starts the watchdog thread, called when the first service with slow request threshold is registered
+     */
+    static synchronized void startWatchdog() {
+        if (watchdog != null) return;
+        watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "inflight-watchdog");
+            th.setDaemon(true);
+            return th;
+        });
+        watchdog.scheduleWithFixedDelay(InFlightRegistry::watch, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        RestLogger.info("Slow request watchdog started, interval " + INTERVAL + " ms, at most " + MAXSAMPLES + " samples");
+    }
+
+    private static void watch() {
+        long now = System.nanoTime();
+        int budget = MAXSAMPLES;
+        for (Entry e : snapshot()) {
+            if (e.slowNanos == 0 || now - e.nextSample < 0) continue;
+            // the next sample after the next threshold period, also if this one is skipped
+            e.nextSample = now + e.slowNanos;
+            if (budget == 0) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            budget--;
+            samples.incrementAndGet();
+            StringBuilder b = new StringBuilder("Slow request ");
+            describe(b, e);
+            for (StackTraceElement el : stack(e)) b.append("\n\tat ").append(el);
+            RestLogger.L.warning(b.toString());
+        }
+    }
+
+    private static void describe(StringBuilder b, Entry e) {
+        b.append(e.method).append(" /").append(e.service);
+        String q = e.getQuery();
+        if (q != null) b.append('?').append(q);
+        b.append(", ").append(e.getElapsedMillis()).append(" ms, phase ").append(e.phase).append(", thread ").append(e.thread.getName());
+    }
+
+    private static StackTraceElement[] stack(Entry e) {
+        StackTraceElement[] st = e.thread.getStackTrace();
+        if (st.length <= MAXFRAMES) return st;
+        StackTraceElement[] res = new StackTraceElement[MAXFRAMES];
+        System.arraycopy(st, 0, res, 0, MAXFRAMES);
+        return res;
+    }
+
+    /**
+     * Admin service, returns the requests being executed as JSON.<br>
+     * Query parameters: min : only requests running at least min milliseconds (default 0), stack : include stack sample of the worker thread (default false).<br>
+     * Stack sampling stops the worker thread, only the restservice.watchdog.maxsamples longest running requests get the stack.
+     */
+    public static class InFlightService extends RestHelper.RestServiceHelper {
+
+        private static final String MIN = "min";
+        private static final String STACK = "stack";
+
+        public InFlightService(String url) {
+            super(url);
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            RestParams par = new RestParams(RestHelper.GET, Optional.of(RestParams.CONTENT.JSON), false, new ArrayList<String>());
+            par.addParam(MIN, PARAMTYPE.INT, new ParamValue(0));
+            par.addParam(STACK, PARAMTYPE.BOOLEAN, new ParamValue(false));
+            return par;
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            long min = getIntParam(v, MIN);
+            boolean stack = getLogParam(v, STACK);
+            StringBuilder b = new StringBuilder("{\"inflight\":").append(size());
+            b.append(",\"samples\":").append(samples.get()).append(",\"skipped\":").append(skipped.get()).append(",\"requests\":[");
+            boolean first = true;
+            int budget = MAXSAMPLES;
+            for (Entry e : snapshot()) {
+                long elapsed = e.getElapsedMillis();
+                if (elapsed < min) continue;
+                if (!first) b.append(',');
+                first = false;
+                b.append("{\"service\":").append(Json.quote(e.service)).append(",\"method\":").append(Json.quote(e.method));
+                String q = e.getQuery();
+                if (q != null) b.append(",\"query\":").append(Json.quote(q));
+                b.append(",\"start\":").append(e.startMillis).append(",\"elapsedMillis\":").append(elapsed);
+                b.append(",\"phase\":\"").append(e.phase).append("\",\"thread\":").append(Json.quote(e.thread.getName()));
+                if (stack && budget > 0) {
+                    budget--;
+                    b.append(",\"stack\":[");
+                    StackTraceElement[] st = stack(e);
+                    for (int i = 0; i < st.length; i++) {
+                        if (i > 0) b.append(',');
+                        b.append(Json.quote(st[i].toString()));
+                    }
+                    b.append(']');
+                }
+                b.append('}');
+            }
+            b.append("]}");
+            produceOKResponse(v, b.toString());
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Incremental ingestion of newline-delimited request bodies (NDJSON, CSV).<br>
+ * The body is read from the exchange stream record by record and delivered to the consumer in batches, memory is bounded by
+ * batch size times the number of batches in flight, not by the body size. Batches can be processed in parallel on a fork-join pool,
+ * reading is blocked (and the client throttled by TCP flow control) while the maximum number of batches is in flight.
+ * Malformed records and failed batches are collected in the Report returned at the end.
+ *
+ * @param <T> Record type produced by the parser
+ */
+public class IngestPipeline<T> {
+
+    /**
+     * Parses single record (line)
+     */
+    public interface IRecordParser<T> {
+        T parse(String line) throws IOException;
+    }
+
+    /**
+     * Consumes batch of records. Exception thrown marks all records of the batch as failed.
+     */
+    public interface IBatchConsumer<T> {
+        void accept(List<T> batch, long firstRecord) throws Exception;
+    }
+
+    private final IRecordParser<T> parser;
+    private final IBatchConsumer<T> consumer;
+    private final boolean csv;
+    private int batchSize = 1000;
+    private int maxLineLength = 1024 * 1024;
+    private long maxErrors = 1000;
+    private int maxReportedErrors = 100;
+    private boolean skipHeader = false;
+    private Optional<ForkJoinPool> pool = Optional.empty();
+    private int maxInFlight = 1;
+
+    private IngestPipeline(IRecordParser<T> parser, IBatchConsumer<T> consumer, boolean csv) {
+        this.parser = parser;
+        this.consumer = consumer;
+        this.csv = csv;
+    }
+
+    /**
+     * Newline-delimited JSON, every record is parsed by Json.parse
+     *
+     * @param consumer Batch consumer
+     * @return Pipeline
+     */
+    public static IngestPipeline<Object> ndjson(IBatchConsumer<Object> consumer) {
+        return new IngestPipeline<Object>(Json::parse, consumer, false);
+    }
+
+    /**
+     * CSV (RFC 4180), quoted fields can contain separators, quotes and new lines
+     *
+     * @param separator Field separator
+     * @param consumer  Batch consumer
+     * @return Pipeline
+     */
+    public static IngestPipeline<String[]> csv(char separator, IBatchConsumer<String[]> consumer) {
+        return new IngestPipeline<String[]>(line -> parseCsv(line, separator), consumer, true);
+    }
+
+    public IngestPipeline<T> setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param maxLineLength Longer records are rejected and skipped
+     */
+    public IngestPipeline<T> setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+        return this;
+    }
+
+    /**
+     * @param maxErrors Ingestion is aborted after this number of failed records
+     */
+    public IngestPipeline<T> setMaxErrors(long maxErrors) {
+        this.maxErrors = maxErrors;
+        return this;
+    }
+
+    /**
+     * @param maxReportedErrors Number of error details included in the report
+     */
+    public IngestPipeline<T> setMaxReportedErrors(int maxReportedErrors) {
+        this.maxReportedErrors = maxReportedErrors;
+        return this;
+    }
+
+    /**
+     * @param skipHeader Skip the first record (CSV header)
+     */
+    public IngestPipeline<T> setSkipHeader(boolean skipHeader) {
+        this.skipHeader = skipHeader;
+        return this;
+    }
+
+    /**
+     * Batches are processed on the pool, at most maxInFlight batches at once
+     *
+     * @param pool        ForkJoinPool, for instance ForkJoinPool.commonPool()
+     * @param maxInFlight Maximum number of batches processed or waiting
+     */
+    public IngestPipeline<T> setParallel(ForkJoinPool pool, int maxInFlight) {
+        this.pool = Optional.of(pool);
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Ingestion result, records = accepted + failed + skipped
+     */
+    public static class Report {
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong accepted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        private final int maxReportedErrors;
+        private volatile boolean aborted = false;
+
+        private Report(int maxReportedErrors) {
+            this.maxReportedErrors = maxReportedErrors;
+        }
+
+        private void error(long failedRecords, String message) {
+            failed.addAndGet(failedRecords);
+            if (errors.size() < maxReportedErrors) errors.add(message);
+        }
+
+        public long getRecords() {
+            return records.get();
+        }
+
+        public long getAccepted() {
+            return accepted.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return Records parsed but not submitted because ingestion was aborted
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getBatches() {
+            return batches.get();
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return true if ingestion was stopped because of too many errors
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        public String toJson() {
+            StringBuilder b = new StringBuilder();
+            b.append("{\"records\":").append(records.get());
+            b.append(",\"accepted\":").append(accepted.get());
+            b.append(",\"failed\":").append(failed.get());
+            b.append(",\"skipped\":").append(skipped.get());
+            b.append(",\"batches\":").append(batches.get());
+            b.append(",\"aborted\":").append(aborted);
+            b.append(",\"errors\":[");
+            synchronized (errors) {
+                for (int i = 0; i < errors.size(); i++) {
+                    if (i > 0) b.append(',');
+                    Json.quote(b, errors.get(i));
+                }
+            }
+            return b.append("]}").toString();
+        }
+    }
+
+    /**
+     * Reads records one by one, CSV records can span several lines inside quoted fields
+     */
+    private class RecordReader {
+        private final Reader in;
+        private final char[] buf = new char[8192];
+        private int pos = 0;
+        private int len = 0;
+        private long lineNo = 0;
+        private long startLine;
+        private boolean tooLong;
+
+        RecordReader(InputStream in) {
+            this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return record or null at the end of stream
+         */
+        String next(StringBuilder b) throws IOException {
+            b.setLength(0);
+            tooLong = false;
+            startLine = lineNo + 1;
+            boolean quoted = false;
+            boolean any = false;
+            while (true) {
+                if (pos == len) {
+                    len = in.read(buf);
+                    pos = 0;
+                    if (len <= 0) {
+                        len = 0;
+                        if (!any) return null;
+                        lineNo++;
+                        return b.toString();
+                    }
+                }
+                any = true;
+                char c = buf[pos++];
+                if (c == '\n' && !quoted) {
+                    lineNo++;
+                    int l = b.length();
+                    if (l > 0 && b.charAt(l - 1) == '\r') b.setLength(l - 1);
+                    return b.toString();
+                }
+                if (c == '\n') lineNo++;
+                if (csv && c == '"') quoted = !quoted;
+                if (b.length() < maxLineLength) b.append(c);
+                else tooLong = true;
+            }
+        }
+    }
+
+    private void process(List<T> batch, long first, Report report) {
+        try {
+            consumer.accept(batch, first);
+            report.accepted.addAndGet(batch.size());
+        } catch (Exception e) {
+            RestLogger.limited(Level.WARNING, "Ingestion batch failed", e);
+            report.error(batch.size(), "batch starting at record " + first + ", " + batch.size() + " records: " + e.getMessage());
+        }
+    }
+
+    private void submit(List<T> batch, long first, Report report, Semaphore permits) throws IOException {
+        report.batches.incrementAndGet();
+        if (pool.isEmpty()) {
+            process(batch, first, report);
+            return;
+        }
+        try {
+            // backpressure, reading stops while maxInFlight batches are pending
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ingestion interrupted", e);
+        }
+        pool.get().execute(() -> {
+            try {
+                process(batch, first, report);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Runs ingestion of the stream
+     *
+     * @param in Request body
+     * @return Report
+     * @throws IOException Error reading the stream
+     */
+    public Report run(InputStream in) throws IOException {
+        Report report = new Report(maxReportedErrors);
+        Semaphore permits = new Semaphore(maxInFlight);
+        RecordReader reader = new RecordReader(in);
+        StringBuilder b = new StringBuilder();
+        List<T> batch = new ArrayList<T>(batchSize);
+        long first = 1;
+        String line;
+        try {
+            if (skipHeader) reader.next(b);
+            while ((line = reader.next(b)) != null) {
+                if (line.isBlank()) continue;
+                long recno = report.records.incrementAndGet();
+                if (reader.tooLong) {
+                    report.error(1, "line " + reader.startLine + ": record longer than " + maxLineLength);
+                } else try {
+                    if (batch.isEmpty()) first = recno;
+                    batch.add(parser.parse(line));
+                } catch (IOException e) {
+                    report.error(1, "line " + reader.startLine + ": " + e.getMessage());
+                }
+                if (report.failed.get() > maxErrors) {
+                    report.aborted = true;
+                    break;
+                }
+                if (batch.size() == batchSize) {
+                    submit(batch, first, report, permits);
+                    batch = new ArrayList<T>(batchSize);
+                }
+            }
+            // the partial batch is not submitted after abort, its records are reported as skipped
+            if (report.aborted) report.skipped.addAndGet(batch.size());
+            else if (!batch.isEmpty()) submit(batch, first, report, permits);
+        } finally {
+            // wait for the batches in flight
+            permits.acquireUninterruptibly(maxInFlight);
+        }
+        return report;
+    }
+
+    /**
+     * Parses CSV record
+     *
+     * @param line      Record
+     * @param separator Field separator
+     * @return Fields
+     * @throws IOException Unbalanced quotes
+     */
+    public static String[] parseCsv(String line, char separator) throws IOException {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder f = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        f.append('"');
+                        i++;
+                    } else quoted = false;
+                } else f.append(c);
+            } else if (c == '"') quoted = true;
+            else if (c == separator) {
+                fields.add(f.toString());
+                f.setLength(0);
+            } else f.append(c);
+        }
+        if (quoted) throw new IOException("Unbalanced quotes");
+        fields.add(f.toString());
+        return fields.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,499 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.nio.NioHttpExchange;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Asynchronous job mode of registered service (ServiceOptions.setJobExecutor).<br>
+ * The request is validated as usual, then the service answers at once with 202 Accepted and Location of the job, the
+ * servicehandle runs later on the bounded job pool. The response produced by the service is captured: small results in memory,
+ * larger in a temporary file. The result is kept for the time-to-live after the job is finished.<br>
+ * The job endpoint is registered automatically together with the first service using the executor:<br>
+ * GET /url : job pool metrics (queue depth, running, stored jobs)<br>
+ * GET /url/id : job status<br>
+ * GET /url/id/result : the captured response, single byte range (Range: bytes=) is supported, 202 if the job is not finished<br>
+ * DELETE /url/id : cancels queued or running job (the job thread is interrupted) and removes the result<br>
+ * The job is visible only to the principal who submitted it, other principals get 404.<br>
+ * If the job queue is full the request is rejected with 503 and Retry-After.
+ */
+public class JobExecutor implements Closeable {
+
+    /**
+     * Job state
+     */
+    public enum STATE {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private static final int WRITECHUNK = 65536;
+
+    private final String url;
+    private final long ttlMillis;
+    private final int memoryThreshold;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "job-cleaner");
+        th.setDaemon(true);
+        return th;
+    });
+    private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final Set<HttpServer> registered = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * Job body, runs the service logic against the exchange capturing the response
+     */
+    interface IJob {
+        void run(HttpExchange t) throws Exception;
+    }
+
+    /**
+     * Response captured in memory up to the threshold, then in a temporary file
+     */
+    private final class ResultStream extends OutputStream {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        // memory result, set when closed
+        private volatile byte[] bytes = null;
+        private File file = null;
+        private OutputStream out = memory;
+        private long size = 0;
+
+        private void spill(int len) throws IOException {
+            if (file != null || size + len <= memoryThreshold) return;
+            file = Files.createTempFile("job", ".result").toFile();
+            out = new FileOutputStream(file);
+            memory.writeTo(out);
+            memory = null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            spill(1);
+            out.write(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            spill(len);
+            out.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (memory != null) bytes = memory.toByteArray();
+            memory = null;
+        }
+    }
+
+    /**
+     * Asynchronous request
+     */
+    private final class Job implements Runnable {
+        private final String id = UUID.randomUUID().toString();
+        private final String service;
+        // authenticated submitter, null if the service is not authenticated
+        private final HttpPrincipal principal;
+        private final IJob body;
+        private final MemoryHttpExchange exchange;
+        private final ResultStream result = new ResultStream();
+        private final long created = System.currentTimeMillis();
+        private volatile STATE state = STATE.QUEUED;
+        private volatile long started = 0;
+        private volatile long finished = 0;
+        private volatile String error = null;
+        // guarded by this
+        private Thread thread = null;
+
+        Job(String service, HttpExchange origin, byte[] requestBody, IJob body) {
+            this.service = service;
+            this.principal = origin.getPrincipal();
+            this.body = body;
+            this.exchange = new MemoryHttpExchange(origin.getRequestMethod(), origin.getRequestURI(), origin.getRequestHeaders(), requestBody, origin);
+            this.exchange.setStreams(null, result);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (state != STATE.QUEUED) return;
+                state = STATE.RUNNING;
+                thread = Thread.currentThread();
+            }
+            started = System.currentTimeMillis();
+            running.incrementAndGet();
+            STATE end = STATE.DONE;
+            try {
+                body.run(exchange);
+                result.close();
+                completed.incrementAndGet();
+            } catch (Exception e) {
+                if (state == STATE.CANCELLED) end = STATE.CANCELLED;
+                else {
+                    end = STATE.FAILED;
+                    error = String.valueOf(e.getMessage());
+                    failed.incrementAndGet();
+                    RestLogger.limited(Level.WARNING, "Job " + id + " of " + service + " failed", e);
+                }
+            } finally {
+                running.decrementAndGet();
+                synchronized (this) {
+                    thread = null;
+                    if (state != STATE.CANCELLED) state = end;
+                    // clear interruption of cancelled job, the pool thread is reused
+                    Thread.interrupted();
+                }
+                finished = System.currentTimeMillis();
+                if (state == STATE.CANCELLED) discard();
+            }
+        }
+
+        /**
+         * @return true if the job was queued or running
+         */
+        synchronized boolean cancel() {
+            if (state == STATE.QUEUED) {
+                executor.remove(this);
+                state = STATE.CANCELLED;
+                finished = System.currentTimeMillis();
+                cancelled.incrementAndGet();
+                return true;
+            }
+            if (state == STATE.RUNNING) {
+                state = STATE.CANCELLED;
+                cancelled.incrementAndGet();
+                thread.interrupt();
+                return true;
+            }
+            return false;
+        }
+
+        void discard() {
+            try {
+                result.close();
+            } catch (IOException e) {
+                RestLogger.L.log(Level.WARNING, "Cannot close result of job " + id, e);
+            }
+            if (result.file != null) result.file.delete();
+        }
+
+        private String location() {
+            return "/" + url + "/" + id;
+        }
+
+        private String toJson() {
+            StringBuilder b = new StringBuilder("{\"id\":").append(Json.quote(id));
+            b.append(",\"service\":").append(Json.quote(service)).append(",\"state\":\"").append(state).append('"');
+            b.append(",\"created\":").append(created);
+            if (started != 0) b.append(",\"started\":").append(started);
+            if (finished != 0) b.append(",\"finished\":").append(finished);
+            if (state == STATE.DONE) {
+                b.append(",\"status\":").append(exchange.getResponseCode()).append(",\"size\":").append(result.size);
+                b.append(",\"result\":").append(Json.quote(location() + "/result"));
+            }
+            if (error != null) b.append(",\"error\":").append(Json.quote(error));
+            return b.append('}').toString();
+        }
+    }
+
+    /**
+     * @param url             Job endpoint URL, without leading /
+     * @param threads         Number of job threads
+     * @param queueSize       Maximum number of jobs waiting for a thread
+     * @param ttlMillis       Time the job status and result are kept after the job is finished
+     * @param memoryThreshold Maximum result size kept in memory, larger results are stored in temporary files
+     */
+    public JobExecutor(String url, int threads, int queueSize, long ttlMillis, int memoryThreshold) {
+        this.url = url;
+        this.ttlMillis = ttlMillis;
+        this.memoryThreshold = memoryThreshold;
+        final AtomicInteger no = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+            Thread th = new Thread(r, "job-" + no.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+        long period = Math.max(1000, Math.min(ttlMillis / 4, 60_000));
+        cleaner.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Job j : jobs.values()) {
+            if (j.finished == 0 || j.finished + ttlMillis > now) continue;
+            if (jobs.remove(j.id, j)) {
+                expired.incrementAndGet();
+                j.discard();
+            }
+        }
+    }
+
+    /**
+     * Registers the job endpoint in the server, once per server
+     *
+     * @param server com.sun.net.httpserver.HttpServer instance
+     */
+    void register(HttpServer server) {
+        if (registered.add(server)) RestHelper.registerService(server, new JobService());
+    }
+
+    /**
+     * Queues the job
+     *
+     * @param service     Service URL
+     * @param origin      Exchange of the request, gives method, URI, headers and principal
+     * @param requestBody Request body already read
+     * @param body        Service logic
+     * @return Status location and JSON, empty if the queue is full
+     */
+    Optional<String[]> submit(String service, HttpExchange origin, byte[] requestBody, IJob body) {
+        Job j = new Job(service, origin, requestBody, body);
+        jobs.put(j.id, j);
+        try {
+            executor.execute(j);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(j.id);
+            rejected.incrementAndGet();
+            return Optional.empty();
+        }
+        return Optional.of(new String[]{j.location(), j.toJson()});
+    }
+
+    /**
+     * @return Number of jobs waiting for a thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return Number of jobs kept: queued, running and finished within time-to-live
+     */
+    public int getStored() {
+        return jobs.size();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return Number of requests rejected with 503, the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Number of finished jobs removed after time-to-live
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Cancels queued and running jobs and removes all results
+     */
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+        executor.shutdownNow();
+        for (Job j : jobs.values()) {
+            j.cancel();
+            j.discard();
+        }
+        jobs.clear();
+    }
+
+    /**
+     * Single byte range of the result, RFC 9110 14.1.2
+     *
+     * @return {start, end inclusive}, null if the range is absent or not supported (the whole result is sent), {-1, -1} if not satisfiable
+     */
+    static long[] range(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') != -1) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) return null;
+        try {
+            long start, end;
+            if (dash == 0) {
+                // suffix range, the last bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0 || size == 0) return new long[]{-1, -1};
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+                if (start >= size || end < start) return new long[]{-1, -1};
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Job endpoint: metrics, status, result and cancellation
+     */
+    private class JobService extends RestHelper.RestServiceHelper {
+
+        JobService() {
+            super(url);
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            String method = RestHelper.DELETE.equals(httpExchange.getRequestMethod()) ? RestHelper.DELETE : RestHelper.GET;
+            return new RestParams(method, Optional.of(RestParams.CONTENT.JSON), false, new ArrayList<String>());
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            // /url/id/result
+            String[] path = getPath(v.getT());
+            int base = url.isEmpty() ? 0 : url.split("/").length;
+            if (path.length == base) {
+                if (RestHelper.DELETE.equals(v.getT().getRequestMethod())) produceResponse(v, Optional.of("Job id expected"), RestHelper.HTTPBADREQUEST);
+                else produceOKResponse(v, "{\"queued\":" + getQueued() + ",\"running\":" + getRunning() + ",\"stored\":" + getStored()
+                        + ",\"completed\":" + getCompleted() + ",\"failed\":" + getFailed() + ",\"cancelled\":" + getCancelled()
+                        + ",\"rejected\":" + getRejected() + ",\"expired\":" + getExpired() + "}");
+                return;
+            }
+            Job j = path.length <= base + 2 ? jobs.get(path[base]) : null;
+            boolean result = path.length == base + 2 && path[base + 1].equals("result");
+            // job of another principal is not revealed
+            if (j != null && !Objects.equals(j.principal, v.getT().getPrincipal())) j = null;
+            if (j == null || (path.length == base + 2 && !result)) {
+                produceResponse(v, Optional.of("Job not found"), RestHelper.HTTPNOTFOUND);
+                return;
+            }
+            if (RestHelper.DELETE.equals(v.getT().getRequestMethod())) {
+                if (!j.cancel()) j.discard();
+                jobs.remove(j.id, j);
+                produceNODATAResponse(v);
+                return;
+            }
+            if (!result) produceOKResponse(v, j.toJson());
+            // not finished yet, the client keeps polling
+            else if (j.state == STATE.QUEUED || j.state == STATE.RUNNING) produceResponse(v, Optional.of(j.toJson()), RestHelper.HTTPACCEPTED);
+            else if (j.state == STATE.FAILED) produceResponse(v, Optional.of(j.toJson()), RestHelper.HTTPINTERNALERROR);
+            else if (j.state == STATE.CANCELLED) produceResponse(v, Optional.of(j.toJson()), RestHelper.HTTPNOTFOUND);
+            else sendResult(v.getT(), j);
+        }
+
+        private void sendResult(HttpExchange t, Job j) throws IOException {
+            Headers h = t.getResponseHeaders();
+            String contentType = j.exchange.getResponseHeaders().getFirst("Content-Type");
+            if (contentType != null) h.set("Content-Type", contentType);
+            long size = j.result.size;
+            int code = j.exchange.getResponseCode();
+            long start = 0, len = size;
+            if (code == RestHelper.HTTPOK) {
+                h.set("Accept-Ranges", "bytes");
+                long[] r = range(t.getRequestHeaders().getFirst("Range"), size);
+                if (r != null && r[0] == -1) {
+                    h.set("Content-Range", "bytes */" + size);
+                    t.sendResponseHeaders(RestHelper.HTTPRANGENOTSATISFIABLE, -1);
+                    return;
+                }
+                if (r != null) {
+                    start = r[0];
+                    len = r[1] - r[0] + 1;
+                    code = RestHelper.HTTPPARTIALCONTENT;
+                    h.set("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + size);
+                }
+            }
+            t.sendResponseHeaders(code, len == 0 ? -1 : len);
+            if (len == 0) return;
+            if (j.result.file == null) {
+                OutputStream os = t.getResponseBody();
+                os.write(j.result.bytes, (int) start, (int) len);
+                os.close();
+                return;
+            }
+            FileChannel fc = FileChannel.open(j.result.file.toPath());
+            if (t instanceof NioHttpExchange) {
+                // zero-copy transfer, the channel is closed by the server
+                ((NioHttpExchange) t).sendFile(fc, start, len);
+                return;
+            }
+            try (InputStream in = Channels.newInputStream(fc.position(start))) {
+                OutputStream os = t.getResponseBody();
+                byte[] chunk = new byte[WRITECHUNK];
+                long left = len;
+                int n;
+                while (left > 0 && (n = in.read(chunk, 0, (int) Math.min(chunk.length, left))) != -1) {
+                    os.write(chunk, 0, n);
+                    left -= n;
+                }
+                os.close();
+            }
+        }
+    }
+}
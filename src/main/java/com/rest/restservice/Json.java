@@ -0,0 +1,243 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer helper, the library does not depend on any JSON package.
+ * Parsed values: Map (object), List (array), String, Long or Double (number), Boolean, null.
+ */
+public class Json {
+
+    // deeper nesting is rejected, recursive descent would overflow the stack
+    private static final int MAXDEPTH = 512;
+
+    private final String s;
+    private int pos;
+    private int depth;
+
+    private Json(String s) {
+        this.s = s;
+    }
+
+    /**
+     * Parses JSON text
+     *
+     * @param s JSON text
+     * @return parsed value
+     * @throws IOException if the text is not valid JSON
+     */
+    public static Object parse(String s) throws IOException {
+        Json j = new Json(s);
+        Object o = j.value();
+        j.ws();
+        if (j.pos != s.length()) throw j.error("Unexpected characters after JSON value");
+        return o;
+    }
+
+    /**
+     * Quotes and escapes string value
+     *
+     * @param v string value, null produces null literal
+     * @return JSON string literal
+     */
+    public static String quote(String v) {
+        if (v == null) return "null";
+        StringBuilder b = new StringBuilder(v.length() + 2);
+        quote(b, v);
+        return b.toString();
+    }
+
+    public static void quote(StringBuilder b, String v) {
+        b.append('"');
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+                    else b.append(c);
+            }
+        }
+        b.append('"');
+    }
+
+    private IOException error(String mess) {
+        return new IOException(mess + " at position " + pos);
+    }
+
+    private void ws() {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    private char next() throws IOException {
+        ws();
+        if (pos >= s.length()) throw error("Unexpected end of JSON");
+        return s.charAt(pos);
+    }
+
+    private void expect(String lit) throws IOException {
+        if (!s.startsWith(lit, pos)) throw error("Expected " + lit);
+        pos += lit.length();
+    }
+
+    private Object value() throws IOException {
+        char c = next();
+        switch (c) {
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                return number();
+        }
+    }
+
+    private void enter() throws IOException {
+        if (++depth > MAXDEPTH) throw error("Nesting too deep");
+    }
+
+    private Map<String, Object> object() throws IOException {
+        enter();
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        pos++;
+        if (next() == '}') {
+            pos++;
+            depth--;
+            return m;
+        }
+        while (true) {
+            if (next() != '"') throw error("Object key expected");
+            String key = string();
+            if (next() != ':') throw error("Colon expected");
+            pos++;
+            m.put(key, value());
+            char c = next();
+            pos++;
+            if (c == '}') {
+                depth--;
+                return m;
+            }
+            if (c != ',') throw error("Comma or } expected");
+        }
+    }
+
+    private List<Object> array() throws IOException {
+        enter();
+        List<Object> l = new ArrayList<Object>();
+        pos++;
+        if (next() == ']') {
+            pos++;
+            depth--;
+            return l;
+        }
+        while (true) {
+            l.add(value());
+            char c = next();
+            pos++;
+            if (c == ']') {
+                depth--;
+                return l;
+            }
+            if (c != ',') throw error("Comma or ] expected");
+        }
+    }
+
+    private String string() throws IOException {
+        pos++;
+        StringBuilder b = new StringBuilder();
+        while (true) {
+            if (pos >= s.length()) throw error("Unterminated string");
+            char c = s.charAt(pos++);
+            if (c == '"') return b.toString();
+            if (c != '\\') {
+                b.append(c);
+                continue;
+            }
+            if (pos >= s.length()) throw error("Unterminated string");
+            char e = s.charAt(pos++);
+            switch (e) {
+                case 'b':
+                    b.append('\b');
+                    break;
+                case 'f':
+                    b.append('\f');
+                    break;
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                case 't':
+                    b.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > s.length()) throw error("Invalid unicode escape");
+                    try {
+                        b.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("Invalid unicode escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    b.append(e);
+            }
+        }
+    }
+
+    private Object number() throws IOException {
+        int start = pos;
+        while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) != -1) pos++;
+        String n = s.substring(start, pos);
+        if (n.isEmpty()) throw error("Unexpected character");
+        try {
+            if (n.indexOf('.') == -1 && n.indexOf('e') == -1 && n.indexOf('E') == -1) return Long.parseLong(n);
+            return Double.parseDouble(n);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + n);
+        }
+    }
+}
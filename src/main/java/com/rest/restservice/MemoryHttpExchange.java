@@ -0,0 +1,162 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory HttpExchange. The request is given as method, URI, headers and body bytes, the response is captured in memory.
+ * Used to dispatch in-process requests (batch sub-requests) through RestServiceHelper.handle.
+ */
+public class MemoryHttpExchange extends HttpExchange {
+
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final HttpContext context;
+    private final HttpPrincipal principal;
+    private final InetSocketAddress remote;
+    private final InetSocketAddress local;
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private InputStream in;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private OutputStream out = body;
+    private int responseCode = -1;
+
+    /**
+     * @param method         HTTP method
+     * @param uri            request URI, path and query
+     * @param requestHeaders request headers
+     * @param requestBody    request body, empty array if no body
+     * @param parent         Optional, parent exchange giving context, principal and addresses, null if not available
+     */
+    public MemoryHttpExchange(String method, URI uri, Headers requestHeaders, byte[] requestBody, HttpExchange parent) {
+        this.method = method;
+        this.uri = uri;
+        this.requestHeaders = requestHeaders;
+        this.in = new ByteArrayInputStream(requestBody);
+        this.context = parent == null ? null : parent.getHttpContext();
+        this.principal = parent == null ? null : parent.getPrincipal();
+        this.remote = parent == null ? new InetSocketAddress(0) : parent.getRemoteAddress();
+        this.local = parent == null ? new InetSocketAddress(0) : parent.getLocalAddress();
+    }
+
+    /**
+     * @return response body captured
+     */
+    public byte[] getResponseBytes() {
+        return body.toByteArray();
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return out;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        // the same behaviour as JDK server
+        if (responseCode != -1) throw new IOException("headers already sent");
+        responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remote;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return local;
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) in = i;
+        if (o != null) out = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+}
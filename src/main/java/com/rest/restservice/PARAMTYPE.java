@@ -18,9 +18,17 @@ package com.rest.restservice;
  * BOOLEAN : true/false
  * INT : integer number
  * STRING : anything else
+ * INT_ARRAY, DOUBLE_ARRAY, DATE_ARRAY, STRING_ARRAY : list of values, repeated key (id=1&amp;id=2) or comma separated (id=1,2)
  */
 
 
 public enum PARAMTYPE {
-    BOOLEAN, DOUBLE, STRING,DATE, INT
+    BOOLEAN, DOUBLE, STRING,DATE, INT, INT_ARRAY, DOUBLE_ARRAY, DATE_ARRAY, STRING_ARRAY;
+
+    /**
+     * @return true for list parameter types
+     */
+    public boolean isArray() {
+        return this == INT_ARRAY || this == DOUBLE_ARRAY || this == DATE_ARRAY || this == STRING_ARRAY;
+    }
 }
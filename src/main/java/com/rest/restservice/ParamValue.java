@@ -28,6 +28,10 @@ public class ParamValue {
     final String stringvalue;
     final Date datevalue;
     final int intvalue;
+    final int[] intarray;
+    final double[] doublearray;
+    final Date[] datearray;
+    final String[] stringarray;
 
     /**
      * The parameter was BOOLEAN
@@ -58,12 +62,49 @@ public class ParamValue {
         return intvalue;
     }
 
-    ParamValue(boolean logvalue, double doublevalue, String stringvalue, Date datevalue, int intvalue) {
+    /**
+     * The parameter was INT_ARRAY
+     */
+    public int[] getIntArray() {
+        return intarray;
+    }
+
+    /**
+     * The parameter was DOUBLE_ARRAY
+     */
+    public double[] getDoubleArray() {
+        return doublearray;
+    }
+
+    /**
+     * The parameter was DATE_ARRAY
+     */
+    public Date[] getDateArray() {
+        return datearray;
+    }
+
+    /**
+     * The parameter was STRING_ARRAY
+     */
+    public String[] getStringArray() {
+        return stringarray;
+    }
+
+    private ParamValue(boolean logvalue, double doublevalue, String stringvalue, Date datevalue, int intvalue,
+                       int[] intarray, double[] doublearray, Date[] datearray, String[] stringarray) {
         this.logvalue = logvalue;
         this.doublevalue = doublevalue;
         this.stringvalue = stringvalue;
         this.datevalue = datevalue;
         this.intvalue = intvalue;
+        this.intarray = intarray;
+        this.doublearray = doublearray;
+        this.datearray = datearray;
+        this.stringarray = stringarray;
+    }
+
+    ParamValue(boolean logvalue, double doublevalue, String stringvalue, Date datevalue, int intvalue) {
+        this(logvalue, doublevalue, stringvalue, datevalue, intvalue, null, null, null, null);
     }
 
     ParamValue() {
@@ -101,4 +142,32 @@ public class ParamValue {
         this(false, -1, null, null, intvalue);
     }
 
+    /**
+     * INT_ARRAY parameter
+     */
+    public ParamValue(int[] intarray) {
+        this(false, -1, null, null, -1, intarray, null, null, null);
+    }
+
+    /**
+     * DOUBLE_ARRAY parameter
+     */
+    public ParamValue(double[] doublearray) {
+        this(false, -1, null, null, -1, null, doublearray, null, null);
+    }
+
+    /**
+     * DATE_ARRAY parameter
+     */
+    public ParamValue(Date[] datearray) {
+        this(false, -1, null, null, -1, null, null, datearray, null);
+    }
+
+    /**
+     * STRING_ARRAY parameter
+     */
+    public ParamValue(String[] stringarray) {
+        this(false, -1, null, null, -1, null, null, null, stringarray);
+    }
+
 }
@@ -0,0 +1,156 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter keyed by client address, authenticated principal or request header.<br>
+ * Every bucket is a single AtomicLong holding the theoretical arrival time (GCRA), acquiring a permit is one CAS, no locks.
+ * Bucket with arrival time in the past is full and can be removed without losing state, idle buckets are swept periodically.
+ * The number of keys is bounded, when exceeded a new key evicts the least loaded of a few sampled buckets.
+ */
+public class RateLimiter {
+
+    /**
+     * Request attribute used as the limiter key
+     */
+    public enum KEY {
+        ADDRESS, PRINCIPAL, HEADER
+    }
+
+    private static final long SWEEPNANOS = TimeUnit.SECONDS.toNanos(1);
+    // number of buckets examined when a new key does not fit
+    private static final int EVICTSAMPLE = 8;
+
+    private final KEY key;
+    private final Optional<String> header;
+    private final long interval;
+    private final long tolerance;
+    private final int maxKeys;
+    private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<Object, AtomicLong>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param key              Request attribute used as the key. PRINCIPAL and HEADER fall back to address if not available
+     * @param header           Header name, used only for KEY.HEADER
+     * @param permitsPerSecond Sustained rate per key
+     * @param burst            Bucket capacity, number of requests allowed at once
+     * @param maxKeys          Maximum number of tracked keys
+     */
+    public RateLimiter(KEY key, Optional<String> header, double permitsPerSecond, int burst, int maxKeys) {
+        this.key = key;
+        this.header = header;
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.tolerance = interval * Math.max(0, burst - 1);
+        this.maxKeys = maxKeys;
+    }
+
+    private Object keyOf(HttpExchange t) {
+        if (key == KEY.PRINCIPAL) {
+            HttpPrincipal p = t.getPrincipal();
+            if (p != null) return p.getName();
+        } else if (key == KEY.HEADER && header.isPresent()) {
+            String h = t.getRequestHeaders().getFirst(header.get());
+            if (h != null) return h;
+        }
+        InetSocketAddress a = t.getRemoteAddress();
+        return a == null ? "" : a.getAddress();
+    }
+
+    private AtomicLong bucket(Object k, long now) {
+        AtomicLong b = buckets.get(k);
+        if (b != null) return b;
+        if (buckets.size() >= maxKeys) evict(now);
+        AtomicLong prev = buckets.putIfAbsent(k, b = new AtomicLong(Long.MIN_VALUE));
+        return prev == null ? b : prev;
+    }
+
+    /**
+     * Bounded work on the request thread: removes the first full bucket among the sampled ones, or the one closest to full.
+     * The evicted key starts again with a full bucket, the approximation affects only the least loaded keys.
+     */
+    private void evict(long now) {
+        Object victim = null;
+        long oldest = 0;
+        int n = 0;
+        for (Iterator<Map.Entry<Object, AtomicLong>> i = buckets.entrySet().iterator(); i.hasNext() && n < EVICTSAMPLE; n++) {
+            Map.Entry<Object, AtomicLong> e = i.next();
+            long tat = e.getValue().get();
+            if (tat == Long.MIN_VALUE || tat - now <= 0) {
+                i.remove();
+                return;
+            }
+            if (victim == null || tat - oldest < 0) {
+                victim = e.getKey();
+                oldest = tat;
+            }
+        }
+        if (victim != null) buckets.remove(victim);
+    }
+
+    private void sweep(long now) {
+        for (Iterator<AtomicLong> i = buckets.values().iterator(); i.hasNext(); ) {
+            long tat = i.next().get();
+            if (tat == Long.MIN_VALUE || tat - now <= 0) i.remove();
+        }
+    }
+
+    /**
+     * Tries to acquire a permit for the request
+     *
+     * @param t Current exchange
+     * @return 0 if permitted, otherwise nanoseconds to wait before the next permit is available
+     */
+    public long tryAcquire(HttpExchange t) {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last > SWEEPNANOS && lastSweep.compareAndSet(last, now)) sweep(now);
+        AtomicLong b = bucket(keyOf(t), now);
+        while (true) {
+            long tat = b.get();
+            long start = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+            long wait = start - now - tolerance;
+            if (wait > 0) {
+                rejected.incrementAndGet();
+                return wait;
+            }
+            if (b.compareAndSet(tat, start + interval)) return 0;
+        }
+    }
+
+    /**
+     * @return Number of currently tracked keys
+     */
+    public int getKeyCount() {
+        return buckets.size();
+    }
+
+    /**
+     * @return Number of rejected requests
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
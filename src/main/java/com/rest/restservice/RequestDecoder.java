@@ -0,0 +1,217 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Streaming decompression of request body sent with Content-Encoding gzip or deflate (zlib).<br>
+ * The decoded stream replaces the exchange request body before the body is read, so getRequestData, getRequestBodyString
+ * and services reading the body stream directly receive decoded data. Nothing is read until the first read call.<br>
+ * Zip bomb guards: the decoded size is limited (PayloadTooLargeException, 413) and, after the first megabyte, so is
+ * the ratio of decoded to compressed bytes.<br>
+ * The size of the body as transmitted is limited as well, also for body sent without Content-Encoding.
+ */
+public final class RequestDecoder {
+
+    private static final String CONTENTENCODING = "Content-Encoding";
+    private static final long RATIOTHRESHOLD = 1024 * 1024;
+    private static final int INFLATEBUFFER = 8192;
+
+    private RequestDecoder() {
+    }
+
+    private interface IOpener {
+        InputStream open(InputStream raw) throws IOException;
+    }
+
+    /**
+     * Counts bytes read from the wire
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    /**
+     * Body as transmitted, limited size
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long count = 0;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        private void add(long n) throws IOException {
+            count += n;
+            if (count > maxBytes) throw new RestHelper.PayloadTooLargeException("Request body larger than " + maxBytes + " bytes");
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) add(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) add(n);
+            return n;
+        }
+    }
+
+    /**
+     * Decoded body, the decoder chain is opened at the first read and every read is checked against the limits
+     */
+    private static final class DecodedInputStream extends InputStream {
+        private final CountingInputStream raw;
+        private final IOpener[] openers;
+        private final long maxBytes;
+        private final int maxRatio;
+        private InputStream in = null;
+        private long count = 0;
+
+        DecodedInputStream(InputStream raw, IOpener[] openers, long maxBytes, int maxRatio) {
+            this.raw = new CountingInputStream(raw);
+            this.openers = openers;
+            this.maxBytes = maxBytes;
+            this.maxRatio = maxRatio;
+        }
+
+        private InputStream decoder() throws IOException {
+            if (in == null) {
+                InputStream s = raw;
+                for (IOpener o : openers) s = o.open(s);
+                in = s;
+            }
+            return in;
+        }
+
+        private void check() throws IOException {
+            if (count > maxBytes)
+                throw new RestHelper.PayloadTooLargeException("Decoded request body larger than " + maxBytes + " bytes");
+            if (count > RATIOTHRESHOLD && count > raw.count * maxRatio)
+                throw new RestHelper.PayloadTooLargeException("Request body compression ratio above " + maxRatio);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = decoder().read(b, off, len);
+            } catch (ZipException e) {
+                throw new RestHelper.ValidationException("Malformed compressed request body: " + e.getMessage());
+            }
+            if (n > 0) {
+                count += n;
+                check();
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) in.close();
+            else raw.close();
+        }
+    }
+
+    private static IOpener opener(String encoding) throws IOException {
+        switch (encoding) {
+            case "gzip":
+            case "x-gzip":
+                return raw -> new GZIPInputStream(raw, INFLATEBUFFER);
+            case "deflate":
+                return raw -> {
+                    Inflater inflater = new Inflater();
+                    return new InflaterInputStream(raw, inflater, INFLATEBUFFER) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            inflater.end();
+                        }
+                    };
+                };
+            default:
+                throw new RestHelper.UnsupportedContentEncodingException("Content-Encoding " + encoding + " not supported");
+        }
+    }
+
+    /**
+     * Replaces the exchange request body with size limited stream and decoded stream if the request has Content-Encoding
+     * other than identity. Nothing is read.
+     *
+     * @param t               Exchange
+     * @param maxRawBytes     Maximum size of body as transmitted, Long.MAX_VALUE: no limit
+     * @param maxDecodedBytes Maximum size of decoded body
+     * @param maxRatio        Maximum ratio of decoded to compressed size
+     * @throws IOException UnsupportedContentEncodingException if the encoding is not gzip or deflate
+     */
+    static void install(HttpExchange t, long maxRawBytes, long maxDecodedBytes, int maxRatio) throws IOException {
+        InputStream raw = t.getRequestBody();
+        if (maxRawBytes != Long.MAX_VALUE) raw = new LimitedInputStream(raw, maxRawBytes);
+        List<IOpener> openers = new ArrayList<IOpener>();
+        String header = t.getRequestHeaders().getFirst(CONTENTENCODING);
+        if (header != null) {
+            String[] encodings = header.split(",");
+            // encodings are listed in the order applied, decoding goes backwards
+            for (int i = encodings.length - 1; i >= 0; i--) {
+                String e = encodings[i].trim().toLowerCase();
+                if (e.isEmpty() || e.equals("identity")) continue;
+                openers.add(opener(e));
+            }
+        }
+        if (!openers.isEmpty()) raw = new DecodedInputStream(raw, openers.toArray(new IOpener[0]), maxDecodedBytes, maxRatio);
+        if (raw != t.getRequestBody()) t.setStreams(raw, null);
+    }
+}
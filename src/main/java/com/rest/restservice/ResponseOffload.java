@@ -0,0 +1,294 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Response transmission offload. Responses of known size (byte array or file) above the threshold are written by a small
+ * writer pool, the request worker thread returns to the executor as soon as the response is produced.<br>
+ * Every transfer is watched: if no bytes are accepted by the client within the write timeout or the average throughput
+ * falls below the minimum, the writer thread is interrupted and the connection is dropped.
+ * When the writer queue is full the response is written by the worker thread as without offload.
+ */
+public class ResponseOffload {
+
+    /**
+     * Writes the response, including sendResponseHeaders, to the exchange. The stream is the progress-counting wrapper
+     * of the exchange response body.
+     */
+    public interface IBodyWriter {
+        void write(HttpExchange t, OutputStream os) throws IOException;
+    }
+
+    private static final long WATCHMILLIS = 100;
+
+    private final long threshold;
+    private final long writeTimeoutNanos;
+    private final long minBytesPerSecond;
+    private final ThreadPoolExecutor writers;
+    private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "response-offload-watchdog");
+        th.setDaemon(true);
+        return th;
+    });
+    private final AtomicLong offloaded = new AtomicLong();
+    private final AtomicLong inline = new AtomicLong();
+    private final AtomicLong slowClients = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // transfers handed over to writers and not finished, all instances, RestServer shutdown waits for them
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param threads            Number of writer threads
+     * @param queueSize          Maximum number of responses waiting for a writer
+     * @param threshold          Minimum response size in bytes to offload, smaller responses fit in socket buffers and are written inline
+     * @param writeTimeoutMillis Maximum time without progress
+     * @param minBytesPerSecond  Minimum average throughput, enforced after the first write timeout period, 0 disables
+     */
+    public ResponseOffload(int threads, int queueSize, long threshold, long writeTimeoutMillis, long minBytesPerSecond) {
+        this.threshold = threshold;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        this.minBytesPerSecond = minBytesPerSecond;
+        final AtomicInteger no = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+            Thread th = new Thread(r, "response-writer-" + no.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+        watchdog.scheduleWithFixedDelay(this::watch, WATCHMILLIS, WATCHMILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int KILLED = 2;
+
+    /**
+     * Transfer in progress, the state is guarded by the object monitor, so the writer thread is never interrupted after the transfer is done
+     */
+    private static class Transfer extends OutputStream {
+        final OutputStream os;
+        final Thread thread;
+        final long start = System.nanoTime();
+        volatile long bytes = 0;
+        volatile long progress = start;
+        int state = RUNNING;
+
+        Transfer(OutputStream os, Thread thread) {
+            this.os = os;
+            this.thread = thread;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            os.write(b);
+            bytes++;
+            progress = System.nanoTime();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            os.write(b, off, len);
+            bytes += len;
+            progress = System.nanoTime();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            os.close();
+        }
+    }
+
+    /**
+     * @param length Response size in bytes
+     * @return true if the response of this size should be offloaded
+     */
+    boolean accepts(long length) {
+        return length >= threshold;
+    }
+
+    /**
+     * Hands the response over to the writer pool
+     *
+     * @param t      Exchange, closed or aborted by the writer
+     * @param writer Response writer
+     * @param done   Called after the transfer, successful or not
+     * @return false if the queue is full, nothing is done, the caller should write the response itself
+     */
+    boolean submit(HttpExchange t, IBodyWriter writer, Runnable done) {
+        pending.incrementAndGet();
+        try {
+            writers.execute(() -> transmit(t, writer, done));
+        } catch (RejectedExecutionException e) {
+            finished();
+            inline.incrementAndGet();
+            return false;
+        }
+        offloaded.incrementAndGet();
+        return true;
+    }
+
+    private void transmit(HttpExchange t, IBodyWriter writer, Runnable done) {
+        Transfer tr = null;
+        try {
+            tr = new Transfer(t.getResponseBody(), Thread.currentThread());
+            active.add(tr);
+            writer.write(t, tr);
+            t.close();
+        } catch (Exception e) {
+            if (finish(tr)) {
+                slowClients.incrementAndGet();
+                RestLogger.limited(Level.WARNING, "Slow client disconnected " + t.getRemoteAddress() + " after " + tr.bytes + " bytes", null);
+            } else {
+                failed.incrementAndGet();
+                RestLogger.limited(Level.WARNING, "Response transfer failed", e);
+            }
+            // blocking channel of the JDK server is already closed by the interruption
+            RestHelper.abort(t);
+            return;
+        } finally {
+            done.run();
+            finished();
+        }
+        if (finish(tr)) {
+            // killed while closing the exchange, the tail of the response is lost
+            slowClients.incrementAndGet();
+        }
+    }
+
+    private static void finished() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return Number of responses handed over to writers and not finished yet, all instances
+     */
+    static int getPendingTransfers() {
+        return pending.get();
+    }
+
+    /**
+     * Waits until all responses handed over to writers are finished
+     *
+     * @param deadline System.currentTimeMillis() of the deadline
+     * @return true if no transfer is pending
+     * @throws InterruptedException
+     */
+    static boolean awaitTransfers(long deadline) throws InterruptedException {
+        synchronized (pending) {
+            long now;
+            while (pending.get() > 0 && (now = System.currentTimeMillis()) < deadline) pending.wait(deadline - now);
+        }
+        return pending.get() == 0;
+    }
+
+    /**
+     * Completes the transfer, clears interruption set by the watchdog
+     *
+     * @return true if the transfer was killed by the watchdog
+     */
+    private boolean finish(Transfer tr) {
+        if (tr == null) return false;
+        active.remove(tr);
+        boolean killed;
+        synchronized (tr) {
+            killed = tr.state == KILLED;
+            tr.state = DONE;
+        }
+        Thread.interrupted();
+        return killed;
+    }
+
+    private void watch() {
+        long now = System.nanoTime();
+        for (Transfer tr : active) {
+            long elapsed = now - tr.start;
+            boolean slow = now - tr.progress > writeTimeoutNanos ||
+                    (minBytesPerSecond > 0 && elapsed > writeTimeoutNanos && tr.bytes * 1_000_000_000.0 / elapsed < minBytesPerSecond);
+            if (!slow) continue;
+            synchronized (tr) {
+                if (tr.state == RUNNING) {
+                    tr.state = KILLED;
+                    tr.thread.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of responses written by the writer pool
+     */
+    public long getOffloaded() {
+        return offloaded.get();
+    }
+
+    /**
+     * @return Number of responses written inline because the writer queue was full
+     */
+    public long getInline() {
+        return inline.get();
+    }
+
+    /**
+     * @return Number of connections dropped because of write timeout or throughput below the minimum
+     */
+    public long getSlowClientDisconnects() {
+        return slowClients.get();
+    }
+
+    /**
+     * @return Number of transfers failed for other reasons, for instance connection closed by the client
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return Number of transfers in progress
+     */
+    public int getActive() {
+        return active.size();
+    }
+
+    /**
+     * @return Number of responses waiting for a writer
+     */
+    public int getQueued() {
+        return writers.getQueue().size();
+    }
+}
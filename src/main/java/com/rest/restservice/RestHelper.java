@@ -14,16 +14,32 @@ package com.rest.restservice;
  */
 
 
+import com.rest.restservice.jfr.BodyReadEvent;
+import com.rest.restservice.jfr.JfrEvents;
+import com.rest.restservice.jfr.RequestEvent;
+import com.rest.restservice.jfr.ResponseWriteEvent;
+import com.rest.restservice.nio.NioHttpExchange;
+import com.rest.restservice.tracing.Span;
+import com.rest.restservice.tracing.SpanContext;
+import com.rest.restservice.tracing.Tracer;
 import com.sun.net.httpserver.*;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.logging.Level;
 import java.sql.Date;
 
@@ -45,9 +61,9 @@ public class RestHelper {
     public static final String DELETE = "DELETE";
     public static final String OPTIONS = "OPTIONS";
 
-    private static final String BOUNDARY = "974767299852498929531610575";
-    private static final String BOUNDARYSEP = "--" + BOUNDARY;
-    private static final String BOUNDARYCLOSING = BOUNDARYSEP + "--";
+    static final String BOUNDARY = "974767299852498929531610575";
+    static final String BOUNDARYSEP = "--" + BOUNDARY;
+    static final String BOUNDARYCLOSING = BOUNDARYSEP + "--";
 
 
     private static Authenticator auth = null;
@@ -56,13 +72,462 @@ public class RestHelper {
         RestHelper.auth = auth;
     }
 
+    private static final List<Filter> filters = new ArrayList<Filter>();
+
+    private static final Map<String, RestServiceHelper> services = new ConcurrentHashMap<String, RestServiceHelper>();
+
+    /**
+     * Finds registered service for the request path, the same rule as HttpServer context matching: the longest registered prefix
+     *
+     * @param path request path
+     * @return service or empty if not found
+     */
+    static Optional<RestServiceHelper> findService(String path) {
+        String best = null;
+        for (String p : services.keySet())
+            if (path.startsWith(p) && (best == null || p.length() > best.length())) best = p;
+        return best == null ? Optional.empty() : Optional.of(services.get(best));
+    }
+
+    /**
+     * Adds filter attached to every service registered afterwards by registerService
+     *
+     * @param filter com.sun.net.httpserver.Filter
+     */
+    public static synchronized void addFilter(Filter filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * Removes filter, services already registered are not affected
+     *
+     * @param filter com.sun.net.httpserver.Filter
+     */
+    public static synchronized void removeFilter(Filter filter) {
+        filters.remove(filter);
+    }
+
+    /**
+     * Response stream of JDK server exchange which can be aborted. After abort the writes fail and close throws, the JDK server
+     * then closes the connection instead of finishing the response (for instance writing the terminating chunk), so the client
+     * never takes the truncated response as complete.
+     */
+    static final class AbortableStream extends OutputStream {
+        private final OutputStream os;
+        private volatile boolean aborted;
+
+        AbortableStream(OutputStream os, boolean aborted) {
+            this.os = os;
+            this.aborted = aborted;
+        }
+
+        private void check() throws IOException {
+            if (aborted) throw new IOException("Response aborted");
+        }
+
+        void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check();
+            os.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check();
+            os.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            check();
+            os.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            check();
+            os.close();
+        }
+    }
+
+    /**
+     * Installs abortable response stream, the exchange is going to be completed outside the server thread
+     *
+     * @param t Exchange
+     */
+    static void guard(HttpExchange t) {
+        if (t instanceof NioHttpExchange || t instanceof MemoryHttpExchange || t.getResponseBody() instanceof AbortableStream) return;
+        t.setStreams(null, new AbortableStream(t.getResponseBody(), false));
+    }
+
+    /**
+     * Drops the exchange which cannot be completed: closes the connection (JDK server, NIO HTTP/1.1) or resets the HTTP/2 stream.
+     * The response already started is never finished.
+     *
+     * @param t Exchange
+     */
+    static void abort(HttpExchange t) {
+        if (t instanceof NioHttpExchange) {
+            ((NioHttpExchange) t).abort();
+            return;
+        }
+        OutputStream os = t.getResponseBody();
+        if (os instanceof AbortableStream) ((AbortableStream) os).abort();
+        else t.setStreams(null, new AbortableStream(os, true));
+        // the exchange close fails on the aborted stream and the JDK server closes the connection
+        t.close();
+    }
+
+    /**
+     * Adds the value to Vary response header, values already set by CORS, content negotiation or encoding are kept
+     *
+     * @param h     Response headers
+     * @param field Request header the response depends on
+     */
+    static void addVary(Headers h, String field) {
+        List<String> vary = h.get("Vary");
+        if (vary != null)
+            for (String v : vary)
+                for (String f : v.split(","))
+                    if (f.trim().equalsIgnoreCase(field)) return;
+        h.add("Vary", field);
+    }
+
     /**
      * public values, used HTTP code responses
      */
     public static final int HTTPOK = HttpURLConnection.HTTP_OK;
+    public static final int HTTPACCEPTED = HttpURLConnection.HTTP_ACCEPTED;
     public static final int HTTPNODATA = HttpURLConnection.HTTP_NO_CONTENT;
+    public static final int HTTPPARTIALCONTENT = HttpURLConnection.HTTP_PARTIAL;
     public static final int HTTPMETHODNOTALLOWED = HttpURLConnection.HTTP_BAD_METHOD;
     public static final int HTTPBADREQUEST = HttpURLConnection.HTTP_BAD_REQUEST;
+    public static final int HTTPUNAVAILABLE = HttpURLConnection.HTTP_UNAVAILABLE;
+    public static final int HTTPNOTFOUND = HttpURLConnection.HTTP_NOT_FOUND;
+    public static final int HTTPNOTMODIFIED = HttpURLConnection.HTTP_NOT_MODIFIED;
+    public static final int HTTPINTERNALERROR = HttpURLConnection.HTTP_INTERNAL_ERROR;
+    public static final int HTTPPAYLOADTOOLARGE = HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+    public static final int HTTPUNSUPPORTEDMEDIATYPE = HttpURLConnection.HTTP_UNSUPPORTED_TYPE;
+    public static final int HTTPRANGENOTSATISFIABLE = 416;
+    public static final int HTTPTOOMANYREQUESTS = 429;
+    public static final int HTTPGATEWAYTIMEOUT = HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+
+    /**
+     * Request header shortening the service deadline, milliseconds. Values not above zero are ignored,
+     * values above one day are capped.
+     */
+    public static final String DEADLINEHEADER = "X-Request-Timeout";
+
+    private static final long NODEADLINE = Long.MAX_VALUE;
+    // keeps the deadline far from nanoTime overflow
+    private static final long MAXDEADLINEMILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Thrown when the request deadline passed, response writing is cancelled
+     */
+    public static class DeadlineExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Hook returned by IQueryInterface.interruptOnDeadline, close it after the blocking call
+     */
+    public interface IInterruptHook extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Validation failure reported as 400 without stack trace. Cheap to throw from getParams or servicehandle
+     * for malformed client requests.
+     */
+    public static class ValidationException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ValidationException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Request body above the limit, reported as 413 without stack trace
+     */
+    public static class PayloadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public PayloadTooLargeException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Request Content-Encoding cannot be decoded, reported as 415 without stack trace
+     */
+    public static class UnsupportedContentEncodingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedContentEncodingException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    // preencoded bodies of frequent error responses
+    private static final byte[] TOOMANYREQUESTSBODY = "Too many requests".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DEADLINEBEFOREBODY = "Deadline exceeded before processing".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DEADLINEBODY = "Deadline exceeded".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NODATABODY = "Request data expected but not found any".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] JOBQUEUEFULLBODY = "Job queue full".getBytes(StandardCharsets.UTF_8);
+
+    private static final RestParams ERRORPARAMS = new RestParams(GET, Optional.empty(), false, Collections.<String>emptyList());
+
+    /**
+     * Context used to report errors before the REST call specification is known
+     */
+    private static final class ErrorContext implements IQueryInterface {
+        private final HttpExchange t;
+
+        private ErrorContext(HttpExchange t) {
+            this.t = t;
+        }
+
+        @Override
+        public Map<String, ParamValue> getValues() {
+            return null;
+        }
+
+        @Override
+        public RestParams getRestParams() {
+            return ERRORPARAMS;
+        }
+
+        @Override
+        public HttpExchange getT() {
+            return t;
+        }
+
+        @Override
+        public ByteBuffer getRequestData() {
+            return null;
+        }
+    }
+
+    /**
+     * Content-Type value of the response content
+     *
+     * @param content Response content
+     * @return MIME type
+     */
+    public static String mimeType(RestParams.CONTENT content) {
+        switch (content) {
+            case JSON:
+                return "application/json";
+            case TEXT:
+                return "text/plain";
+            case ZIP:
+                return "application/zip";
+            case JS:
+                return "text/javascript";
+            case XML:
+                return "application/xml";
+            case MIXED:
+                return "multipart/mixed;boundary=" + BOUNDARY;
+            case EVENTS:
+                return "text/event-stream";
+            case CBOR:
+                return "application/cbor";
+            case COLUMNAR:
+                return "application/vnd.restservice.columnar";
+        }
+        return "application/octet-stream";
+    }
+
+    /**
+     * Selects response content from the declared content and alternatives according to Accept header.
+     * The declared content is preferred in case of tie and used if nothing is acceptable.
+     */
+    private static Optional<RestParams.CONTENT> negotiate(HttpExchange t, RestParams pars) {
+        String accept = t.getRequestHeaders().getFirst("Accept");
+        if (accept == null || pars.getResponseContent().isEmpty() || pars.getAlternativeContent().isEmpty())
+            return pars.getResponseContent();
+        RestParams.CONTENT best = pars.getResponseContent().get();
+        double bestq = quality(accept, best);
+        for (RestParams.CONTENT c : pars.getAlternativeContent()) {
+            double q = quality(accept, c);
+            if (q > bestq) {
+                best = c;
+                bestq = q;
+            }
+        }
+        return Optional.of(best);
+    }
+
+    private static double quality(String accept, RestParams.CONTENT content) {
+        String mime = mimeType(content);
+        int semi = mime.indexOf(';');
+        if (semi != -1) mime = mime.substring(0, semi);
+        String type = mime.substring(0, mime.indexOf('/'));
+        double q = 0;
+        int specificity = -1;
+        for (String range : accept.split(",")) {
+            String[] p = range.trim().split(";");
+            String r = p[0].trim().toLowerCase();
+            int spec;
+            if (r.equals(mime)) spec = 2;
+            else if (r.equals(type + "/*")) spec = 1;
+            else if (r.equals("*/*")) spec = 0;
+            else continue;
+            if (spec < specificity) continue;
+            double rq = 1;
+            for (int i = 1; i < p.length; i++) {
+                String a = p[i].trim();
+                if (a.startsWith("q=")) {
+                    try {
+                        rq = Double.parseDouble(a.substring(2));
+                    } catch (NumberFormatException e) {
+                        rq = 0;
+                    }
+                }
+            }
+            specificity = spec;
+            q = rq;
+        }
+        return q;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Accumulates values of array query parameter given as repeated keys or comma separated values.
+     * INT_ARRAY and DOUBLE_ARRAY values are parsed directly into primitive arrays.
+     */
+    private static final class ArrayBuilder {
+        private final PARAMTYPE type;
+        private final int maxLength;
+        private int[] ints;
+        private double[] doubles;
+        private final List<Object> objects = new ArrayList<Object>();
+        private SimpleDateFormat dateFormat;
+        private int size = 0;
+
+        private ArrayBuilder(PARAMTYPE type, int maxLength) {
+            this.type = type;
+            this.maxLength = maxLength;
+            if (type == PARAMTYPE.INT_ARRAY) ints = new int[Math.min(16, maxLength)];
+            if (type == PARAMTYPE.DOUBLE_ARRAY) doubles = new double[Math.min(16, maxLength)];
+        }
+
+        /**
+         * Adds comma separated values
+         *
+         * @return Error message or null if all values are correct
+         */
+        private String add(String name, String val) {
+            // empty value (ids=) adds nothing
+            if (val.isEmpty()) return null;
+            int start = 0;
+            while (start <= val.length()) {
+                int end = val.indexOf(',', start);
+                if (end == -1) end = val.length();
+                if (size == maxLength) return "Parameter " + name + " has more than " + maxLength + " values";
+                try {
+                    addValue(val, start, end);
+                } catch (NumberFormatException e) {
+                    return "Parameter " + name + "?" + val.substring(start, end) + " incorrect " + (type == PARAMTYPE.INT_ARRAY ? "int" : "double") + " value";
+                } catch (ParseException e) {
+                    return "Parameter " + name + "?" + val.substring(start, end) + " incorrect date format, expected yyyy-MM-dd";
+                }
+                start = end + 1;
+            }
+            return null;
+        }
+
+        private void addValue(String val, int start, int end) throws ParseException {
+            switch (type) {
+                case INT_ARRAY:
+                    if (size == ints.length) ints = Arrays.copyOf(ints, Math.min(maxLength, size * 2));
+                    ints[size] = Integer.parseInt(val, start, end, 10);
+                    break;
+                case DOUBLE_ARRAY:
+                    if (size == doubles.length) doubles = Arrays.copyOf(doubles, Math.min(maxLength, size * 2));
+                    doubles[size] = Double.parseDouble(val.substring(start, end));
+                    break;
+                case DATE_ARRAY:
+                    if (dateFormat == null) dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+                    objects.add(new Date(dateFormat.parse(val.substring(start, end)).getTime()));
+                    break;
+                default:
+                    objects.add(val.substring(start, end));
+            }
+            size++;
+        }
+
+        private ParamValue build() {
+            switch (type) {
+                case INT_ARRAY:
+                    return new ParamValue(Arrays.copyOf(ints, size));
+                case DOUBLE_ARRAY:
+                    return new ParamValue(Arrays.copyOf(doubles, size));
+                case DATE_ARRAY:
+                    return new ParamValue(objects.toArray(new Date[0]));
+                default:
+                    return new ParamValue(objects.toArray(new String[0]));
+            }
+        }
+    }
+
+    private static class DeadlineTimer {
+        static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "deadline-timer");
+            th.setDaemon(true);
+            return th;
+        });
+    }
 
     /**
      * Helper method to read InputStream to String
@@ -113,6 +578,53 @@ public class RestHelper {
          * @return Request data if expected and exists
          */
         ByteBuffer getRequestData();
+
+        /**
+         * @return true if the exchange was detached by produceStreamingResponse and is not closed after servicehandle
+         */
+        default boolean isDetached() {
+            return false;
+        }
+
+        /**
+         * @return Response content negotiated with Accept header, by default the content declared in RestParams
+         */
+        default Optional<RestParams.CONTENT> getResponseContent() {
+            return getRestParams().getResponseContent();
+        }
+
+        /**
+         * @return Trace context of the request, empty if tracing is disabled. Use SpanContext.toTraceparent() to propagate downstream.
+         */
+        default Optional<SpanContext> getSpanContext() {
+            Object span = getT().getAttribute(Tracer.ATTRIBUTE);
+            return span instanceof Span ? Optional.ofNullable(((Span) span).getContext()) : Optional.empty();
+        }
+
+        /**
+         * @return Milliseconds remaining to the request deadline, Long.MAX_VALUE if no deadline
+         */
+        default long getRemainingMillis() {
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * @return true if the request deadline passed
+         */
+        default boolean isExpired() {
+            return getRemainingMillis() <= 0;
+        }
+
+        /**
+         * Interrupts the current thread when the deadline passes. Use with try-with-resources around blocking calls,
+         * InterruptedException thrown by servicehandle after the deadline is reported as 504.
+         *
+         * @return Hook, cancels the interruption when closed
+         */
+        default IInterruptHook interruptOnDeadline() {
+            return () -> {
+            };
+        }
     }
 
     private static class QueryInterface implements IQueryInterface {
@@ -120,12 +632,25 @@ public class RestHelper {
         private final Map<String, ParamValue> values = new HashMap<String, ParamValue>();
         private final RestParams pars;
         private final HttpExchange t;
-        private final ByteBuffer data;
-
-        private QueryInterface(RestParams pars, HttpExchange t, ByteBuffer data) {
+        // set after the query is validated
+        private ByteBuffer data;
+        private volatile boolean detached = false;
+        // request accounting, held by the offload writer until the response is written
+        private RequestScope scope = null;
+        private final long deadline;
+        private final Optional<RestParams.CONTENT> content;
+
+        private QueryInterface(RestParams pars, HttpExchange t, ByteBuffer data, long deadline) {
             this.pars = pars;
             this.t = t;
             this.data = data;
+            this.deadline = deadline;
+            this.content = negotiate(t, pars);
+        }
+
+        @Override
+        public Optional<RestParams.CONTENT> getResponseContent() {
+            return content;
         }
 
         @Override
@@ -148,6 +673,65 @@ public class RestHelper {
             return data;
         }
 
+        @Override
+        public boolean isDetached() {
+            return detached;
+        }
+
+        @Override
+        public long getRemainingMillis() {
+            if (deadline == NODEADLINE) return Long.MAX_VALUE;
+            return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+
+        @Override
+        public IInterruptHook interruptOnDeadline() {
+            if (deadline == NODEADLINE) return IQueryInterface.super.interruptOnDeadline();
+            final Thread th = Thread.currentThread();
+            final AtomicBoolean active = new AtomicBoolean(true);
+            final ScheduledFuture<?> f = DeadlineTimer.TIMER.schedule(() -> {
+                synchronized (active) {
+                    if (active.get()) th.interrupt();
+                }
+            }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            return () -> {
+                synchronized (active) {
+                    active.set(false);
+                }
+                f.cancel(false);
+                // clear interruption not consumed by the blocking call
+                Thread.interrupted();
+            };
+        }
+
+    }
+
+    /**
+     * Request accounting (in-flight registry entry, JFR request event) ended by the last holder: the handler thread or the
+     * offload writer finishing the detached response
+     */
+    private static final class RequestScope {
+        private static final AtomicIntegerFieldUpdater<RequestScope> HOLDERS = AtomicIntegerFieldUpdater.newUpdater(RequestScope.class, "holders");
+        private final InFlightRegistry.Entry entry;
+        private final RequestEvent event;
+        private final HttpExchange t;
+        private volatile int holders = 1;
+
+        RequestScope(InFlightRegistry.Entry entry, RequestEvent event, HttpExchange t) {
+            this.entry = entry;
+            this.event = event;
+            this.t = t;
+        }
+
+        void retain() {
+            HOLDERS.incrementAndGet(this);
+        }
+
+        void release() {
+            if (HOLDERS.decrementAndGet(this) > 0) return;
+            InFlightRegistry.end(entry);
+            JfrEvents.endRequest(event, t);
+        }
     }
 
     /**
@@ -155,6 +739,7 @@ public class RestHelper {
      */
     abstract public static class RestServiceHelper implements HttpHandler {
         private final String url;
+        private volatile ServiceOptions options = new ServiceOptions();
 
         /**
          * Abstract method to be implemented. Is called only once after the REST query was received and is valid during current call.
@@ -178,6 +763,30 @@ public class RestHelper {
         public abstract void servicehandle(IQueryInterface v) throws IOException, InterruptedException;
 
 
+        /**
+         * Request deadline, service default shortened by DEADLINEHEADER, measured from the moment the request was queued
+         *
+         * @return System.nanoTime() of the deadline or NODEADLINE
+         */
+        private long deadline(HttpExchange httpExchange, RestParams prest) {
+            long millis = prest.getDeadlineMillis().orElse(NODEADLINE);
+            String h = httpExchange.getRequestHeaders().getFirst(DEADLINEHEADER);
+            if (h != null) {
+                long hm = 0;
+                try {
+                    hm = Long.parseLong(h.trim());
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+                if (hm > 0) millis = Math.min(millis, hm);
+                else RestLogger.limited(Level.WARNING, DEADLINEHEADER + " incorrect value " + h + " ignored", null);
+            }
+            if (millis == NODEADLINE) return NODEADLINE;
+            millis = Math.min(millis, MAXDEADLINEMILLIS);
+            long start = DeadlineExecutor.enqueuedAt().orElse(System.nanoTime());
+            return start + TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+
         /**
          * Abstract method enforced by com.sun.net.httpserver.HttpHandler abstract class.https://stackoverflow.blog/2020/04/29/more-than-qa-how-the-stack-overflow-team-uses-stack-overflow-for-teams/?cb=1
          *
@@ -186,42 +795,99 @@ public class RestHelper {
          */
         @Override
         public void handle(HttpExchange httpExchange) throws IOException {
+            RequestEvent event = JfrEvents.beginRequest();
+            RequestScope scope = new RequestScope(InFlightRegistry.begin(url, httpExchange, options.getSlowRequestMillis()), event, httpExchange);
+            try {
+                handleRequest(httpExchange, scope);
+            } finally {
+                // the event may be ended by the offload writer, not in this thread
+                JfrEvents.detachRequest();
+                scope.release();
+            }
+        }
+
+        private void handleRequest(HttpExchange httpExchange, RequestScope scope) throws IOException {
             // main logic of REST service handling
+            InFlightRegistry.Entry entry = scope.entry;
+            boolean detached = false;
+            long deadline = NODEADLINE;
             try {
+                // rate limit before anything else, request body is not touched
+                if (options.getRateLimiter().isPresent()) {
+                    long wait = options.getRateLimiter().get().tryAcquire(httpExchange);
+                    if (wait > 0) {
+                        httpExchange.getResponseHeaders().set("Retry-After", Long.toString(Math.max(1, (wait + 999_999_999L) / 1_000_000_000L)));
+                        produceError(new ErrorContext(httpExchange), TOOMANYREQUESTSBODY, HTTPTOOMANYREQUESTS);
+                        httpExchange.close();
+                        return;
+                    }
+                }
+                // CORS preflight, neither REST call specification nor request body needed
+                if (preflight(httpExchange)) {
+                    httpExchange.close();
+                    return;
+                }
                 // call custom (abstract) method to get REST service specification
-                RestParams prest = getParams(httpExchange);
+                RestParams prest;
+                try (Span span = Tracer.startSpan("getParams")) {
+                    prest = getParams(httpExchange);
+                    span.setAttribute("rest.method", prest.getRequestMethod());
+                }
+                deadline = deadline(httpExchange, prest);
+                if (deadline != NODEADLINE && deadline - System.nanoTime() <= 0) {
+                    produceError(new ErrorContext(httpExchange), DEADLINEBEFOREBODY, HTTPGATEWAYTIMEOUT);
+                    httpExchange.close();
+                    return;
+                }
+                // compressed request body is decoded while read, size limits are enforced while read
+                RequestDecoder.install(httpExchange, options.getMaxBodyBytes(), options.getMaxDecodedBytes(), options.getMaxCompressionRatio());
                 // reads and validates query parameters, if any error found (for instance: incorrect query parameter value), return proper HTTP error code
-                Optional<IQueryInterface> v = verifyURL(httpExchange, prest);
+                Optional<IQueryInterface> v;
+                entry.phase(InFlightRegistry.PHASE.VALIDATE);
+                try (Span span = Tracer.startSpan("verifyURL")) {
+                    v = verifyURL(httpExchange, prest, deadline, scope);
+                    // rejected request, the error response is already sent
+                    if (v.isEmpty()) span.setAttribute("http.status_code", httpExchange.getResponseCode());
+                }
                 // if any error found (for instance: incorrect query parameter value), return proper HTTP error code
                 if (!v.isPresent()) return;
                 // call abstract method, custom REST service logic
-                servicehandle(v.get());
+                entry.phase(InFlightRegistry.PHASE.HANDLE);
+                if (options.getJobExecutor().isPresent()) submitJob(options.getJobExecutor().get(), (QueryInterface) v.get());
+                else try (Span span = Tracer.startSpan("servicehandle")) {
+                    span.setAttribute("rest.service", url);
+                    servicehandle(v.get());
+                }
+                detached = v.get().isDetached();
             } catch (Exception e) {
-                RestLogger.L.log(Level.SEVERE, "Error while handling service", e);
-                // create ad hoc class
-                produceResponse(new IQueryInterface() {
-                    @Override
-                    public Map<String, ParamValue> getValues() {
-                        return null;
-                    }
-
-                    @Override
-                    public RestParams getRestParams() {
-                        return new RestParams(GET, Optional.empty(), false, new ArrayList<String>());
-                    }
-
-                    @Override
-                    public HttpExchange getT() {
-                        return httpExchange;
-                    }
-
-                    @Override
-                    public ByteBuffer getRequestData() {
-                        return null;
-                    }
-                }, Optional.of(e.getMessage()), HTTPBADREQUEST);
+                Tracer.current().ifPresent(span -> span.setError(e.getMessage()));
+                if (httpExchange.getResponseCode() != -1) {
+                    // response already started, cannot report the error, the server aborts the connection
+                    RestLogger.limited(Level.WARNING, "Response aborted", e);
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                if (e instanceof DeadlineExceededException || (e instanceof InterruptedException && deadline != NODEADLINE && deadline - System.nanoTime() <= 0)) {
+                    RestLogger.limited(Level.WARNING, "Deadline exceeded", null);
+                    produceError(new ErrorContext(httpExchange), DEADLINEBODY, HTTPGATEWAYTIMEOUT);
+                } else if (e instanceof PayloadTooLargeException) {
+                    RestLogger.limited(Level.WARNING, e.getMessage(), null);
+                    JfrEvents.validationFailure(httpExchange, HTTPPAYLOADTOOLARGE, e.getMessage());
+                    produceError(new ErrorContext(httpExchange), e.getMessage().getBytes(StandardCharsets.UTF_8), HTTPPAYLOADTOOLARGE);
+                } else if (e instanceof UnsupportedContentEncodingException) {
+                    RestLogger.limited(Level.WARNING, e.getMessage(), null);
+                    JfrEvents.validationFailure(httpExchange, HTTPUNSUPPORTEDMEDIATYPE, e.getMessage());
+                    produceError(new ErrorContext(httpExchange), e.getMessage().getBytes(StandardCharsets.UTF_8), HTTPUNSUPPORTEDMEDIATYPE);
+                } else if (e instanceof ValidationException) {
+                    RestLogger.limited(Level.WARNING, e.getMessage(), null);
+                    JfrEvents.validationFailure(httpExchange, HTTPBADREQUEST, e.getMessage());
+                    produceError(new ErrorContext(httpExchange), String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8), HTTPBADREQUEST);
+                } else {
+                    RestLogger.limited(Level.SEVERE, "Error while handling service", e);
+                    produceError(new ErrorContext(httpExchange), String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8), HTTPBADREQUEST);
+                }
             }
-            httpExchange.close();
+            // streaming response, the exchange is closed by the stream owner
+            if (!detached) httpExchange.close();
         }
 
         /**
@@ -233,43 +899,107 @@ public class RestHelper {
             this.url = url;
         }
 
-        private void addCORSHeader(IQueryInterface v) {
+        /**
+         * Asynchronous job mode: the request body is read, the job is queued and 202 with the job location is returned at once.
+         * The servicehandle runs later in the job thread, the response is captured by the job executor.
+         *
+         * @param jobs Job executor
+         * @param v    Validated request
+         * @throws IOException
+         */
+        private void submitJob(JobExecutor jobs, QueryInterface v) throws IOException {
             HttpExchange t = v.getT();
-            RestParams pars = v.getRestParams();
+            ByteBuffer b = v.data != null ? v.data : getRequestData(t);
+            Optional<String[]> job = jobs.submit(url, t, b.array(), ex -> {
+                QueryInterface jv = new QueryInterface(v.pars, ex, b.duplicate(), NODEADLINE);
+                jv.values.putAll(v.values);
+                try (Span span = Tracer.startSpan("servicehandle")) {
+                    span.setAttribute("rest.service", url);
+                    servicehandle(jv);
+                }
+            });
+            if (job.isEmpty()) {
+                t.getResponseHeaders().set("Retry-After", "1");
+                produceError(v, JOBQUEUEFULLBODY, HTTPUNAVAILABLE);
+                return;
+            }
+            addCORSHeader(v);
+            byte[] body = job.get()[1].getBytes(StandardCharsets.UTF_8);
+            t.getResponseHeaders().set("Location", job.get()[0]);
+            t.getResponseHeaders().set("Content-Type", mimeType(RestParams.CONTENT.JSON));
+            t.sendResponseHeaders(HTTPACCEPTED, body.length);
+            OutputStream os = t.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+
+        private static String methodsAllowed(RestParams pars) {
             StringBuilder bui = new StringBuilder(OPTIONS);
             for (String m : pars.getMethodsAllowed()) bui.append(", " + m);
-            t.getResponseHeaders().set("Access-Control-Allow-Methods", bui.toString());
-            t.getResponseHeaders().set("Allow:", bui.toString());
+            return bui.toString();
+        }
+
+        private static String headersAllowed(RestParams pars) {
             String headersAllowed = "Access-Control-Allow-Headers, Origin, X-Requested-With, Content-Type, Access-Control-Request-Method, Access-Control-Request-Headers, Authorization";
             if (pars.getHeadersAllowed().isPresent())
                 headersAllowed = headersAllowed + "," + pars.getHeadersAllowed().get();
-            // RestLogger.L.info("Headers allowed: " + headersAllowed);
-            t.getResponseHeaders().set("Access-Control-Allow-Headers", headersAllowed);
-            if (pars.isCrossedAllowed()) {
+            return headersAllowed;
+        }
+
+        private void addOriginHeader(HttpExchange t, RestParams pars) {
+            if (options.getCors().isPresent())
+                options.getCors().get().addOriginHeaders(t.getResponseHeaders(), t.getRequestHeaders().getFirst("Origin"));
+            else if (pars.isCrossedAllowed()) {
                 t.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
             }
-            if (pars.getResponseContent().isPresent()) {
-                switch (pars.getResponseContent().get()) {
-                    case JSON:
-                        t.getResponseHeaders().set("Content-Type", "application/json");
-                        break;
-                    case TEXT:
-                        t.getResponseHeaders().set("Content-Type", "text/plain");
-                        break;
-                    case ZIP:
-                        t.getResponseHeaders().set("Content-Type", "application/zip");
-                        break;
-                    case JS:
-                        t.getResponseHeaders().set("Content-Type", "text/javascript");
-                        break;
-                    case XML:
-                        t.getResponseHeaders().set("Content-Type", "application/xml");
-                        break;
-                    case MIXED:
-                        t.getResponseHeaders().set("Content-Type", "multipart/mixed;boundary=" + BOUNDARY);
-                        break;
-                }
+        }
+
+        // preflight response headers computed from the first getParams, the service CORS specification is static
+        private volatile Headers preflightHeaders = null;
+        private volatile boolean preflightCrossed = false;
+
+        /**
+         * CORS preflight fast path: OPTIONS with Access-Control-Request-Method is answered with precomputed headers,
+         * the request body is not read and getParams is called only for the first preflight
+         *
+         * @return true if the preflight was answered
+         */
+        private boolean preflight(HttpExchange t) throws IOException {
+            if (!OPTIONS.equals(t.getRequestMethod()) || t.getRequestHeaders().getFirst("Access-Control-Request-Method") == null)
+                return false;
+            Headers h = preflightHeaders;
+            if (h == null) {
+                RestParams pars = getParams(t);
+                h = new Headers();
+                h.set("Access-Control-Allow-Methods", methodsAllowed(pars));
+                h.set("Access-Control-Allow-Headers", headersAllowed(pars));
+                if (options.getCors().isPresent() && options.getCors().get().getMaxAgeSeconds() >= 0)
+                    h.set("Access-Control-Max-Age", Long.toString(options.getCors().get().getMaxAgeSeconds()));
+                preflightCrossed = pars.isCrossedAllowed();
+                preflightHeaders = h;
             }
+            t.getResponseHeaders().putAll(h);
+            if (options.getCors().isPresent())
+                options.getCors().get().addOriginHeaders(t.getResponseHeaders(), t.getRequestHeaders().getFirst("Origin"));
+            else if (preflightCrossed) t.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            t.sendResponseHeaders(HTTPNODATA, -1);
+            return true;
+        }
+
+        private void addCORSHeader(IQueryInterface v) {
+            // every response starts here
+            if (v instanceof QueryInterface && ((QueryInterface) v).scope != null) ((QueryInterface) v).scope.entry.phase(InFlightRegistry.PHASE.WRITE);
+            HttpExchange t = v.getT();
+            RestParams pars = v.getRestParams();
+            String methods = methodsAllowed(pars);
+            t.getResponseHeaders().set("Access-Control-Allow-Methods", methods);
+            t.getResponseHeaders().set("Allow:", methods);
+            // RestLogger.L.info("Headers allowed: " + headersAllowed);
+            t.getResponseHeaders().set("Access-Control-Allow-Headers", headersAllowed(pars));
+            addOriginHeader(t, pars);
+            Optional<RestParams.CONTENT> content = v.getResponseContent();
+            if (content.isPresent()) t.getResponseHeaders().set("Content-Type", mimeType(content.get()));
+            if (!pars.getAlternativeContent().isEmpty()) addVary(t.getResponseHeaders(), "Accept");
             t.getResponseHeaders().set("charset", "utf-8");
         }
 
@@ -282,27 +1012,98 @@ public class RestHelper {
                 t.sendResponseHeaders(HTTPNODATA, 0);
                 return;
             }
+            writeBody(v, t, t.getResponseBody(), in.get(), HTTPResponse);
+        }
+
+        private static void writeBody(IQueryInterface v, HttpExchange t, OutputStream os, InputStream in, int HTTPResponse) throws IOException {
             byte[] buffer = new byte[READERCHUNK];
             int bytesread = 0;
             int bytessum = 0;
-            // chunked transfer
-            t.sendResponseHeaders(HTTPResponse, 0);
-            try (OutputStream os = t.getResponseBody()) {
-                while ((bytesread = in.get().read(buffer, 0, READERCHUNK)) != -1) {
+            ResponseWriteEvent event = new ResponseWriteEvent();
+            event.begin();
+            try (Span span = Tracer.startSpan("writeResponse")) {
+                // chunked transfer
+                t.sendResponseHeaders(HTTPResponse, 0);
+                // not closed on failure, incomplete chunked response is aborted by the server
+                while ((bytesread = in.read(buffer, 0, READERCHUNK)) != -1) {
+                    if (v.isExpired()) throw new DeadlineExceededException("Deadline exceeded while writing response");
                     bytessum += bytesread;
                     os.write(buffer,0, bytesread);
                 }
+                os.close();
+                span.setAttribute("bytes", bytessum);
             }
+            JfrEvents.responseWritten(event, t, bytessum);
             if (bytessum == 0) {
                 t.sendResponseHeaders(HTTPNODATA, 0);
             }
         }
 
+        /**
+         * Hands the response over to the offload writer pool if configured and the response is large enough.
+         * The exchange is detached, the writer closes it after the transfer.
+         *
+         * @param v            Context
+         * @param in           Response content
+         * @param length       Response size
+         * @param HTTPResponse HTTP response code
+         * @param done         Called after the transfer
+         * @return true if offloaded, false if the response should be written by the caller
+         */
+        private boolean offload(IQueryInterface v, InputStream in, long length, int HTTPResponse, Runnable done) {
+            // in-process batch sub-request, there is no client to wait for
+            if (!(v instanceof QueryInterface) || options.getResponseOffload().isEmpty() || v.getT() instanceof MemoryHttpExchange) return false;
+            ResponseOffload offload = options.getResponseOffload().get();
+            if (!offload.accepts(length)) return false;
+            addCORSHeader(v);
+            QueryInterface q = (QueryInterface) v;
+            q.detached = true;
+            if (q.scope != null) q.scope.retain();
+            // failure on the writer thread must drop the connection, not finish the response
+            guard(v.getT());
+            Runnable release = () -> {
+                done.run();
+                if (q.scope != null) q.scope.release();
+            };
+            if (offload.submit(v.getT(), (t, os) -> writeBody(v, t, os, in, HTTPResponse), release)) return true;
+            q.detached = false;
+            if (q.scope != null) q.scope.release();
+            return false;
+        }
+
         protected void produceResponseFromFile(IQueryInterface v, File in, boolean removefile, int HTTPResponse, Optional<String> token) throws IOException {
-            try (FileInputStream fin = new FileInputStream(in)) {
+            if (v.getT() instanceof NioHttpExchange && in.length() > 0) {
+                if (v.isExpired()) throw new DeadlineExceededException("Deadline exceeded before writing response");
+                // zero-copy transfer, the channel is closed by the server
+                addCORSHeader(v);
+                ResponseWriteEvent event = new ResponseWriteEvent();
+                event.begin();
+                try (Span span = Tracer.startSpan("writeResponse")) {
+                    FileChannel fc = FileChannel.open(in.toPath());
+                    long len = fc.size();
+                    v.getT().sendResponseHeaders(HTTPResponse, len);
+                    ((NioHttpExchange) v.getT()).sendFile(fc, 0, len);
+                    span.setAttribute("bytes", len);
+                    JfrEvents.responseWritten(event, v.getT(), len);
+                }
+                if (removefile) in.delete();
+                return;
+            }
+            FileInputStream fin = new FileInputStream(in);
+            Runnable done = () -> {
+                try {
+                    fin.close();
+                } catch (IOException e) {
+                    RestLogger.L.log(Level.WARNING, "Cannot close " + in.getPath(), e);
+                }
+                if (removefile) in.delete();
+            };
+            if (offload(v, fin, in.length(), HTTPResponse, done)) return;
+            try {
                 produceResponseFromInput(v, Optional.of(fin), HTTPResponse, token);
+            } finally {
+                done.run();
             }
-            if (removefile) in.delete();
         }
 
 
@@ -319,6 +1120,8 @@ public class RestHelper {
             if (response.isEmpty()) produceResponseFromInput(v, Optional.empty(), HTTPResponse, token);
             else {
                 InputStream is = new ByteArrayInputStream(response.get());
+                if (offload(v, is, response.get().length, HTTPResponse, () -> {
+                })) return;
                 produceResponseFromInput(v, Optional.of(is), HTTPResponse, token);
             }
         }
@@ -383,6 +1186,94 @@ public class RestHelper {
             produceByteResponse(v, resp, HTTPResponse, token);
         }
 
+        /**
+         * Error response fast path, fixed length body written at once
+         *
+         * @param v            Context
+         * @param body         Encoded error message, can be empty
+         * @param HTTPResponse HTTP response code
+         * @throws IOException
+         */
+        private void produceError(IQueryInterface v, byte[] body, int HTTPResponse) throws IOException {
+            addCORSHeader(v);
+            HttpExchange t = v.getT();
+            ResponseWriteEvent event = new ResponseWriteEvent();
+            event.begin();
+            t.sendResponseHeaders(HTTPResponse, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                OutputStream os = t.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+            JfrEvents.responseWritten(event, t, body.length);
+        }
+
+        /**
+         * Writes tabular result encoded according to the negotiated response content: CBOR, COLUMNAR or JSON (any other content).
+         * The rows are streamed directly to the response body.
+         *
+         * @param v            Context
+         * @param table        Result table
+         * @param HTTPResponse HTTP response code
+         * @throws IOException
+         */
+        protected void produceTableResponse(IQueryInterface v, ResultTable table, int HTTPResponse) throws IOException {
+            addCORSHeader(v);
+            HttpExchange t = v.getT();
+            ResponseWriteEvent event = new ResponseWriteEvent();
+            event.begin();
+            try (Span span = Tracer.startSpan("writeResponse")) {
+                t.sendResponseHeaders(HTTPResponse, 0);
+                OutputStream os = t.getResponseBody();
+                // count bytes only if the event is recorded
+                CountingOutputStream counter = null;
+                if (event.isEnabled()) os = counter = new CountingOutputStream(os);
+                RestParams.CONTENT content = v.getResponseContent().orElse(RestParams.CONTENT.JSON);
+                span.setAttribute("content", content.name());
+                if (content == RestParams.CONTENT.CBOR) TableEncoder.cbor(table, os);
+                else if (content == RestParams.CONTENT.COLUMNAR) TableEncoder.columnar(table, os);
+                else TableEncoder.json(table, os);
+                os.close();
+                JfrEvents.responseWritten(event, t, counter == null ? 0 : counter.count);
+            }
+        }
+
+        /**
+         * Writes generic value (Map, List, String, Number, Boolean) as CBOR if negotiated, otherwise as JSON
+         *
+         * @param v            Context
+         * @param value        Value
+         * @param HTTPResponse HTTP response code
+         * @throws IOException
+         */
+        protected void produceObjectResponse(IQueryInterface v, Object value, int HTTPResponse) throws IOException {
+            if (v.getResponseContent().orElse(RestParams.CONTENT.JSON) == RestParams.CONTENT.CBOR) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                TableEncoder.cbor(value, out);
+                produceByteResponse(v, Optional.of(out.toByteArray()), HTTPResponse, Optional.empty());
+            } else {
+                StringBuilder b = new StringBuilder();
+                TableEncoder.json(value, b);
+                produceByteResponse(v, Optional.of(b.toString().getBytes(StandardCharsets.UTF_8)), HTTPResponse, Optional.empty());
+            }
+        }
+
+        /**
+         * Ingests request body incrementally and sends the ingestion report as the response, HTTPOK if at least part of records was accepted.
+         * Important: the service should not declare request data expected, otherwise the body is already consumed.
+         *
+         * @param v        Context
+         * @param pipeline Ingestion pipeline
+         * @return Ingestion report
+         * @throws IOException
+         */
+        protected <T> IngestPipeline.Report produceIngestResponse(IQueryInterface v, IngestPipeline<T> pipeline) throws IOException {
+            IngestPipeline.Report report = pipeline.run(v.getT().getRequestBody());
+            int code = report.isAborted() || (report.getAccepted() == 0 && report.getFailed() > 0) ? HTTPBADREQUEST : HTTPOK;
+            produceByteResponse(v, Optional.of(report.toJson().getBytes(StandardCharsets.UTF_8)), code, Optional.empty());
+            return report;
+        }
+
         /**
          * Overloaded produceResponse, empty security token
          */
@@ -399,8 +1290,9 @@ public class RestHelper {
          */
         protected void produceParameterNotFound(IQueryInterface v, String s) throws IOException {
             String errmess = "Parameter " + s + " not found in url";
-            RestLogger.L.severe(errmess);
-            produceResponse(v, Optional.of(errmess), HTTPBADREQUEST);
+            RestLogger.limited(Level.WARNING, errmess, null);
+            JfrEvents.validationFailure(v.getT(), HTTPBADREQUEST, errmess);
+            produceError(v, errmess.getBytes(StandardCharsets.UTF_8), HTTPBADREQUEST);
         }
 
         /**
@@ -425,6 +1317,25 @@ public class RestHelper {
             else produceOKResponse(v, Optional.of(message), Optional.empty());
         }
 
+        /**
+         * Starts long-lived streaming response (for instance text/event-stream). Response headers are sent with unknown length
+         * and the exchange is detached: handle does not close it after servicehandle returns.
+         * The caller becomes the owner of the stream and is responsible for closing the exchange.
+         *
+         * @param v Context
+         * @return Response body stream
+         * @throws IOException
+         */
+        protected OutputStream produceStreamingResponse(IQueryInterface v) throws IOException {
+            HttpExchange t = v.getT();
+            addCORSHeader(v);
+            t.getResponseHeaders().set("Cache-Control", "no-cache");
+            t.getResponseHeaders().set("X-Accel-Buffering", "no");
+            t.sendResponseHeaders(HTTPOK, 0);
+            if (v instanceof QueryInterface) ((QueryInterface) v).detached = true;
+            return t.getResponseBody();
+        }
+
         /**
          * Overloaded produceResponse, returns HTTPNODATA response code
          */
@@ -438,29 +1349,25 @@ public class RestHelper {
             RestParams pars = v.getRestParams();
             if (OPTIONS.equals(t.getRequestMethod()) || pars.getRequestMethod().equals(t.getRequestMethod()))
                 return true;
-            String message = String.format("%s method expected, %s is used.", pars.getRequestMethod(), t.getRequestMethod());
-            RestLogger.L.severe(message);
-            produceResponse(v, Optional.of(message), HTTPMETHODNOTALLOWED);
+            String message = pars.getRequestMethod() + " method expected, " + t.getRequestMethod() + " is used.";
+            RestLogger.limited(Level.WARNING, message, null);
+            JfrEvents.validationFailure(t, HTTPMETHODNOTALLOWED, message);
+            produceError(v, message.getBytes(StandardCharsets.UTF_8), HTTPMETHODNOTALLOWED);
             return false;
         }
 
 
-        private final static int BUFCHUNK = 1000;
+        private final static int BUFCHUNK = 8192;
 
         private ByteBuffer getRequestData(HttpExchange t) throws IOException {
             InputStream i = t.getRequestBody();
-            ByteBuffer b = ByteBuffer.allocate(0);
-            while (true) {
-                byte[] by = new byte[BUFCHUNK];
-                int bread = i.read(by);
-                if (bread == -1) break;
-                if (bread == 0) continue;
-                ByteBuffer newb = ByteBuffer.allocate(b.capacity() + bread);
-                b.rewind();
-                newb.put(b);
-                newb.put(by, 0, bread);
-                b = newb;
-            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] by = new byte[BUFCHUNK];
+            int bread;
+            while ((bread = i.read(by)) != -1) out.write(by, 0, bread);
+            ByteBuffer b = ByteBuffer.wrap(out.toByteArray());
+            // position at the end as before, consumers rewind or flip
+            b.position(b.capacity());
             return b;
         }
 
@@ -477,31 +1384,39 @@ public class RestHelper {
         }
 
         private Optional<IQueryInterface> returnBad(IQueryInterface v, String errmess) throws IOException {
-            RestLogger.L.severe(errmess);
-            produceResponse(v, Optional.of(errmess), HTTPBADREQUEST);
+            RestLogger.limited(Level.WARNING, errmess, null);
+            JfrEvents.validationFailure(v.getT(), HTTPBADREQUEST, errmess);
+            produceError(v, errmess.getBytes(StandardCharsets.UTF_8), HTTPBADREQUEST);
+            return Optional.empty();
+        }
+
+        private Optional<IQueryInterface> returnBad(IQueryInterface v, byte[] errmess) throws IOException {
+            String message = new String(errmess, StandardCharsets.UTF_8);
+            RestLogger.limited(Level.WARNING, message, null);
+            JfrEvents.validationFailure(v.getT(), HTTPBADREQUEST, message);
+            produceError(v, errmess, HTTPBADREQUEST);
             return Optional.empty();
         }
 
-        private Optional<IQueryInterface> verifyURL(HttpExchange t, RestParams pars) throws IOException {
+        private Optional<IQueryInterface> verifyURL(HttpExchange t, RestParams pars, long deadline, RequestScope scope) throws IOException {
 
             final Map<String, RestParams.RestParam> params = pars.getParams();
-            ByteBuffer b = null;
-            if (pars.isRequestDataExpected()) b = getRequestData(t);
-            QueryInterface v = new QueryInterface(pars, t, b);
-
-            RestLogger.debug(t.getRequestMethod() + " " + t.getRequestURI().getQuery());
             if (OPTIONS.equals(t.getRequestMethod())) {
-                RestLogger.L.info(OPTIONS + " request");
-                produceOKResponse(v, Optional.of("OK"));
-                // return false, to avoid sending the content for OPTIONS
+                // OPTIONS without preflight headers, allowed methods and headers only, the body is not read
+                produceError(new QueryInterface(pars, t, null, deadline), new byte[0], HTTPNODATA);
                 return Optional.empty();
             }
+            // the request is validated before the body is read, the body of rejected request is not transmitted
+            // if the client waits for "100 Continue"
+            QueryInterface v = new QueryInterface(pars, t, null, deadline);
+            v.scope = scope;
+
+            RestLogger.debug(t.getRequestMethod() + " " + t.getRequestURI().getQuery());
             if (!verifyMethod(v)) return Optional.empty();
-            if (pars.isRequestDataExpected() && b.capacity() == 0)
-                return returnBad(v, "Request data expected but not found any");
 
             // verify param
             // check if parameters allowed
+            Map<String, ArrayBuilder> arrays = null;
             if (t.getRequestURI().getQuery() != null) {
                 String qq = t.getRequestURI().getQuery();
                 String query = URLDecoder.decode(qq, StandardCharsets.UTF_8.toString());
@@ -562,9 +1477,26 @@ public class RestHelper {
                             }
 
                         }
+                        case INT_ARRAY:
+                        case DOUBLE_ARRAY:
+                        case DATE_ARRAY:
+                        case STRING_ARRAY: {
+                            // repeated keys are collected
+                            if (arrays == null) arrays = new HashMap<String, ArrayBuilder>();
+                            ArrayBuilder ab = arrays.get(s);
+                            if (ab == null) {
+                                ab = new ArrayBuilder(rpara.ptype, rpara.maxLength);
+                                arrays.put(s, ab);
+                            }
+                            String errmess = ab.add(s, val);
+                            if (errmess != null) return returnBad(v, errmess);
+                            break;
+                        }
                     }
                 } // for
             }
+            if (arrays != null)
+                for (Map.Entry<String, ArrayBuilder> e : arrays.entrySet()) v.values.put(e.getKey(), e.getValue().build());
             // verify obligatory params
             for (String s : params.keySet()) {
                 if (!v.values.containsKey(s)) {
@@ -577,9 +1509,40 @@ public class RestHelper {
                 }
             }
 
+            verifyBodySize(t);
+            if (pars.isRequestDataExpected()) {
+                scope.entry.phase(InFlightRegistry.PHASE.BODY);
+                ByteBuffer b;
+                try (Span span = Tracer.startSpan("readBody")) {
+                    BodyReadEvent event = new BodyReadEvent();
+                    event.begin();
+                    b = getRequestData(t);
+                    span.setAttribute("bytes", b.capacity());
+                    JfrEvents.bodyRead(event, t, b.capacity());
+                }
+                v.data = b;
+                if (b.capacity() == 0) return returnBad(v, NODATABODY);
+            }
             return Optional.of(v);
         }
 
+        /**
+         * Rejects request with declared Content-Length above the limit, body of unknown length is limited while read
+         *
+         * @throws PayloadTooLargeException if the body is too large
+         */
+        private void verifyBodySize(HttpExchange t) throws IOException {
+            long max = options.getMaxBodyBytes();
+            String len = t.getRequestHeaders().getFirst("Content-Length");
+            if (len == null || max == Long.MAX_VALUE) return;
+            try {
+                if (Long.parseLong(len.trim()) > max)
+                    throw new PayloadTooLargeException("Request body larger than " + max + " bytes");
+            } catch (NumberFormatException e) {
+                throw new ValidationException("Incorrect Content-Length " + len);
+            }
+        }
+
         /**
          * Returns logical value for query parameters.
          *
@@ -635,6 +1598,50 @@ public class RestHelper {
             return v.getValues().get(param).getIntvalue();
         }
 
+        /**
+         * Returns int array value for INT_ARRAY query parameter.
+         *
+         * @param v     Context
+         * @param param Query param name/key
+         * @return int array, null if not specified and no default value
+         */
+        protected int[] getIntArrayParam(IQueryInterface v, String param) {
+            return v.getValues().get(param).getIntArray();
+        }
+
+        /**
+         * Returns double array value for DOUBLE_ARRAY query parameter.
+         *
+         * @param v     Context
+         * @param param Query param name/key
+         * @return double array, null if not specified and no default value
+         */
+        protected double[] getDoubleArrayParam(IQueryInterface v, String param) {
+            return v.getValues().get(param).getDoubleArray();
+        }
+
+        /**
+         * Returns date array value for DATE_ARRAY query parameter.
+         *
+         * @param v     Context
+         * @param param Query param name/key
+         * @return Date array, null if not specified and no default value
+         */
+        protected Date[] getDateArrayParam(IQueryInterface v, String param) {
+            return v.getValues().get(param).getDateArray();
+        }
+
+        /**
+         * Returns string array value for STRING_ARRAY query parameter.
+         *
+         * @param v     Context
+         * @param param Query param name/key
+         * @return String array, null if not specified and no default value
+         */
+        protected String[] getStringArrayParam(IQueryInterface v, String param) {
+            return v.getValues().get(param).getStringArray();
+        }
+
 
         /**
          * Gets string query value. Produces HTTPBADREQUEST response if parameter is not specified
@@ -673,9 +1680,36 @@ public class RestHelper {
      * @param service Service class
      */
     public static void registerService(HttpServer server, RestServiceHelper service) {
+        registerService(server, service, new ServiceOptions());
+    }
+
+    /**
+     * Register service class with service options
+     *
+     * @param server  com.sun.net.httpserver.HttpServer instance
+     * @param service Service class
+     * @param options Service options (rate limiting etc)
+     */
+    public static void registerService(HttpServer server, RestServiceHelper service, ServiceOptions options) {
+        service.options = options;
         RestLogger.info("Register service: " + (service.url.equals("") ? "{root}" : service.url));
+        services.put("/" + service.url, service);
         HttpContext hc = server.createContext("/" + service.url, service);
         if (auth != null) hc.setAuthenticator(auth);
+        if (options.getSlowRequestMillis() > 0) InFlightRegistry.startWatchdog();
+        // status and result endpoint of asynchronous jobs, once per server
+        if (options.getJobExecutor().isPresent()) options.getJobExecutor().get().register(server);
+        synchronized (RestHelper.class) {
+            // the drain gate goes first and counts also the requests waiting in the bulkhead queue
+            for (Filter f : filters)
+                if (f instanceof RestServer.Gate) {
+                    hc.getFilters().add(f);
+                    ((RestServer.Gate) f).owner().attached(options);
+                }
+            // then bulkhead dispatch, the remaining filters run in the bulkhead thread
+            if (!options.getBulkhead().isInline()) hc.getFilters().add(new Bulkhead.DispatchFilter(options.getBulkhead()));
+            for (Filter f : filters) if (!(f instanceof RestServer.Gate)) hc.getFilters().add(f);
+        }
 
     }
 
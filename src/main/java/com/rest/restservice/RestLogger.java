@@ -13,6 +13,9 @@ package com.rest.restservice;
  * limitations under the License.
  */
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -27,6 +30,46 @@ public class RestLogger {
         L.info(s);
     }
 
+    // error log budget per second, entries above are counted but not logged
+    private static final int LIMITPERSECOND = Integer.getInteger("restservice.log.limit", 20);
+    private static final AtomicLong second = new AtomicLong();
+    private static final AtomicInteger inSecond = new AtomicInteger();
+    private static final AtomicLong pending = new AtomicLong();
+    private static final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Rate limited logging for error paths exposed to clients. No more than restservice.log.limit entries per second are logged,
+     * the number of suppressed entries is reported with the first entry of the next second.
+     *
+     * @param level Log level
+     * @param s     Message
+     * @param e     Throwable or null
+     */
+    public static void limited(Level level, String s, Throwable e) {
+        if (!L.isLoggable(level)) return;
+        long now = System.currentTimeMillis() / 1000;
+        long sec = second.get();
+        if (now != sec && second.compareAndSet(sec, now)) {
+            inSecond.set(0);
+            long p = pending.getAndSet(0);
+            if (p > 0) L.warning(p + " log entries suppressed");
+        }
+        if (inSecond.incrementAndGet() > LIMITPERSECOND) {
+            pending.incrementAndGet();
+            suppressed.incrementAndGet();
+            return;
+        }
+        if (e == null) L.log(level, s);
+        else L.log(level, s, e);
+    }
+
+    /**
+     * @return Total number of log entries suppressed by limited
+     */
+    public static long getSuppressed() {
+        return suppressed.get();
+    }
+
     public static void debug(String s) {
 //        L.log(Level.FINE,s);
         info(s);
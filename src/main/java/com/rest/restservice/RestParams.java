@@ -13,6 +13,7 @@ package com.rest.restservice;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -24,12 +25,19 @@ import java.util.Optional;
 
 public class RestParams {
 
+    /**
+     * Default maximum number of values of array parameter, restservice.param.maxarray system property
+     */
+    public static final int DEFAULTMAXARRAY = Integer.getInteger("restservice.param.maxarray", 1000);
+
     private final Map<String, RestParam> params = new HashMap<String, RestParam>();
     private final String requestMethod;
     private final Optional<CONTENT> responseContent;
     private final Optional<String> headersAllowed;
     private final boolean requestDataExpected;
     private final boolean crossedAllowed;
+    private Optional<Long> deadlineMillis = Optional.empty();
+    private final List<CONTENT> alternativeContent = new ArrayList<CONTENT>();
 
     /**
      * List of allowed method included in the HTTP response. Used to create "Access-Control-Allow-Methods" header key. "OPTIONS" is added automatically.
@@ -79,6 +87,33 @@ public class RestParams {
         this(requestMethod, responseContent, crossedAllowed, methodsAllowed, Optional.empty(), false);
     }
 
+    /**
+     * Alternative response content, selected instead of the declared one if preferred by the Accept request header
+     *
+     * @param content Alternative content
+     */
+    public void addAlternativeContent(CONTENT content) {
+        alternativeContent.add(content);
+    }
+
+    public List<CONTENT> getAlternativeContent() {
+        return alternativeContent;
+    }
+
+    /**
+     * Default request deadline, measured from the moment the request was queued.
+     * The request header X-Request-Timeout (milliseconds) can shorten it.
+     *
+     * @param deadlineMillis Deadline in milliseconds
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = Optional.of(deadlineMillis);
+    }
+
+    public Optional<Long> getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
     /**
      * Get map of expected query URL parameters
      *
@@ -125,9 +160,12 @@ public class RestParams {
      * JS: Content-Type text/javascript
      * XML: Content-Type application/xml
      * MIXED: Content-Type multipart/mixed; boundary=
+     * EVENTS: Content-Type text/event-stream
+     * CBOR: Content-Type application/cbor
+     * COLUMNAR: Content-Type application/vnd.restservice.columnar, see TableEncoder
      */
     public enum CONTENT {
-        TEXT, JSON, ZIP, JS, XML,MIXED
+        TEXT, JSON, ZIP, JS, XML,MIXED, EVENTS, CBOR, COLUMNAR
     }
 
     /**
@@ -140,6 +178,7 @@ public class RestParams {
         final PARAMTYPE ptype;
         final boolean obligatory;
         final ParamValue defa;
+        final int maxLength;
 
         /**
          * Obligatory paraneter
@@ -147,9 +186,10 @@ public class RestParams {
          *
          * @param ptype
          */
-        RestParam(PARAMTYPE ptype) {
+        RestParam(PARAMTYPE ptype, int maxLength) {
             this.ptype = ptype;
             this.obligatory = true;
+            this.maxLength = maxLength;
             defa = new ParamValue();
         }
 
@@ -159,9 +199,10 @@ public class RestParams {
          * @param ptype type
          * @param defa  Default value if not specified
          */
-        RestParam(PARAMTYPE ptype, ParamValue defa) {
+        RestParam(PARAMTYPE ptype, ParamValue defa, int maxLength) {
             this.ptype = ptype;
             this.obligatory = false;
+            this.maxLength = maxLength;
             this.defa = defa;
         }
     }
@@ -173,7 +214,7 @@ public class RestParams {
      * @param ptype     Query parameter type
      */
     public void addParam(String paramName, PARAMTYPE ptype) {
-        params.put(paramName, new RestParam(ptype));
+        params.put(paramName, new RestParam(ptype, DEFAULTMAXARRAY));
     }
 
     /**
@@ -184,7 +225,32 @@ public class RestParams {
      * @param defa      Default value if parameter not found in the URL
      */
     public void addParam(String paramName, PARAMTYPE ptype, ParamValue defa) {
-        params.put(paramName, new RestParam(ptype, defa));
+        params.put(paramName, new RestParam(ptype, defa, DEFAULTMAXARRAY));
+    }
+
+    /**
+     * Add obligatory array parameter
+     *
+     * @param paramName Query parameter name
+     * @param ptype     Array parameter type
+     * @param maxLength Maximum number of values
+     */
+    public void addArrayParam(String paramName, PARAMTYPE ptype, int maxLength) {
+        if (!ptype.isArray()) throw new IllegalArgumentException(ptype + " is not array parameter type");
+        params.put(paramName, new RestParam(ptype, maxLength));
+    }
+
+    /**
+     * Add optional array parameter
+     *
+     * @param paramName Query parameter name
+     * @param ptype     Array parameter type
+     * @param defa      Default value if not specified
+     * @param maxLength Maximum number of values
+     */
+    public void addArrayParam(String paramName, PARAMTYPE ptype, ParamValue defa, int maxLength) {
+        if (!ptype.isArray()) throw new IllegalArgumentException(ptype + " is not array parameter type");
+        params.put(paramName, new RestParam(ptype, defa, maxLength));
     }
 
 }
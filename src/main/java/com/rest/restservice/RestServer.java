@@ -0,0 +1,317 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.kerberos.CredentialManager;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of the running server returned by RestStart. Allows graceful shutdown: the readiness flag is switched off,
+ * new requests are rejected with 503, in-flight requests are drained up to the deadline, then the server, the executor,
+ * the bulkhead pools and the job executors are stopped.
+ */
+public class RestServer {
+
+    // request passing the gate in the current thread, a bulkhead continuing the request in its own thread retains it
+    private static final ThreadLocal<Hold> CURRENT = new ThreadLocal<Hold>();
+
+    private final List<HttpServer> servers;
+    private final ExecutorService executor;
+    private final Optional<CredentialManager> credentials;
+    private final Gate gate = new Gate();
+    // bulkhead pools and job executors of the services registered with the gate, stopped after draining
+    private final Set<Bulkhead.Pool> pools = ConcurrentHashMap.newKeySet();
+    private final Set<JobExecutor> jobExecutors = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inflight = new AtomicInteger();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean ready = false;
+    private volatile boolean draining = false;
+
+    /**
+     * Drain statistics reported by shutdown
+     */
+    public static class DrainStats {
+        private final int inflightAtStart;
+        private final int abandoned;
+        private final long rejected;
+        private final long elapsedMillis;
+        private final boolean executorTerminated;
+
+        DrainStats(int inflightAtStart, int abandoned, long rejected, long elapsedMillis, boolean executorTerminated) {
+            this.inflightAtStart = inflightAtStart;
+            this.abandoned = abandoned;
+            this.rejected = rejected;
+            this.elapsedMillis = elapsedMillis;
+            this.executorTerminated = executorTerminated;
+        }
+
+        /**
+         * @return Number of requests being executed when the draining started
+         */
+        public int getInflightAtStart() {
+            return inflightAtStart;
+        }
+
+        /**
+         * @return Number of requests still executing when the deadline passed
+         */
+        public int getAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * @return Number of requests rejected with 503 during draining
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public boolean isExecutorTerminated() {
+            return executorTerminated;
+        }
+
+        @Override
+        public String toString() {
+            return "Drain: in-flight at start " + inflightAtStart + ", abandoned " + abandoned + ", rejected " + rejected
+                    + ", elapsed " + elapsedMillis + " ms, executor terminated " + executorTerminated;
+        }
+    }
+
+    /**
+     * Filter attached to every registered service, counts in-flight requests and rejects requests while draining
+     */
+    class Gate extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            // counted before the check, shutdown setting draining then reading inflight cannot miss the request
+            inflight.incrementAndGet();
+            if (draining) {
+                finished();
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(RestHelper.HTTPUNAVAILABLE, -1);
+                exchange.close();
+                return;
+            }
+            Hold hold = new Hold();
+            CURRENT.set(hold);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                CURRENT.remove();
+                hold.release();
+            }
+        }
+
+        private void finished() {
+            if (inflight.decrementAndGet() == 0 && draining) {
+                synchronized (inflight) {
+                    inflight.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public String description() {
+            return "RestServer drain gate";
+        }
+
+        RestServer owner() {
+            return RestServer.this;
+        }
+    }
+
+    /**
+     * In-flight count of one request, the request is finished when the last holder releases it
+     */
+    final class Hold {
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        void release() {
+            if (holders.decrementAndGet() == 0) {
+                served.incrementAndGet();
+                gate.finished();
+            }
+        }
+    }
+
+    /**
+     * Retains the request passing the gate in the current thread
+     *
+     * @return Hold to be released when the request is finished, null if the request is not counted by any gate
+     */
+    static Hold retainCurrent() {
+        Hold hold = CURRENT.get();
+        if (hold != null) hold.holders.incrementAndGet();
+        return hold;
+    }
+
+    RestServer(List<HttpServer> servers, ExecutorService executor, Optional<CredentialManager> credentials) {
+        this.servers = servers;
+        this.executor = executor;
+        this.credentials = credentials;
+    }
+
+    Filter getGate() {
+        return gate;
+    }
+
+    /**
+     * Service with these options is registered with the gate, its resources are released by shutdown
+     */
+    void attached(ServiceOptions options) {
+        if (!options.getBulkhead().isInline()) pools.add(options.getBulkhead().getPool());
+        if (options.getJobExecutor().isPresent()) jobExecutors.add(options.getJobExecutor().get());
+    }
+
+    void start() {
+        for (HttpServer server : servers) server.start();
+        ready = true;
+    }
+
+    /**
+     * @return The first (or the only) server instance
+     */
+    public HttpServer getServer() {
+        return servers.get(0);
+    }
+
+    /**
+     * @return All server instances sharing the registered services, every instance has its own dispatcher thread
+     */
+    public List<HttpServer> getServers() {
+        return servers;
+    }
+
+    /**
+     * @return Kerberos credential manager (renewal metrics), empty if Kerberos authentication is not configured
+     */
+    public Optional<CredentialManager> getCredentialManager() {
+        return credentials;
+    }
+
+    /**
+     * Readiness flag, false after shutdown started. Load balancer health check should use it.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return Number of requests being executed including offloaded responses being written, aggregated over all server instances
+     */
+    public int getInFlight() {
+        return inflight.get() + ResponseOffload.getPendingTransfers();
+    }
+
+    /**
+     * @return Number of requests served, aggregated over all server instances
+     */
+    public long getServed() {
+        return served.get();
+    }
+
+    /**
+     * Graceful shutdown
+     *
+     * @param readinessDelayMillis time between switching off readiness flag and starting draining, gives the load balancer time to notice
+     * @param deadlineMillis       maximum time waiting for in-flight requests and executor termination
+     * @return DrainStats
+     * @throws InterruptedException
+     */
+    public DrainStats shutdown(long readinessDelayMillis, long deadlineMillis) throws InterruptedException {
+        ready = false;
+        RestLogger.info("Shutdown, not ready, draining in " + readinessDelayMillis + " ms");
+        if (readinessDelayMillis > 0) Thread.sleep(readinessDelayMillis);
+        long start = System.currentTimeMillis();
+        long deadline = start + deadlineMillis;
+        draining = true;
+        int atstart = inflight.get() + ResponseOffload.getPendingTransfers();
+        synchronized (inflight) {
+            long now;
+            while (inflight.get() > 0 && (now = System.currentTimeMillis()) < deadline) inflight.wait(deadline - now);
+        }
+        // offloaded responses are still being written after the handler returned
+        ResponseOffload.awaitTransfers(deadline);
+        int abandoned = inflight.get() + ResponseOffload.getPendingTransfers();
+        for (HttpServer server : servers) server.stop(0);
+        boolean terminated = true;
+        if (executor != null) {
+            executor.shutdown();
+            terminated = executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (!terminated) executor.shutdownNow();
+        }
+        // queued requests were counted as in-flight, the pools are idle unless the deadline expired
+        for (Bulkhead.Pool pool : pools) {
+            pool.shutdown();
+            if (!pool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()))) {
+                pool.shutdownNow();
+                terminated = false;
+            }
+        }
+        for (JobExecutor jobs : jobExecutors) jobs.close();
+        if (credentials.isPresent()) credentials.get().close();
+        DrainStats stats = new DrainStats(atstart, abandoned, rejected.get(), System.currentTimeMillis() - start, terminated);
+        RestLogger.info(stats.toString());
+        return stats;
+    }
+
+    /**
+     * Readiness probe service, returns 200 if the server is ready and 503 during shutdown
+     */
+    public static class ReadinessService extends RestHelper.RestServiceHelper {
+
+        public ReadinessService(String url) {
+            super(url);
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            return new RestParams(RestHelper.GET, Optional.of(RestParams.CONTENT.TEXT), false, new ArrayList<String>());
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            boolean ready = false;
+            for (Filter f : v.getT().getHttpContext().getFilters())
+                if (f instanceof Gate) ready = ((Gate) f).owner().isReady();
+            if (ready) produceOKResponse(v, "READY");
+            else produceResponse(v, Optional.of("NOT READY"), RestHelper.HTTPUNAVAILABLE);
+        }
+    }
+}
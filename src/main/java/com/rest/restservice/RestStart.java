@@ -13,12 +13,21 @@ package com.rest.restservice;
  * limitations under the License.
  */
 
+import com.rest.restservice.kerberos.CredentialManager;
 import com.rest.restservice.kerberos.HttpNegotiateServer;
+import com.rest.restservice.nio.NioHttpServer;
 import com.rest.restservice.ssl.SecureHttp;
+import com.rest.restservice.tracing.FileSpanExporter;
+import com.rest.restservice.tracing.Tracer;
 import com.sun.net.httpserver.*;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
@@ -27,9 +36,17 @@ import java.util.function.Consumer;
  */
 abstract public class RestStart {
 
+    public static final String TRACINGFILE = "restservice.tracing.file";
+    public static final String TRACINGRATIO = "restservice.tracing.ratio";
+    public static final String INFLIGHTURL = "restservice.admin.inflight";
+
     public static final String VERSTRING = "RestService 1.3 (r:2), 2025/01/30";
 
-    private static HttpServer produce(int PORT, String[] params) throws IOException {
+    private static HttpServer produce(int PORT, String[] params, TRANSPORT transport) throws IOException {
+        if (transport == TRANSPORT.NIO) {
+            if (params.length > 0) throw new IOException("HTTPS is not supported by NIO transport");
+            return NioHttpServer.create(new InetSocketAddress(PORT), 0);
+        }
         return params.length == 0 ? HttpServer.create(new InetSocketAddress(PORT), 0) :
                 SecureHttp.produceHttps(PORT, params);
     }
@@ -47,22 +64,71 @@ abstract public class RestStart {
      *                         params[1] = keypassword
      *                         params[2] = storepassword
      *                         params[3] = alias
+     * @return RestServer handle, allows graceful shutdown
      * @throws IOException
      */
 
 
-    static protected void RestStart(int PORT, boolean single, Consumer<HttpServer> registerServices, String[] params) throws Exception {
-        HttpServer server = produce(PORT, params);
+    static protected RestServer RestStart(int PORT, boolean single, Consumer<HttpServer> registerServices, String[] params) throws Exception {
+        return RestStart(PORT, single, registerServices, params, 1);
+    }
+
+    /**
+     * Starts several independent HTTP server instances sharing the same registered services and the same executor.
+     * Every instance has its own dispatcher thread accepting and selecting connections, the instances are listening on
+     * the port range PORT .. PORT + instances - 1. The load balancer in front of the node should spread connections over the range.
+     *
+     * @param PORT             first TCP/IP port of the range
+     * @param single           Simgle or multithred execution
+     * @param registerServices Consumer class to register REST services, called once for every instance
+     * @param params           Parameters for secure connection, as above
+     * @param instances        Number of server instances
+     * @return RestServer handle, allows graceful shutdown of all instances
+     * @throws Exception
+     */
+    static protected RestServer RestStart(int PORT, boolean single, Consumer<HttpServer> registerServices, String[] params, int instances) throws Exception {
+        return RestStart(PORT, single, registerServices, params, instances, TRANSPORT.getDefault());
+    }
+
+    /**
+     * Starts HTTP server using selected transport. The services are registered the same way regardless of transport.
+     *
+     * @param transport JDK or NIO server implementation
+     * @see #RestStart(int, boolean, Consumer, String[], int)
+     */
+    static protected RestServer RestStart(int PORT, boolean single, Consumer<HttpServer> registerServices, String[] params, int instances, TRANSPORT transport) throws Exception {
+        List<HttpServer> servers = new ArrayList<HttpServer>();
+        for (int i = 0; i < instances; i++) servers.add(produce(PORT + i, params, transport));
+
+        Optional<CredentialManager> credentials = Optional.empty();
+        if (System.getProperty("java.security.auth.login.config") != null) {
+            credentials = Optional.of(HttpNegotiateServer.constructCredentialManager());
+            RestHelper.setAuth(HttpNegotiateServer.constructNegotiateAuthenticator(credentials.get()));
+        }
 
-        if (System.getProperty("java.security.auth.login.config") != null)
-            RestHelper.setAuth(HttpNegotiateServer.constructNegotiateAuthenticator());
+        // request tracing, OTLP-JSON spans written to the file
+        if (System.getProperty(TRACINGFILE) != null)
+            Tracer.configure(new FileSpanExporter(Paths.get(System.getProperty(TRACINGFILE)), "restservice", 8192), Double.parseDouble(System.getProperty(TRACINGRATIO, "1.0")));
 
         RestLogger.info(VERSTRING);
-        RestLogger.info("Start " + (params.length > 0 ? "HTTPS" : "HTTP") + " Server, listening on port " + PORT);
+        RestLogger.info("Start " + (params.length > 0 ? "HTTPS" : "HTTP") + " " + transport + " Server, listening on port " + PORT + (instances > 1 ? " - " + (PORT + instances - 1) : ""));
         if (params.length > 0) RestLogger.info("Secure connection");
-        registerServices.accept(server);
-
-        server.setExecutor(single ? null : Executors.newCachedThreadPool()); // creates a default executor or multithreading executor
-        server.start();
+        ExecutorService executor = single ? null : Executors.newCachedThreadPool();
+        RestServer handle = new RestServer(servers, executor, credentials);
+        // the gate is attached only to the services registered here, never to services registered later by other servers
+        RestHelper.addFilter(handle.getGate());
+        try {
+            for (HttpServer server : servers) {
+                registerServices.accept(server);
+                // admin endpoint listing requests being executed
+                if (System.getProperty(INFLIGHTURL) != null)
+                    RestHelper.registerService(server, new InFlightRegistry.InFlightService(System.getProperty(INFLIGHTURL)));
+                server.setExecutor(executor == null ? null : new DeadlineExecutor(executor)); // creates a default executor or multithreading executor
+            }
+        } finally {
+            RestHelper.removeFilter(handle.getGate());
+        }
+        handle.start();
+        return handle;
     }
 }
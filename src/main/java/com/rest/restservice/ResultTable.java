@@ -0,0 +1,86 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Tabular result: column definitions and the iterator of rows. Rows are consumed once while the response is written,
+ * the table does not need to be materialized.<br>
+ * Value types: INT - Number (long value), DOUBLE - Number, BOOLEAN - Boolean, STRING - any object (toString), DATE - java.util.Date or LocalDate.
+ * Null is allowed in every column.
+ */
+public class ResultTable {
+
+    /**
+     * Column definition
+     */
+    public static class Column {
+        final String name;
+        final PARAMTYPE type;
+
+        public Column(String name, PARAMTYPE type) {
+            if (type.isArray()) throw new IllegalArgumentException("Column " + name + ": array type " + type + " not supported");
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public PARAMTYPE getType() {
+            return type;
+        }
+    }
+
+    private final List<Column> columns;
+    private final Iterator<Object[]> rows;
+
+    /**
+     * @param columns Column definitions
+     * @param rows    Rows, every row contains values in column order
+     */
+    public ResultTable(List<Column> columns, Iterator<Object[]> rows) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    public ResultTable(Iterator<Object[]> rows, Column... columns) {
+        this(Arrays.asList(columns), rows);
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public Iterator<Object[]> getRows() {
+        return rows;
+    }
+
+    /**
+     * Date value as the number of days since 1970-01-01
+     *
+     * @param o java.util.Date (including java.sql.Date) or LocalDate
+     * @return epoch day
+     */
+    static long epochDay(Object o) {
+        if (o instanceof LocalDate) return ((LocalDate) o).toEpochDay();
+        if (o instanceof java.sql.Date) return ((java.sql.Date) o).toLocalDate().toEpochDay();
+        return Math.floorDiv(((java.util.Date) o).getTime(), 86_400_000L);
+    }
+}
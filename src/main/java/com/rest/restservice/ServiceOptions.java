@@ -0,0 +1,165 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Optional;
+
+/**
+ * Per-service options applied by RestHelper.registerService, independent of the REST call specification returned by getParams.
+ */
+public class ServiceOptions {
+
+    private Optional<RateLimiter> rateLimiter = Optional.empty();
+    private Optional<ResponseOffload> responseOffload = Optional.empty();
+    private Bulkhead bulkhead = Bulkhead.INLINE;
+    private Optional<CorsPolicy> cors = Optional.empty();
+    private Optional<JobExecutor> jobExecutor = Optional.empty();
+    private long maxBodyBytes = Long.getLong("restservice.request.maxbody", Long.MAX_VALUE);
+    private long slowRequestMillis = Long.getLong("restservice.slow.millis", 0);
+    private long maxDecodedBytes = Long.getLong("restservice.request.maxdecoded", 256L * 1024 * 1024);
+    private int maxCompressionRatio = Integer.getInteger("restservice.request.maxratio", 200);
+
+    /**
+     * Rate limiter, checked before getParams. Requests above the limit are rejected with 429 and Retry-After.
+     *
+     * @param rateLimiter RateLimiter
+     * @return this
+     */
+    public ServiceOptions setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = Optional.of(rateLimiter);
+        return this;
+    }
+
+    public Optional<RateLimiter> getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Response offload, byte array and file responses above the offload threshold are written by the writer pool
+     * and the worker thread is released at once. The writer pool can be shared by many services.
+     *
+     * @param responseOffload ResponseOffload
+     * @return this
+     */
+    public ServiceOptions setResponseOffload(ResponseOffload responseOffload) {
+        this.responseOffload = Optional.of(responseOffload);
+        return this;
+    }
+
+    public Optional<ResponseOffload> getResponseOffload() {
+        return responseOffload;
+    }
+
+    /**
+     * Limits of request body sent with Content-Encoding gzip or deflate. Requests above the limits are rejected with 413.
+     * Defaults: restservice.request.maxdecoded (256 MB) and restservice.request.maxratio (200) system properties.
+     *
+     * @param maxDecodedBytes     Maximum size of decoded body
+     * @param maxCompressionRatio Maximum ratio of decoded to compressed size, checked after the first megabyte
+     * @return this
+     */
+    public ServiceOptions setRequestDecoding(long maxDecodedBytes, int maxCompressionRatio) {
+        this.maxDecodedBytes = maxDecodedBytes;
+        this.maxCompressionRatio = maxCompressionRatio;
+        return this;
+    }
+
+    public long getMaxDecodedBytes() {
+        return maxDecodedBytes;
+    }
+
+    public int getMaxCompressionRatio() {
+        return maxCompressionRatio;
+    }
+
+    /**
+     * Execution profile: dedicated pool, lane of shared priority pool or inline (default)
+     *
+     * @param bulkhead Bulkhead
+     * @return this
+     */
+    public ServiceOptions setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+        return this;
+    }
+
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * CORS policy: allowed origins echoed instead of "*" and preflight Access-Control-Max-Age.
+     * If not set, RestParams.isCrossedAllowed decides about "*".
+     *
+     * @param cors CorsPolicy
+     * @return this
+     */
+    public ServiceOptions setCors(CorsPolicy cors) {
+        this.cors = Optional.of(cors);
+        return this;
+    }
+
+    public Optional<CorsPolicy> getCors() {
+        return cors;
+    }
+
+    /**
+     * Maximum size of request body as transmitted. Request with larger Content-Length is rejected with 413 after the method
+     * and query parameters are validated and before the body is read, body of unknown length is limited while read.
+     * Default: restservice.request.maxbody system property, no limit if not set.
+     *
+     * @param maxBodyBytes Maximum size
+     * @return this
+     */
+    public ServiceOptions setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    public long getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    /**
+     * Slow request threshold. The watchdog logs requests running longer together with the stack sample of the worker
+     * thread, see InFlightRegistry. Default: restservice.slow.millis system property, 0 (not watched) if not set.
+     *
+     * @param slowRequestMillis Threshold in milliseconds, 0 : not watched
+     * @return this
+     */
+    public ServiceOptions setSlowRequestMillis(long slowRequestMillis) {
+        this.slowRequestMillis = slowRequestMillis;
+        return this;
+    }
+
+    public long getSlowRequestMillis() {
+        return slowRequestMillis;
+    }
+
+    /**
+     * Asynchronous job mode. The validated request is answered at once with 202 Accepted and the job location, the service
+     * logic runs on the job executor and the response is kept as the job result. The job endpoint is registered together with the service.
+     *
+     * @param jobExecutor Job executor, can be shared by several services
+     * @return this
+     */
+    public ServiceOptions setJobExecutor(JobExecutor jobExecutor) {
+        this.jobExecutor = Optional.of(jobExecutor);
+        return this;
+    }
+
+    public Optional<JobExecutor> getJobExecutor() {
+        return jobExecutor;
+    }
+}
@@ -0,0 +1,452 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.nio.NioHttpExchange;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Built-in static file service. Serves files from the root directory, the URL path after the service URL is the file path,
+ * directory path is resolved to index.html.<br>
+ * Small files are kept in a size-bounded in-memory cache (approximate LRU) together with the content ETag and the gzip variant
+ * for compressible types, the cache hit does not touch the file system. Large files are served from memory-mapped regions,
+ * on the NIO transport by zero-copy transfer. A WatchService thread invalidates entries of modified and deleted files.<br>
+ * Fingerprinted file names (app.3f2a91c7.js, app-3f2a91c7.js) are sent with immutable Cache-Control, other files must be
+ * revalidated by If-None-Match.
+ */
+public class StaticFileService extends RestHelper.RestServiceHelper {
+
+    private static final Pattern FINGERPRINT = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[^./]+$");
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    private static final String INDEX = "index.html";
+    private static final int WRITECHUNK = 65536;
+
+    private static final Map<String, String> MIMETYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("pdf", "application/pdf"));
+    private static final String DEFAULTMIME = "application/octet-stream";
+
+    private static final class Entry {
+        final byte[] body;
+        final byte[] gzip;
+        final String etag;
+        final String gzipEtag;
+        final String contentType;
+        final String cacheControl;
+        volatile long lastAccess = System.nanoTime();
+
+        Entry(byte[] body, byte[] gzip, String etag, String contentType, String cacheControl) {
+            this.body = body;
+            this.gzip = gzip;
+            this.etag = etag;
+            this.gzipEtag = gzip == null ? null : etag.substring(0, etag.length() - 1) + "-gz\"";
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+        }
+
+        long size() {
+            return body.length + (gzip == null ? 0 : gzip.length);
+        }
+    }
+
+    private static final class Mapped {
+        final MappedByteBuffer buffer;
+        final String etag;
+        final String contentType;
+        final String cacheControl;
+
+        Mapped(MappedByteBuffer buffer, String etag, String contentType, String cacheControl) {
+            this.buffer = buffer;
+            this.etag = etag;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+        }
+    }
+
+    private final String prefix;
+    private final Path root;
+    private final long maxCacheBytes;
+    private final long maxFileBytes;
+    private final ConcurrentHashMap<Path, Entry> cache = new ConcurrentHashMap<Path, Entry>();
+    private final ConcurrentHashMap<Path, Mapped> mapped = new ConcurrentHashMap<Path, Mapped>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Map<WatchKey, Path> watched = new ConcurrentHashMap<WatchKey, Path>();
+    private final WatchService watcher;
+
+    /**
+     * @param url           service URL
+     * @param root          root directory
+     * @param maxCacheBytes maximum size of the in-memory cache, plain and gzip variants together
+     * @param maxFileBytes  maximum size of the cached file, larger files are memory-mapped
+     * @throws IOException if the root directory cannot be watched
+     */
+    public StaticFileService(String url, Path root, long maxCacheBytes, long maxFileBytes) throws IOException {
+        super(url);
+        this.prefix = "/" + url;
+        this.root = root.toAbsolutePath().normalize();
+        this.maxCacheBytes = maxCacheBytes;
+        this.maxFileBytes = maxFileBytes;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        register(this.root);
+        Thread th = new Thread(this::watch, "static-file-watcher");
+        th.setDaemon(true);
+        th.start();
+    }
+
+    @Override
+    public RestParams getParams(HttpExchange httpExchange) throws IOException {
+        RestParams par = new RestParams(RestHelper.GET, Optional.empty(), false, new ArrayList<String>());
+        // cache busting query (app.js?v=12) is accepted and ignored
+        String query = httpExchange.getRequestURI().getRawQuery();
+        if (query != null)
+            for (String q : query.split("&")) {
+                int ipos = q.indexOf('=');
+                par.addParam(ipos == -1 ? q : q.substring(0, ipos), PARAMTYPE.STRING, new ParamValue(""));
+            }
+        return par;
+    }
+
+    @Override
+    public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+        HttpExchange t = v.getT();
+        Optional<Path> file = resolve(t.getRequestURI().getPath());
+        if (file.isEmpty()) {
+            produceResponse(v, Optional.of("Not found"), RestHelper.HTTPNOTFOUND);
+            return;
+        }
+        Path p = file.get();
+        Entry e = cache.get(p);
+        if (e != null) {
+            hits.incrementAndGet();
+            e.lastAccess = System.nanoTime();
+            sendEntry(t, e);
+            return;
+        }
+        Mapped m = mapped.get(p);
+        if (m != null) {
+            hits.incrementAndGet();
+            sendMapped(t, p, m);
+            return;
+        }
+        misses.incrementAndGet();
+        if (!Files.isRegularFile(p)) {
+            produceResponse(v, Optional.of("Not found"), RestHelper.HTTPNOTFOUND);
+            return;
+        }
+        long size = Files.size(p);
+        if (size <= maxFileBytes) {
+            sendEntry(t, load(p));
+            return;
+        }
+        sendMapped(t, p, map(p));
+    }
+
+    /**
+     * Maps URL path to file in the root directory
+     *
+     * @param path decoded URL path
+     * @return File path, empty if outside the root directory
+     */
+    private Optional<Path> resolve(String path) {
+        String rel = path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+        while (rel.startsWith("/")) rel = rel.substring(1);
+        if (rel.isEmpty() || rel.endsWith("/")) rel = rel + INDEX;
+        Path p = root.resolve(rel).normalize();
+        if (!p.startsWith(root)) return Optional.empty();
+        return Optional.of(p);
+    }
+
+    private static String contentType(Path p) {
+        String name = p.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot == -1) return DEFAULTMIME;
+        return MIMETYPES.getOrDefault(name.substring(dot + 1).toLowerCase(), DEFAULTMIME);
+    }
+
+    private static boolean compressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.startsWith("application/json") || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg") || contentType.startsWith("application/wasm");
+    }
+
+    private static String cacheControl(Path p) {
+        return FINGERPRINT.matcher(p.getFileName().toString()).matches() ? IMMUTABLE : REVALIDATE;
+    }
+
+    /**
+     * Reads small file, computes ETag and gzip variant and puts the entry into the cache
+     */
+    private Entry load(Path p) throws IOException {
+        long generation = invalidations.get();
+        byte[] body = Files.readAllBytes(p);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        String etag = "\"" + Long.toHexString(body.length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+        String contentType = contentType(p);
+        byte[] gzip = null;
+        if (compressible(contentType) && body.length > 256) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+            try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+                gz.write(body);
+            }
+            // keep the variant only if it saves at least 10%
+            if (out.size() < body.length * 9 / 10) gzip = out.toByteArray();
+        }
+        Entry e = new Entry(body, gzip, etag, contentType, cacheControl(p));
+        Entry prev = cache.putIfAbsent(p, e);
+        if (prev != null) return prev;
+        cachedBytes.addAndGet(e.size());
+        // the file could be modified while reading, do not keep possibly stale content
+        if (invalidations.get() != generation) remove(p);
+        else if (cachedBytes.get() > maxCacheBytes) evict();
+        return e;
+    }
+
+    private void remove(Path p) {
+        Entry e = cache.remove(p);
+        if (e != null) cachedBytes.addAndGet(-e.size());
+    }
+
+    /**
+     * Removes least recently used entries until the cache fits in the limit
+     */
+    private synchronized void evict() {
+        if (cachedBytes.get() <= maxCacheBytes) return;
+        List<Map.Entry<Path, Entry>> entries = new ArrayList<Map.Entry<Path, Entry>>(cache.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+        for (Map.Entry<Path, Entry> e : entries) {
+            if (cachedBytes.get() <= maxCacheBytes) break;
+            if (cache.remove(e.getKey(), e.getValue())) {
+                cachedBytes.addAndGet(-e.getValue().size());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static boolean notModified(HttpExchange t, String etag) {
+        String inm = t.getRequestHeaders().getFirst("If-None-Match");
+        if (inm == null) return false;
+        for (String tag : inm.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(HttpExchange t) {
+        List<String> ae = t.getRequestHeaders().get("Accept-Encoding");
+        if (ae == null) return false;
+        for (String a : ae)
+            for (String enc : a.split(",")) {
+                String[] parts = enc.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) return parts.length == 1 || !parts[1].trim().replace(" ", "").equals("q=0");
+            }
+        return false;
+    }
+
+    private static void headers(HttpExchange t, String contentType, String etag, String cacheControl) {
+        Headers h = t.getResponseHeaders();
+        h.set("Content-Type", contentType);
+        h.set("ETag", etag);
+        h.set("Cache-Control", cacheControl);
+    }
+
+    private void sendEntry(HttpExchange t, Entry e) throws IOException {
+        boolean gzip = e.gzip != null && acceptsGzip(t);
+        String etag = gzip ? e.gzipEtag : e.etag;
+        headers(t, e.contentType, etag, e.cacheControl);
+        if (e.gzip != null) RestHelper.addVary(t.getResponseHeaders(), "Accept-Encoding");
+        if (notModified(t, etag)) {
+            t.sendResponseHeaders(RestHelper.HTTPNOTMODIFIED, -1);
+            return;
+        }
+        byte[] body = gzip ? e.gzip : e.body;
+        if (gzip) t.getResponseHeaders().set("Content-Encoding", "gzip");
+        t.sendResponseHeaders(RestHelper.HTTPOK, body.length == 0 ? -1 : body.length);
+        if (body.length == 0) return;
+        OutputStream os = t.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private Mapped map(Path p) throws IOException {
+        Mapped m = mapped.get(p);
+        if (m != null) return m;
+        try (FileChannel fc = FileChannel.open(p)) {
+            long size = fc.size();
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(Files.getLastModifiedTime(p).toMillis()) + "\"";
+            // the mapping stays valid after the channel is closed
+            m = new Mapped(fc.map(FileChannel.MapMode.READ_ONLY, 0, size), etag, contentType(p), cacheControl(p));
+        }
+        Mapped prev = mapped.putIfAbsent(p, m);
+        return prev == null ? m : prev;
+    }
+
+    private void sendMapped(HttpExchange t, Path p, Mapped m) throws IOException {
+        headers(t, m.contentType, m.etag, m.cacheControl);
+        if (notModified(t, m.etag)) {
+            t.sendResponseHeaders(RestHelper.HTTPNOTMODIFIED, -1);
+            return;
+        }
+        long len = m.buffer.capacity();
+        t.sendResponseHeaders(RestHelper.HTTPOK, len);
+        if (t instanceof NioHttpExchange) {
+            // zero-copy transfer, the channel is closed by the server
+            ((NioHttpExchange) t).sendFile(FileChannel.open(p), 0, len);
+            return;
+        }
+        OutputStream os = t.getResponseBody();
+        // ByteBuffer.duplicate, MappedByteBuffer.duplicate does not exist before Java 17
+        ByteBuffer b = ((ByteBuffer) m.buffer).duplicate();
+        byte[] chunk = new byte[WRITECHUNK];
+        try {
+            while (b.hasRemaining()) {
+                int n = Math.min(chunk.length, b.remaining());
+                b.get(chunk, 0, n);
+                os.write(chunk, 0, n);
+            }
+        } catch (InternalError e) {
+            // the file was truncated under the mapping
+            mapped.remove(p, m);
+            throw new IOException("File " + p + " changed while sending", e);
+        }
+        os.close();
+    }
+
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watched.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Removes cached content of the file or all files in the directory
+     */
+    private void invalidate(Path p) {
+        invalidations.incrementAndGet();
+        for (Path k : cache.keySet()) if (k.startsWith(p)) remove(k);
+        for (Path k : mapped.keySet()) if (k.startsWith(p)) mapped.remove(k);
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = watched.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    invalidate(root);
+                    continue;
+                }
+                Path p = dir.resolve((Path) event.context());
+                invalidate(p);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p)) {
+                    try {
+                        register(p);
+                    } catch (IOException e) {
+                        RestLogger.L.log(Level.WARNING, "Cannot watch directory " + p, e);
+                    }
+                }
+            }
+            if (!key.reset()) watched.remove(key);
+        }
+    }
+
+    /**
+     * Stops the file watcher, the cache is no longer invalidated
+     */
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Current size of the in-memory cache in bytes
+     */
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+}
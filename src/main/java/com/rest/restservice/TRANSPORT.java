@@ -0,0 +1,29 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * HTTP server implementation used by RestStart
+ * JDK : com.sun.net.httpserver.HttpServer, HTTP and HTTPS
+ * NIO : com.rest.restservice.nio.NioHttpServer, several event loops, keep-alive pipelining, HTTP only
+ * Default is taken from system property restservice.transport (jdk or nio).
+ */
+
+public enum TRANSPORT {
+    JDK, NIO;
+
+    static TRANSPORT getDefault() {
+        return valueOf(System.getProperty("restservice.transport", "jdk").toUpperCase());
+    }
+}
@@ -0,0 +1,401 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming encoders of ResultTable and generic values written straight to the response body.<br>
+ * JSON: array of objects, one object per row.<br>
+ * CBOR (RFC 8949): indefinite-length array of maps, one map per row. DATE is tagged (100) epoch day, DOUBLE is encoded as float32
+ * if no precision is lost.<br>
+ * COLUMNAR: length-prefixed columnar format, rows are written in blocks, values of one column are stored together.
+ * <pre>
+ * "RSC1" varint(columns) { byte(PARAMTYPE ordinal) varint(name length) name(UTF-8) } per column
+ * block: varint(rows) { null bitmap((rows + 7) / 8 bytes, bit set - null) values } per column
+ *   BOOLEAN: value bitmap, INT and DATE (epoch day): zigzag varint, DOUBLE: 8 bytes IEEE 754 big endian,
+ *   STRING: varint(length) UTF-8. Nulls have no value entry.
+ * the stream ends with varint(0) block
+ * </pre>
+ */
+public class TableEncoder {
+
+    public static final int BLOCKROWS = 4096;
+
+    private static final byte[] MAGIC = {'R', 'S', 'C', '1'};
+    private static final int CBORTAGEPOCHDAY = 100;
+
+    private TableEncoder() {
+    }
+
+    /**
+     * Output buffer, not synchronized
+     */
+    private static final class Sink {
+        private final OutputStream out;
+        private final byte[] buf = new byte[16384];
+        private int pos = 0;
+
+        Sink(OutputStream out) {
+            this.out = out;
+        }
+
+        void ensure(int n) throws IOException {
+            if (pos + n > buf.length) flush();
+        }
+
+        void flush() throws IOException {
+            if (pos > 0) out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        void write(int b) throws IOException {
+            if (pos == buf.length) flush();
+            buf[pos++] = (byte) b;
+        }
+
+        void write(byte[] b) throws IOException {
+            if (b.length > buf.length - pos) {
+                flush();
+                if (b.length > buf.length) {
+                    out.write(b);
+                    return;
+                }
+            }
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        void writeLong(long v) throws IOException {
+            ensure(8);
+            for (int s = 56; s >= 0; s -= 8) buf[pos++] = (byte) (v >>> s);
+        }
+
+        void writeInt(int v) throws IOException {
+            ensure(4);
+            for (int s = 24; s >= 0; s -= 8) buf[pos++] = (byte) (v >>> s);
+        }
+
+        void writeVarint(long v) throws IOException {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeString(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) write(c);
+                else {
+                    // rare path, proper UTF-8 encoding of the rest
+                    byte[] b = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                    write(b);
+                    return;
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------ JSON
+
+    private static void jsonValue(StringBuilder b, PARAMTYPE type, Object o) {
+        if (o == null) {
+            b.append("null");
+            return;
+        }
+        switch (type) {
+            case INT:
+                b.append(((Number) o).longValue());
+                break;
+            case DOUBLE: {
+                double d = ((Number) o).doubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) b.append("null");
+                else b.append(d);
+                break;
+            }
+            case BOOLEAN:
+                b.append(((Boolean) o).booleanValue());
+                break;
+            case DATE:
+                b.append('"').append(LocalDate.ofEpochDay(ResultTable.epochDay(o))).append('"');
+                break;
+            default:
+                Json.quote(b, o.toString());
+        }
+    }
+
+    /**
+     * Writes table as JSON array of objects
+     */
+    public static void json(ResultTable table, OutputStream out) throws IOException {
+        Sink sink = new Sink(out);
+        List<ResultTable.Column> cols = table.getColumns();
+        String[] keys = new String[cols.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = (i == 0 ? "{" : ",") + Json.quote(cols.get(i).name) + ":";
+        StringBuilder b = new StringBuilder(256);
+        sink.write('[');
+        boolean first = true;
+        for (Iterator<Object[]> i = table.getRows(); i.hasNext(); ) {
+            Object[] row = i.next();
+            b.setLength(0);
+            if (!first) b.append(',');
+            first = false;
+            for (int c = 0; c < keys.length; c++) {
+                b.append(keys[c]);
+                jsonValue(b, cols.get(c).type, row[c]);
+            }
+            b.append('}');
+            sink.writeString(b.toString());
+        }
+        sink.write(']');
+        sink.flush();
+    }
+
+    /**
+     * Writes generic value (Map, List, String, Number, Boolean, null) as JSON
+     */
+    public static void json(Object value, StringBuilder b) {
+        if (value == null) b.append("null");
+        else if (value instanceof Map) {
+            b.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!first) b.append(',');
+                first = false;
+                Json.quote(b, String.valueOf(e.getKey()));
+                b.append(':');
+                json(e.getValue(), b);
+            }
+            b.append('}');
+        } else if (value instanceof List) {
+            b.append('[');
+            boolean first = true;
+            for (Object o : (List<?>) value) {
+                if (!first) b.append(',');
+                first = false;
+                json(o, b);
+            }
+            b.append(']');
+        } else if (value instanceof Number || value instanceof Boolean) b.append(value);
+        else Json.quote(b, value.toString());
+    }
+
+    // ------------------------------------------------------------------ CBOR
+
+    private static void cborHead(Sink s, int major, long v) throws IOException {
+        int m = major << 5;
+        if (v < 24) s.write(m | (int) v);
+        else if (v < 0x100) {
+            s.write(m | 24);
+            s.write((int) v);
+        } else if (v < 0x10000) {
+            s.write(m | 25);
+            s.write((int) (v >>> 8));
+            s.write((int) v);
+        } else if (v < 0x100000000L) {
+            s.write(m | 26);
+            s.writeInt((int) v);
+        } else {
+            s.write(m | 27);
+            s.writeLong(v);
+        }
+    }
+
+    private static void cborLong(Sink s, long v) throws IOException {
+        if (v >= 0) cborHead(s, 0, v);
+        else cborHead(s, 1, -1 - v);
+    }
+
+    private static void cborDouble(Sink s, double d) throws IOException {
+        float f = (float) d;
+        if (f == d || Double.isNaN(d)) {
+            s.write(0xfa);
+            s.writeInt(Float.floatToIntBits(f));
+        } else {
+            s.write(0xfb);
+            s.writeLong(Double.doubleToLongBits(d));
+        }
+    }
+
+    private static void cborString(Sink s, String v) throws IOException {
+        byte[] b = v.getBytes(StandardCharsets.UTF_8);
+        cborHead(s, 3, b.length);
+        s.write(b);
+    }
+
+    private static void cborValue(Sink s, PARAMTYPE type, Object o) throws IOException {
+        if (o == null) {
+            s.write(0xf6);
+            return;
+        }
+        switch (type) {
+            case INT:
+                cborLong(s, ((Number) o).longValue());
+                break;
+            case DOUBLE:
+                cborDouble(s, ((Number) o).doubleValue());
+                break;
+            case BOOLEAN:
+                s.write(((Boolean) o) ? 0xf5 : 0xf4);
+                break;
+            case DATE:
+                cborHead(s, 6, CBORTAGEPOCHDAY);
+                cborLong(s, ResultTable.epochDay(o));
+                break;
+            default:
+                cborString(s, o.toString());
+        }
+    }
+
+    /**
+     * Writes table as CBOR indefinite-length array of maps
+     */
+    public static void cbor(ResultTable table, OutputStream out) throws IOException {
+        Sink sink = new Sink(out);
+        List<ResultTable.Column> cols = table.getColumns();
+        // encoded keys are reused for every row
+        byte[][] keys = new byte[cols.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            // the column name can be longer than the sink buffer
+            ByteArrayOutputStream kb = new ByteArrayOutputStream();
+            Sink k = new Sink(kb);
+            cborString(k, cols.get(i).name);
+            k.flush();
+            keys[i] = kb.toByteArray();
+        }
+        sink.write(0x9f);
+        for (Iterator<Object[]> i = table.getRows(); i.hasNext(); ) {
+            Object[] row = i.next();
+            cborHead(sink, 5, keys.length);
+            for (int c = 0; c < keys.length; c++) {
+                sink.write(keys[c]);
+                cborValue(sink, cols.get(c).type, row[c]);
+            }
+        }
+        sink.write(0xff);
+        sink.flush();
+    }
+
+    private static void cborObject(Sink s, Object value) throws IOException {
+        if (value == null) s.write(0xf6);
+        else if (value instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) value;
+            cborHead(s, 5, m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                cborString(s, String.valueOf(e.getKey()));
+                cborObject(s, e.getValue());
+            }
+        } else if (value instanceof List) {
+            List<?> l = (List<?>) value;
+            cborHead(s, 4, l.size());
+            for (Object o : l) cborObject(s, o);
+        } else if (value instanceof Double || value instanceof Float) cborDouble(s, ((Number) value).doubleValue());
+        else if (value instanceof Number) cborLong(s, ((Number) value).longValue());
+        else if (value instanceof Boolean) s.write(((Boolean) value) ? 0xf5 : 0xf4);
+        else cborString(s, value.toString());
+    }
+
+    /**
+     * Writes generic value (Map, List, String, Number, Boolean, null) as CBOR
+     */
+    public static void cbor(Object value, OutputStream out) throws IOException {
+        Sink sink = new Sink(out);
+        cborObject(sink, value);
+        sink.flush();
+    }
+
+    // ------------------------------------------------------------------ COLUMNAR
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static void columnarBlock(Sink s, List<ResultTable.Column> cols, Object[][] block, int rows) throws IOException {
+        s.writeVarint(rows);
+        int maplen = (rows + 7) / 8;
+        byte[] bitmap = new byte[maplen];
+        for (int c = 0; c < cols.size(); c++) {
+            Arrays.fill(bitmap, (byte) 0);
+            for (int r = 0; r < rows; r++) if (block[r][c] == null) bitmap[r >>> 3] |= 1 << (r & 7);
+            s.write(bitmap);
+            PARAMTYPE type = cols.get(c).type;
+            if (type == PARAMTYPE.BOOLEAN) {
+                Arrays.fill(bitmap, (byte) 0);
+                for (int r = 0; r < rows; r++)
+                    if (Boolean.TRUE.equals(block[r][c])) bitmap[r >>> 3] |= 1 << (r & 7);
+                s.write(bitmap);
+                continue;
+            }
+            for (int r = 0; r < rows; r++) {
+                Object o = block[r][c];
+                if (o == null) continue;
+                switch (type) {
+                    case INT:
+                        s.writeVarint(zigzag(((Number) o).longValue()));
+                        break;
+                    case DATE:
+                        s.writeVarint(zigzag(ResultTable.epochDay(o)));
+                        break;
+                    case DOUBLE:
+                        s.writeLong(Double.doubleToLongBits(((Number) o).doubleValue()));
+                        break;
+                    default: {
+                        byte[] b = o.toString().getBytes(StandardCharsets.UTF_8);
+                        s.writeVarint(b.length);
+                        s.write(b);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes table in COLUMNAR format, blocks of BLOCKROWS rows
+     */
+    public static void columnar(ResultTable table, OutputStream out) throws IOException {
+        Sink sink = new Sink(out);
+        List<ResultTable.Column> cols = table.getColumns();
+        sink.write(MAGIC);
+        sink.writeVarint(cols.size());
+        for (ResultTable.Column c : cols) {
+            sink.write(c.type.ordinal());
+            byte[] name = c.name.getBytes(StandardCharsets.UTF_8);
+            sink.writeVarint(name.length);
+            sink.write(name);
+        }
+        Object[][] block = new Object[BLOCKROWS][];
+        int rows = 0;
+        for (Iterator<Object[]> i = table.getRows(); i.hasNext(); ) {
+            block[rows++] = i.next();
+            if (rows == BLOCKROWS) {
+                columnarBlock(sink, cols, block, rows);
+                rows = 0;
+            }
+        }
+        if (rows > 0) columnarBlock(sink, cols, block, rows);
+        sink.writeVarint(0);
+        sink.flush();
+    }
+}
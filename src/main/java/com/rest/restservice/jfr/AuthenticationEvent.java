@@ -0,0 +1,40 @@
+package com.rest.restservice.jfr;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Kerberos/SPNEGO authentication handshake step
+ */
+@Name("com.rest.restservice.Authentication")
+@Label("REST Authentication")
+@Category({"RestService", "Security"})
+@StackTrace(false)
+@Enabled(false)
+public class AuthenticationEvent extends jdk.jfr.Event {
+
+    @Label("Service URL")
+    public String url;
+
+    @Label("Result")
+    public String result;
+
+    @Label("Principal")
+    public String principal;
+}
@@ -0,0 +1,126 @@
+package com.rest.restservice.jfr;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Helpers emitting RestService JFR events. The events are enabled by JFR settings (see restservice.jfc),
+ * when disabled every call reduces to the isEnabled or shouldCommit check.
+ */
+public final class JfrEvents {
+
+    private static final ThreadLocal<RequestEvent> CURRENT = new ThreadLocal<RequestEvent>();
+
+    private JfrEvents() {
+    }
+
+    private static String url(HttpExchange t) {
+        return t.getHttpContext() == null ? t.getRequestURI().getPath() : t.getHttpContext().getPath();
+    }
+
+    /**
+     * Starts request event in the current thread
+     *
+     * @return Event or null if disabled
+     */
+    public static RequestEvent beginRequest() {
+        RequestEvent e = new RequestEvent();
+        if (!e.isEnabled()) return null;
+        e.begin();
+        CURRENT.set(e);
+        return e;
+    }
+
+    /**
+     * Commits request event started by beginRequest
+     *
+     * @param e Event, null is ignored
+     * @param t Exchange
+     */
+    public static void endRequest(RequestEvent e, HttpExchange t) {
+        if (e == null) return;
+        CURRENT.remove();
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.url = url(t);
+        e.method = t.getRequestMethod();
+        e.status = t.getResponseCode();
+        if (e.bytesIn == 0) {
+            String len = t.getRequestHeaders().getFirst("Content-Length");
+            if (len != null) {
+                try {
+                    e.bytesIn = Long.parseLong(len.trim());
+                } catch (NumberFormatException ex) {
+                    // ignore, unknown size
+                }
+            }
+        }
+        e.commit();
+    }
+
+    /**
+     * Detaches request event from the current thread, the event is ended later by endRequest, possibly in other thread
+     */
+    public static void detachRequest() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Commits body read event
+     *
+     * @param e     Event, begin was called before reading
+     * @param t     Exchange
+     * @param bytes Bytes read
+     */
+    public static void bodyRead(BodyReadEvent e, HttpExchange t, long bytes) {
+        RequestEvent r = CURRENT.get();
+        if (r != null) r.bytesIn += bytes;
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.url = url(t);
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    /**
+     * Commits response write event
+     *
+     * @param e     Event, begin was called before writing
+     * @param t     Exchange
+     * @param bytes Bytes written
+     */
+    public static void responseWritten(ResponseWriteEvent e, HttpExchange t, long bytes) {
+        RequestEvent r = CURRENT.get();
+        if (r != null) r.bytesOut += bytes;
+        e.end();
+        if (!e.shouldCommit()) return;
+        e.url = url(t);
+        e.status = t.getResponseCode();
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    /**
+     * Emits validation failure event
+     */
+    public static void validationFailure(HttpExchange t, int status, String message) {
+        ValidationFailureEvent e = new ValidationFailureEvent();
+        if (!e.shouldCommit()) return;
+        e.url = url(t);
+        e.status = status;
+        e.message = message;
+        e.commit();
+    }
+}
@@ -0,0 +1,51 @@
+package com.rest.restservice.jfr;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Whole request handled by RestServiceHelper, from handle start to the end of the response
+ */
+@Name("com.rest.restservice.Request")
+@Label("REST Request")
+@Category({"RestService"})
+@Description("REST request handled by RestServiceHelper")
+@StackTrace(false)
+@Enabled(false)
+public class RequestEvent extends jdk.jfr.Event {
+
+    @Label("Service URL")
+    public String url;
+
+    @Label("Method")
+    public String method;
+
+    @Label("Status")
+    public int status;
+
+    @Label("Bytes In")
+    @DataAmount
+    public long bytesIn;
+
+    @Label("Bytes Out")
+    @DataAmount
+    public long bytesOut;
+}
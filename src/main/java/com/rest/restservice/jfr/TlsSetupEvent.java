@@ -0,0 +1,40 @@
+package com.rest.restservice.jfr;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * TLS setup in SecureHttp: SSL context creation (keystore load) or per connection parameters configuration
+ */
+@Name("com.rest.restservice.TlsSetup")
+@Label("REST TLS Setup")
+@Category({"RestService", "Security"})
+@StackTrace(false)
+@Enabled(false)
+public class TlsSetupEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Client Address")
+    public String clientAddress;
+
+    @Label("Protocols")
+    public String protocols;
+}
@@ -0,0 +1,263 @@
+package com.rest.restservice.kerberos;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+import org.ietf.jgss.GSSCredential;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import java.io.Closeable;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+/**
+ * Keeps the JAAS Subject logged in and the acceptor GSSCredential fresh.<br>
+ * The credential is acquired at start and renewed on a background scheduler when the configured fraction of its lifetime
+ * has passed (keytab based credentials with indefinite lifetime are re-acquired every refresh period to pick up keytab rotation).
+ * The new credential is swapped atomically, authentication always reads the current one without blocking. The previous
+ * LoginContext is logged out after a grace period so handshakes in progress can complete.
+ * If renewal fails the current credential is kept and renewal is retried with backoff.
+ */
+public class CredentialManager implements Closeable {
+
+    /**
+     * Creates LoginContext for the JAAS configuration entry, injectable for testing
+     */
+    public interface ILoginContextFactory {
+        LoginContext create(String name) throws LoginException;
+    }
+
+    /**
+     * Creates the credential, called as the logged in Subject (inside Subject.doAs)
+     */
+    public interface ICredentialFactory {
+        GSSCredential create(Subject subject) throws Exception;
+    }
+
+    private static final class Current {
+        final GSSCredential credential;
+        final LoginContext context;
+        final long acquiredMillis;
+        final long expiresMillis;
+
+        Current(GSSCredential credential, LoginContext context, long acquiredMillis, long expiresMillis) {
+            this.credential = credential;
+            this.context = context;
+            this.acquiredMillis = acquiredMillis;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+
+    private final String name;
+    private final ILoginContextFactory loginFactory;
+    private final ICredentialFactory credentialFactory;
+    private final double renewFraction;
+    private final long refreshMillis;
+    private final long minRetryMillis;
+    private final long graceMillis;
+    private final AtomicReference<Current> current = new AtomicReference<Current>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "kerberos-credential-renewal");
+        th.setDaemon(true);
+        return th;
+    });
+    private final AtomicLong renewals = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long retryMillis;
+    private volatile String lastError = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param name              JAAS configuration entry name
+     * @param loginFactory      LoginContext factory
+     * @param credentialFactory Credential factory
+     * @param renewFraction     Fraction of credential lifetime after which the renewal starts, for instance 0.8
+     * @param refreshMillis     Renewal period if the lifetime is indefinite
+     * @param minRetryMillis    First retry delay after failed renewal, doubled up to refreshMillis
+     * @param graceMillis       Delay of previous LoginContext logout after swap
+     */
+    public CredentialManager(String name, ILoginContextFactory loginFactory, ICredentialFactory credentialFactory,
+                             double renewFraction, long refreshMillis, long minRetryMillis, long graceMillis) {
+        this.name = name;
+        this.loginFactory = loginFactory;
+        this.credentialFactory = credentialFactory;
+        this.renewFraction = renewFraction;
+        this.refreshMillis = refreshMillis;
+        this.minRetryMillis = minRetryMillis;
+        this.graceMillis = graceMillis;
+        this.retryMillis = minRetryMillis;
+    }
+
+    /**
+     * Acquires the first credential synchronously and schedules the renewal
+     *
+     * @throws Exception if the first login or credential creation fails
+     */
+    public void start() throws Exception {
+        schedule(acquire());
+    }
+
+    /**
+     * Logs in and creates new credential, swaps it with the current one
+     *
+     * @return New credential expiry time, Long.MAX_VALUE if indefinite
+     */
+    private long acquire() throws Exception {
+        LoginContext context = loginFactory.create(name);
+        context.login();
+        Subject subject = context.getSubject();
+        RestLogger.info("Authenticated principal: " + subject.getPrincipals());
+        GSSCredential credential;
+        long now = System.currentTimeMillis();
+        long expires;
+        try {
+            credential = Subject.doAs(subject, (PrivilegedExceptionAction<GSSCredential>) () -> credentialFactory.create(subject));
+            expires = expiry(subject, credential, now);
+        } catch (PrivilegedActionException e) {
+            logout(context);
+            throw e.getException();
+        } catch (Exception e) {
+            // unchecked exceptions are not wrapped by doAs, expiry fails with GSSException
+            logout(context);
+            throw e;
+        }
+        Current prev = current.getAndSet(new Current(credential, context, now, expires));
+        if (closed) {
+            // closed during renewal, nothing can use the new login
+            Current c = current.getAndSet(null);
+            if (c != null) logout(c.context);
+            if (prev != null) logout(prev.context);
+            throw new IllegalStateException("Credential manager closed");
+        }
+        if (prev != null) {
+            renewals.incrementAndGet();
+            scheduler.schedule(() -> logout(prev.context), graceMillis, TimeUnit.MILLISECONDS);
+        }
+        RestLogger.info("Kerberos credential acquired, " + (expires == Long.MAX_VALUE ? "indefinite lifetime" : "expires in " + (expires - now) / 1000 + " s"));
+        return expires;
+    }
+
+    /**
+     * Credential expiry: the earlier of credential remaining lifetime and Kerberos tickets end time
+     */
+    private static long expiry(Subject subject, GSSCredential credential, long now) throws Exception {
+        long expires = Long.MAX_VALUE;
+        int lifetime = credential.getRemainingLifetime();
+        if (lifetime != GSSCredential.INDEFINITE_LIFETIME) expires = now + lifetime * 1000L;
+        for (KerberosTicket t : subject.getPrivateCredentials(KerberosTicket.class))
+            if (t.getEndTime() != null) expires = Math.min(expires, t.getEndTime().getTime());
+        return expires;
+    }
+
+    private static void logout(LoginContext context) {
+        try {
+            context.logout();
+        } catch (LoginException e) {
+            RestLogger.L.log(Level.WARNING, "Logout of previous Kerberos login failed", e);
+        }
+    }
+
+    private void schedule(long expires) {
+        long now = System.currentTimeMillis();
+        long delay = expires == Long.MAX_VALUE ? refreshMillis : Math.max(minRetryMillis, (long) ((expires - now) * renewFraction));
+        scheduler.schedule(this::renew, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void renew() {
+        try {
+            long expires = acquire();
+            retryMillis = minRetryMillis;
+            lastError = null;
+            schedule(expires);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            lastError = e.getMessage();
+            long delay = retryMillis;
+            retryMillis = Math.min(refreshMillis, retryMillis * 2);
+            RestLogger.L.log(Level.SEVERE, "Kerberos credential renewal failed, retry in " + delay + " ms", e);
+            scheduler.schedule(this::renew, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Current current() {
+        Current c = current.get();
+        if (c == null) throw new IllegalStateException(closed ? "Credential manager closed" : "Credential manager not started");
+        return c;
+    }
+
+    /**
+     * @return Current credential, never blocks
+     * @throws IllegalStateException if not started or closed
+     */
+    public GSSCredential getCredential() {
+        return current().credential;
+    }
+
+    /**
+     * @return Expiry time of the current credential (epoch millis), Long.MAX_VALUE if indefinite
+     */
+    public long getExpiresMillis() {
+        return current().expiresMillis;
+    }
+
+    /**
+     * @return Milliseconds until the current credential expires, Long.MAX_VALUE if indefinite
+     */
+    public long getRemainingMillis() {
+        long e = getExpiresMillis();
+        return e == Long.MAX_VALUE ? Long.MAX_VALUE : e - System.currentTimeMillis();
+    }
+
+    /**
+     * @return Time the current credential was acquired (epoch millis)
+     */
+    public long getAcquiredMillis() {
+        return current().acquiredMillis;
+    }
+
+    public long getRenewals() {
+        return renewals.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return Message of the last failed renewal, null if the last renewal succeeded
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stops renewal and logs out
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        Current c = current.getAndSet(null);
+        if (c != null) logout(c.context);
+    }
+}
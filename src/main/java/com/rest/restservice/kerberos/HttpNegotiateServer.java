@@ -14,6 +14,9 @@ package com.rest.restservice.kerberos;
  */
 
 import com.rest.restservice.RestLogger;
+import com.rest.restservice.jfr.AuthenticationEvent;
+import com.rest.restservice.tracing.Span;
+import com.rest.restservice.tracing.Tracer;
 import com.sun.net.httpserver.Authenticator;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -26,8 +29,8 @@ import org.ietf.jgss.Oid;
 import com.sun.security.jgss.GSSUtil;
 
 
+import javax.security.auth.Subject;
 import java.net.HttpURLConnection;
-import java.security.PrivilegedExceptionAction;
 import java.util.Base64;
 import java.util.logging.Level;
 
@@ -39,54 +42,100 @@ import java.util.logging.Level;
 public class HttpNegotiateServer {
 
     public static Authenticator constructNegotiateAuthenticator() throws Exception {
-        return new MyServerAuthenticator(false, NEGOTIATE);
+        return constructNegotiateAuthenticator(constructCredentialManager());
+    }
+
+    /**
+     * Credential manager for the "server" JAAS entry, renewal configured by restservice.kerberos.* system properties.
+     * The caller keeps the reference to read renewal metrics and to close it.
+     *
+     * @return Started credential manager
+     * @throws Exception if the first login or credential creation fails
+     */
+    public static CredentialManager constructCredentialManager() throws Exception {
+        CredentialManager manager = new CredentialManager("server", Jaas::newLoginContext, HttpNegotiateServer::createAcceptorCredential,
+                RENEWFRACTION, REFRESHMILLIS, RETRYMILLIS, GRACEMILLIS);
+        manager.start();
+        return manager;
+    }
+
+    /**
+     * @param manager Started credential manager, the authenticator uses its current credential
+     */
+    public static Authenticator constructNegotiateAuthenticator(CredentialManager manager) {
+        return new MyServerAuthenticator(false, NEGOTIATE, manager);
     }
 
     private static final String NEGOTIATE = "Negotiate";
 
+    private static final double RENEWFRACTION = Double.parseDouble(System.getProperty("restservice.kerberos.renew.fraction", "0.8"));
+    private static final long REFRESHMILLIS = Long.getLong("restservice.kerberos.refresh.millis", 3600_000L);
+    private static final long RETRYMILLIS = Long.getLong("restservice.kerberos.retry.millis", 30_000L);
+    private static final long GRACEMILLIS = Long.getLong("restservice.kerberos.grace.millis", 60_000L);
+
+    /**
+     * Default acceptor credential factory used by CredentialManager
+     */
+    public static GSSCredential createAcceptorCredential(Subject subject) throws Exception {
+        RestLogger.info("Creating GSSCredential");
+        GSSManager m = GSSManager.getInstance();
+        Oid spnegoOid = new Oid("1.2.840.113554.1.2.2");
+
+        Oid GSS_KRB5_MECH_OID = new Oid("1.2.840.113554.1.2.2");
+
+//        Oid GSS_KRB5_MECH_OID = GSSUtil.GSS_KRB5_MECH_OID
+
+
+        GSSCredential cred = m.createCredential(null,
+                GSSCredential.DEFAULT_LIFETIME,
+//                GSSUtil.GSS_SPNEGO_MECH_OID,
+                spnegoOid,
+                GSSCredential.ACCEPT_ONLY);
+        cred.add(cred.getName(), GSSCredential.INDEFINITE_LIFETIME, GSSCredential.INDEFINITE_LIFETIME, GSS_KRB5_MECH_OID, GSSCredential.ACCEPT_ONLY);
+
+        return cred;
+    }
+
     private static class MyServerAuthenticator
             extends Authenticator {
-        private GSSManager m;
-        private GSSCredential cred;
+        private final GSSManager m;
+        private final CredentialManager manager;
         private final String scheme;
         private final String reqHdr;
         private final String respHdr;
         private final int err;
 
-        MyServerAuthenticator(boolean proxy, String scheme) throws Exception {
+        MyServerAuthenticator(boolean proxy, String scheme, CredentialManager manager) {
 
             this.scheme = scheme;
+            this.manager = manager;
+            m = GSSManager.getInstance();
             reqHdr = proxy ? "Proxy-Authenticate" : "WWW-Authenticate";
             respHdr = proxy ? "Proxy-Authorization" : "Authorization";
             err = proxy ? HttpURLConnection.HTTP_PROXY_AUTH : HttpURLConnection.HTTP_UNAUTHORIZED;
-
-            Jaas.loginAndAction("server", new PrivilegedExceptionAction() {
-
-                @Override
-                public Object run() throws Exception {
-                    RestLogger.info("Creating GSSCredential");
-                    m = GSSManager.getInstance();
-                    Oid spnegoOid = new Oid("1.2.840.113554.1.2.2");
-
-                    Oid GSS_KRB5_MECH_OID = new Oid("1.2.840.113554.1.2.2");
-
-//                    Oid GSS_KRB5_MECH_OID = GSSUtil.GSS_KRB5_MECH_OID
-
-
-                    cred = m.createCredential(null,
-                            GSSCredential.DEFAULT_LIFETIME,
-//                            GSSUtil.GSS_SPNEGO_MECH_OID,
-                            spnegoOid,
-                            GSSCredential.ACCEPT_ONLY);
-                    cred.add(cred.getName(), GSSCredential.INDEFINITE_LIFETIME, GSSCredential.INDEFINITE_LIFETIME, GSS_KRB5_MECH_OID, GSSCredential.ACCEPT_ONLY);
-
-                    return cred;
-                }
-            });
         }
 
         @Override
         public Result authenticate(HttpExchange exch) {
+            AuthenticationEvent event = new AuthenticationEvent();
+            event.begin();
+            try (Span span = Tracer.startSpan("authenticate")) {
+                Result r = authenticateTicket(exch);
+                span.setAttribute("auth.result", r.getClass().getSimpleName());
+                if (r instanceof Authenticator.Failure) span.setError("Authentication failed");
+                event.end();
+                if (event.shouldCommit()) {
+                    event.url = exch.getHttpContext().getPath();
+                    event.result = r.getClass().getSimpleName();
+                    if (r instanceof Authenticator.Success)
+                        event.principal = ((Authenticator.Success) r).getPrincipal().getName();
+                    event.commit();
+                }
+                return r;
+            }
+        }
+
+        private Result authenticateTicket(HttpExchange exch) {
             // The GSContext is stored in an HttpContext attribute named
             // "GSSContext" and is created at the first request.
             String auth = exch.getRequestHeaders().getFirst(respHdr);
@@ -95,7 +144,7 @@ public class HttpNegotiateServer {
                 if (auth == null) {                 // First request
                     Headers map = exch.getResponseHeaders();
                     map.add(reqHdr, scheme);        // Challenge!
-                    GSSContext conte = m.createContext(cred);
+                    GSSContext conte = m.createContext(manager.getCredential());
                     exch.getHttpContext().getAttributes().put("GSSContext", conte);
                     return new Authenticator.Retry(err);
                 } else {                            // Later requests
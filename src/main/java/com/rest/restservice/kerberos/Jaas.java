@@ -13,37 +13,23 @@ package com.rest.restservice.kerberos;
  * limitations under the License.
  */
 
-import javax.security.auth.Subject;
 import javax.security.auth.login.*;
 import javax.security.auth.callback.CallbackHandler;
-import java.security.*;
 
-import com.rest.restservice.RestLogger;
 import com.sun.security.auth.callback.TextCallbackHandler;
 
-class Jaas {
+public class Jaas {
 
-    static void loginAndAction(String name, PrivilegedExceptionAction action)
-            throws LoginException, PrivilegedActionException {
+    /**
+     * Default LoginContext factory used by CredentialManager
+     */
+    public static LoginContext newLoginContext(String name) throws LoginException {
 
         // Create a callback handler
         CallbackHandler callbackHandler = new TextCallbackHandler();
 
-        LoginContext context = null;
-
         // Create a LoginContext with a callback handler
-        context = new LoginContext(name, callbackHandler);
-
-        // Perform authentication
-        context.login();
-
-        // Perform action as authenticated user
-        Subject subject = context.getSubject();
-        RestLogger.info("Authenticated principal: " + subject.getPrincipals());
-
-        Subject.doAs(subject, action);
-
-        context.logout();
+        return new LoginContext(name, callbackHandler);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,99 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestHelper;
+import com.rest.restservice.RestLogger;
+import com.rest.restservice.RestServer;
+import com.rest.restservice.RestStart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Connection accept throughput as a function of the number of server instances (dispatcher threads).
+ * Every client request opens a new connection and sends "Connection: close", so the dispatcher accept path dominates.<br>
+ * Usage: java com.rest.restservice.load.AcceptBenchmark /port/ /max instances/ /client threads/ /seconds/
+ */
+public class AcceptBenchmark extends RestStart {
+
+    private static final byte[] REQUEST = "GET /echo HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static boolean oneConnection(int port, byte[] buf) {
+        try (Socket s = new Socket()) {
+            s.setSoLinger(true, 0);
+            s.connect(new InetSocketAddress("localhost", port), 5000);
+            s.setSoTimeout(5000);
+            OutputStream out = s.getOutputStream();
+            out.write(REQUEST);
+            out.flush();
+            InputStream in = s.getInputStream();
+            while (in.read(buf) != -1) ;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the benchmark for given number of instances
+     *
+     * @return connections per second
+     */
+    public static double run(int port, int instances, int threads, int seconds, AtomicLong errors) throws Exception {
+        RestServer server = RestStart(port, false, s -> RestHelper.registerService(s, new LoadHarness.EchoService()), new String[0], instances);
+        final AtomicLong done = new AtomicLong();
+        final long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int first = i;
+            Thread th = new Thread(() -> {
+                byte[] buf = new byte[4096];
+                for (int n = first; System.nanoTime() < end; n++) {
+                    if (oneConnection(port + n % instances, buf)) done.incrementAndGet();
+                    else errors.incrementAndGet();
+                }
+            });
+            th.start();
+            clients.add(th);
+        }
+        for (Thread th : clients) th.join();
+        server.shutdown(0, 2000);
+        return (double) done.get() / seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7900;
+        int maxinstances = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        RestLogger.L.setLevel(Level.WARNING);
+        System.out.println(String.format("%-10s %12s %8s", "instances", "conn/s", "errors"));
+        for (int instances = 1; instances <= maxinstances; instances *= 2) {
+            AtomicLong errors = new AtomicLong();
+            // every run uses fresh port range to avoid TIME_WAIT interference
+            double thr = run(port, instances, threads, seconds, errors);
+            System.out.println(String.format("%-10d %12.1f %8d", instances, thr, errors.get()));
+            port += maxinstances;
+        }
+    }
+}
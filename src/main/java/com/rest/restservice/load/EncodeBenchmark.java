@@ -0,0 +1,113 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.PARAMTYPE;
+import com.rest.restservice.ResultTable;
+import com.rest.restservice.TableEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encode throughput and payload size of tabular result: JSON vs CBOR vs COLUMNAR.<br>
+ * The table resembles typical query result: id, customer, amount, currency, paid flag, date and sparse note.<br>
+ * Usage: java com.rest.restservice.load.EncodeBenchmark /rows/ /iterations/
+ */
+public class EncodeBenchmark {
+
+    private static final String[] CUSTOMERS = {"ACME Corporation", "Globex", "Initech", "Umbrella", "Stark Industries", "Wayne Enterprises", "Hooli", "Soylent"};
+    private static final String[] CURRENCIES = {"EUR", "USD", "PLN", "GBP"};
+    private static final LocalDate START = LocalDate.of(2024, 1, 1);
+
+    private interface IEncoder {
+        void encode(ResultTable table, OutputStream out) throws IOException;
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    static ResultTable table(int rows) {
+        Iterator<Object[]> it = new Iterator<Object[]>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < rows;
+            }
+
+            @Override
+            public Object[] next() {
+                int n = i++;
+                return new Object[]{
+                        (long) 1_000_000 + n,
+                        CUSTOMERS[n % CUSTOMERS.length],
+                        Math.round((n * 37 % 100_000) * 1.07) / 100.0,
+                        CURRENCIES[n % CURRENCIES.length],
+                        n % 3 != 0,
+                        START.plusDays(n % 365),
+                        n % 10 == 0 ? "priority order " + n : null
+                };
+            }
+        };
+        return new ResultTable(it,
+                new ResultTable.Column("id", PARAMTYPE.INT),
+                new ResultTable.Column("customer", PARAMTYPE.STRING),
+                new ResultTable.Column("amount", PARAMTYPE.DOUBLE),
+                new ResultTable.Column("currency", PARAMTYPE.STRING),
+                new ResultTable.Column("paid", PARAMTYPE.BOOLEAN),
+                new ResultTable.Column("created", PARAMTYPE.DATE),
+                new ResultTable.Column("note", PARAMTYPE.STRING));
+    }
+
+    private static void run(String name, IEncoder enc, int rows, int iterations) throws IOException {
+        // warm up
+        for (int i = 0; i < Math.max(3, iterations / 5); i++) enc.encode(table(rows), new CountingStream());
+        CountingStream c = new CountingStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) enc.encode(table(rows), c);
+        double sec = (System.nanoTime() - start) / 1e9;
+        long bytes = c.count / iterations;
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        try (GZIPOutputStream g = new GZIPOutputStream(gz)) {
+            enc.encode(table(rows), g);
+        }
+        System.out.println(String.format("%-10s %12d %10.1f %12d %12.0f %10.1f", name, bytes, (double) bytes / rows, gz.size(),
+                (double) rows * iterations / sec, c.count / sec / 1e6));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        System.out.println(String.format("%-10s %12s %10s %12s %12s %10s", "format", "bytes", "bytes/row", "gzip bytes", "rows/s", "MB/s"));
+        run("JSON", TableEncoder::json, rows, iterations);
+        run("CBOR", TableEncoder::cbor, rows, iterations);
+        run("COLUMNAR", TableEncoder::columnar, rows, iterations);
+    }
+}
@@ -0,0 +1,99 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free log-linear latency histogram (HDR style). Values are recorded in microseconds.
+ * Every power-of-two range is split into 512 sub-buckets, the relative error is below 0.2%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUBBITS = 10;
+    private static final int SUBCOUNT = 1 << SUBBITS;
+    private static final int HALFCOUNT = SUBCOUNT / 2;
+    private static final int MAXSHIFT = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUBCOUNT + MAXSHIFT * HALFCOUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long v) {
+        if (v < SUBCOUNT) return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - (SUBBITS - 1);
+        if (shift > MAXSHIFT) return SUBCOUNT + MAXSHIFT * HALFCOUNT - 1;
+        return SUBCOUNT + (shift - 1) * HALFCOUNT + (int) ((v >> shift) - HALFCOUNT);
+    }
+
+    private static long valueAt(int index) {
+        if (index < SUBCOUNT) return index;
+        int shift = (index - SUBCOUNT) / HALFCOUNT + 1;
+        long sub = (index - SUBCOUNT) % HALFCOUNT + HALFCOUNT;
+        // highest value equivalent to this bucket
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records single value
+     *
+     * @param micros latency in microseconds
+     */
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts.incrementAndGet(index(micros));
+        total.incrementAndGet();
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) ;
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Value at given percentile
+     *
+     * @param percentile 0-100
+     * @return latency in microseconds
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            sum += counts.get(i);
+            if (sum >= wanted) return Math.min(valueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = 0;
+        double sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            count += c;
+            sum += (double) c * valueAt(i);
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+}
@@ -0,0 +1,146 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. Requests are issued at fixed arrival rate regardless of the server response time.
+ * The latency is measured from the intended (scheduled) send time, not from the actual send time, so queueing
+ * on the client or on the server side is not hidden (coordinated omission).
+ */
+public class LoadGenerator {
+
+    private final String baseUrl;
+    private final HttpClient client;
+    private final ExecutorService clientExecutor;
+    private final Duration timeout;
+
+    /**
+     * @param baseUrl    http://host:port or https://host:port
+     * @param timeoutSec request timeout, timed out requests are reported as errors
+     * @throws GeneralSecurityException if SSL context cannot be created
+     */
+    public LoadGenerator(String baseUrl, int timeoutSec) throws GeneralSecurityException {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.timeout = Duration.ofSeconds(timeoutSec);
+        this.clientExecutor = Executors.newCachedThreadPool(r -> {
+            Thread th = new Thread(r, "loadgen-client");
+            th.setDaemon(true);
+            return th;
+        });
+        HttpClient.Builder b = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(clientExecutor).connectTimeout(timeout);
+        if (this.baseUrl.startsWith("https")) b.sslContext(trustAll());
+        this.client = b.build();
+    }
+
+    /**
+     * The harness is used against self-signed test certificates, accept any certificate
+     */
+    private static SSLContext trustAll() throws GeneralSecurityException {
+        TrustManager[] tm = new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }};
+        SSLContext c = SSLContext.getInstance("TLS");
+        c.init(null, tm, null);
+        return c;
+    }
+
+    private HttpRequest build(LoadProfile.RequestTemplate t) {
+        String u = baseUrl + t.path + (t.query.isPresent() ? "?" + t.query.get() : "");
+        HttpRequest.BodyPublisher body = t.bodySize > 0 ? HttpRequest.BodyPublishers.ofByteArray(t.body) : HttpRequest.BodyPublishers.noBody();
+        return HttpRequest.newBuilder(URI.create(u)).timeout(timeout).method(t.method, body).build();
+    }
+
+    /**
+     * Runs the load profile
+     *
+     * @param label   Report label, for instance executor mode
+     * @param profile Load profile
+     * @return LoadReport
+     */
+    public LoadReport run(String label, LoadProfile profile) throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong outstanding = new AtomicLong();
+        final Map<Integer, Long> statuses = new ConcurrentHashMap<Integer, Long>();
+        final Random random = new Random(17);
+
+        final long period = TimeUnit.SECONDS.toNanos(1) / profile.getRate();
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.SECONDS.toNanos(profile.getWarmupSec());
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(profile.getDurationSec());
+
+        RestLogger.info("Load " + label + ": " + profile.getRate() + " req/s, " + profile.getDurationSec() + "s, mix " + profile.getMix());
+        for (long i = 0; ; i++) {
+            final long intended = start + i * period;
+            if (intended >= end) break;
+            long now;
+            while ((now = System.nanoTime()) < intended) LockSupport.parkNanos(intended - now);
+            final boolean measured = intended >= measureStart;
+            outstanding.incrementAndGet();
+            client.sendAsync(build(profile.pick(random)), HttpResponse.BodyHandlers.ofByteArray()).whenComplete((resp, ex) -> {
+                outstanding.decrementAndGet();
+                if (!measured) return;
+                histogram.record((System.nanoTime() - intended) / 1000);
+                completed.incrementAndGet();
+                int status = ex == null ? resp.statusCode() : -1;
+                if (ex != null || status >= 400) errors.incrementAndGet();
+                if (resp != null) bytesIn.addAndGet(resp.body().length);
+                statuses.merge(status, 1L, Long::sum);
+            });
+        }
+        // wait for outstanding requests, they are bounded by request timeout
+        long waitUntil = System.nanoTime() + timeout.toNanos() + TimeUnit.SECONDS.toNanos(1);
+        while (outstanding.get() > 0 && System.nanoTime() < waitUntil) Thread.sleep(10);
+        double elapsed = (double) (end - measureStart) / TimeUnit.SECONDS.toNanos(1);
+        return new LoadReport(label, profile.getRate(), elapsed, completed.get(), errors.get(), bytesIn.get(), histogram, statuses);
+    }
+
+    public void close() {
+        clientExecutor.shutdownNow();
+    }
+}
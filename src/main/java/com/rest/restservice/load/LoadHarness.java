@@ -0,0 +1,135 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.PARAMTYPE;
+import com.rest.restservice.ParamValue;
+import com.rest.restservice.RestHelper;
+import com.rest.restservice.RestParams;
+import com.rest.restservice.RestServer;
+import com.rest.restservice.RestStart;
+import com.rest.restservice.SSLParam;
+import com.rest.restservice.TRANSPORT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+/**
+ * Boots REST services in-process using RestStart and drives them with LoadGenerator.<br>
+ * Usage: java com.rest.restservice.load.LoadHarness load.properties<br>
+ * port=7999<br>
+ * single=false : executor mode<br>
+ * ssl=secure.properties : optional, SSLParam property file, HTTPS server<br>
+ * service.1=com.example.MyService : service classes with no-arg constructor, if not specified built-in echo service<br>
+ * transport=jdk : jdk or nio<br>
+ * label=cached : report label<br>
+ * rate, duration, warmup, request.n : see LoadProfile.fromProperties
+ */
+public class LoadHarness extends RestStart {
+
+    /**
+     * Built-in service, returns request body or query string. Measures the library overhead.
+     */
+    public static class EchoService extends RestHelper.RestServiceHelper {
+
+        public EchoService() {
+            super("echo");
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            String method = httpExchange.getRequestMethod();
+            RestParams par = new RestParams(method, Optional.of(RestParams.CONTENT.TEXT), false, new ArrayList<String>(), Optional.empty(), RestHelper.POST.equals(method) || RestHelper.PUT.equals(method));
+            par.addParam("id", PARAMTYPE.INT, new ParamValue(0));
+            par.addParam("name", PARAMTYPE.STRING, new ParamValue(""));
+            return par;
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            if (v.getRequestData() != null) {
+                byte[] b = new byte[v.getRequestData().capacity()];
+                v.getRequestData().rewind();
+                v.getRequestData().get(b);
+                produceByteResponse(v, Optional.of(b), RestHelper.HTTPOK, Optional.empty());
+            } else
+                produceOKResponse(v, "id=" + getIntParam(v, "id") + " name=" + getStringParam(v, "name"));
+        }
+    }
+
+    /**
+     * Starts the server and runs the load against it
+     *
+     * @param label            Report label
+     * @param port             Server port
+     * @param single           Executor mode passed to RestStart
+     * @param registerServices Services to register
+     * @param params           SSL parameters, empty array for HTTP
+     * @param profile          Load profile
+     * @return LoadReport
+     * @throws Exception
+     */
+    public static LoadReport run(String label, int port, boolean single, Consumer<HttpServer> registerServices, String[] params, LoadProfile profile) throws Exception {
+        return run(label, port, single, registerServices, params, profile, TRANSPORT.JDK);
+    }
+
+    /**
+     * The same as above, the server is started with given transport
+     */
+    public static LoadReport run(String label, int port, boolean single, Consumer<HttpServer> registerServices, String[] params, LoadProfile profile, TRANSPORT transport) throws Exception {
+        RestServer server = RestStart(port, single, registerServices, params, 1, transport);
+        LoadGenerator gen = new LoadGenerator((params.length > 0 ? "https" : "http") + "://localhost:" + port, 30);
+        try {
+            return gen.run(label, profile);
+        } finally {
+            gen.close();
+            server.shutdown(0, 5000);
+        }
+    }
+
+    static Consumer<HttpServer> services(Properties prop) throws ReflectiveOperationException {
+        final List<RestHelper.RestServiceHelper> services = new ArrayList<RestHelper.RestServiceHelper>();
+        for (int i = 1; prop.getProperty("service." + i) != null; i++)
+            services.add((RestHelper.RestServiceHelper) Class.forName(prop.getProperty("service." + i)).getDeclaredConstructor().newInstance());
+        if (services.isEmpty()) services.add(new EchoService());
+        return server -> services.forEach(s -> RestHelper.registerService(server, s));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Parameters: /load property file/");
+            System.exit(4);
+        }
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(args[0])) {
+            prop.load(input);
+        }
+        int port = Integer.parseInt(prop.getProperty("port", "7999"));
+        boolean single = Boolean.parseBoolean(prop.getProperty("single", "false"));
+        String[] params = prop.getProperty("ssl") == null ? new String[0] : SSLParam.readConf(prop.getProperty("ssl"));
+        TRANSPORT transport = TRANSPORT.valueOf(prop.getProperty("transport", "jdk").toUpperCase());
+        String label = prop.getProperty("label", transport + (single ? " single" : " cached"));
+        LoadReport rep = run(label, port, single, services(prop), params, LoadProfile.fromProperties(prop), transport);
+        System.out.println(LoadReport.header());
+        System.out.println(rep);
+    }
+}
@@ -0,0 +1,134 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Load specification: arrival rate, duration and weighted mix of requests.
+ */
+public class LoadProfile {
+
+    /**
+     * Single request template
+     * method : HTTP method
+     * path : URL path without leading /
+     * query : Optional, query string without leading ?
+     * bodySize : size of generated request body, 0 no body
+     * weight : relative frequency of the template in the mix
+     */
+    public static class RequestTemplate {
+        final String method;
+        final String path;
+        final Optional<String> query;
+        final int bodySize;
+        final int weight;
+        final byte[] body;
+
+        public RequestTemplate(String method, String path, Optional<String> query, int bodySize, int weight) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.bodySize = bodySize;
+            this.weight = weight;
+            this.body = new byte[bodySize];
+            for (int i = 0; i < bodySize; i++) body[i] = (byte) ('a' + i % 26);
+        }
+
+        @Override
+        public String toString() {
+            return method + " /" + path + (query.isPresent() ? "?" + query.get() : "") + (bodySize > 0 ? " body=" + bodySize : "");
+        }
+    }
+
+    private final List<RequestTemplate> mix = new ArrayList<RequestTemplate>();
+    private final int rate;
+    private final int durationSec;
+    private final int warmupSec;
+    private int weightSum = 0;
+
+    /**
+     * @param rate        requests per second (arrival rate, independent of response time)
+     * @param durationSec measured run time in seconds
+     * @param warmupSec   warmup time in seconds, not included in the report
+     */
+    public LoadProfile(int rate, int durationSec, int warmupSec) {
+        this.rate = rate;
+        this.durationSec = durationSec;
+        this.warmupSec = warmupSec;
+    }
+
+    /**
+     * Add request template to the mix
+     */
+    public void addRequest(RequestTemplate r) {
+        mix.add(r);
+        weightSum += r.weight;
+    }
+
+    public List<RequestTemplate> getMix() {
+        return mix;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getDurationSec() {
+        return durationSec;
+    }
+
+    public int getWarmupSec() {
+        return warmupSec;
+    }
+
+    RequestTemplate pick(Random r) {
+        int w = r.nextInt(weightSum);
+        for (RequestTemplate t : mix) {
+            w -= t.weight;
+            if (w < 0) return t;
+        }
+        return mix.get(mix.size() - 1);
+    }
+
+    /**
+     * Reads load profile from properties
+     * rate=1000
+     * duration=30
+     * warmup=5
+     * request.1=GET path query weight bodysize (query - for no query)
+     *
+     * @param prop Properties
+     * @return LoadProfile
+     */
+    public static LoadProfile fromProperties(Properties prop) {
+        LoadProfile p = new LoadProfile(Integer.parseInt(prop.getProperty("rate", "100")),
+                Integer.parseInt(prop.getProperty("duration", "10")),
+                Integer.parseInt(prop.getProperty("warmup", "2")));
+        for (int i = 1; prop.getProperty("request." + i) != null; i++) {
+            String[] s = prop.getProperty("request." + i).trim().split("\\s+");
+            String path = s.length > 1 ? s[1] : "";
+            Optional<String> query = s.length > 2 && !s[2].equals("-") ? Optional.of(s[2]) : Optional.empty();
+            int weight = s.length > 3 ? Integer.parseInt(s[3]) : 1;
+            int bodysize = s.length > 4 ? Integer.parseInt(s[4]) : 0;
+            p.addRequest(new RequestTemplate(s[0], path, query, bodysize, weight));
+        }
+        if (p.mix.isEmpty()) throw new IllegalArgumentException("No request.1 .. request.n templates in the load profile");
+        return p;
+    }
+}
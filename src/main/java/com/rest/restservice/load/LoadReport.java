@@ -0,0 +1,93 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Result of single load run. The label identifies server configuration (executor mode, transport etc)
+ * so several reports can be printed as one comparable table.
+ */
+public class LoadReport {
+
+    private final String label;
+    private final int targetRate;
+    private final double elapsedSec;
+    private final long completed;
+    private final long errors;
+    private final long bytesIn;
+    private final LatencyHistogram histogram;
+    private final Map<Integer, Long> statuses;
+
+    LoadReport(String label, int targetRate, double elapsedSec, long completed, long errors, long bytesIn, LatencyHistogram histogram, Map<Integer, Long> statuses) {
+        this.label = label;
+        this.targetRate = targetRate;
+        this.elapsedSec = elapsedSec;
+        this.completed = completed;
+        this.errors = errors;
+        this.bytesIn = bytesIn;
+        this.histogram = histogram;
+        this.statuses = new TreeMap<Integer, Long>(statuses);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getThroughput() {
+        return elapsedSec == 0 ? 0 : completed / elapsedSec;
+    }
+
+    public double getErrorRate() {
+        return completed == 0 ? 0 : (double) errors / completed;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Number of responses for every HTTP status code, -1 for transport failures
+     */
+    public Map<Integer, Long> getStatuses() {
+        return statuses;
+    }
+
+    private static String ms(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+
+    public static String header() {
+        return String.format("%-24s %8s %10s %8s %9s %9s %9s %9s %9s %9s %12s",
+                "label", "rate", "thr/s", "err%", "mean ms", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "bytes in");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-24s %8d %10.1f %8.3f %9.2f %9s %9s %9s %9s %9s %12d",
+                label, targetRate, getThroughput(), getErrorRate() * 100, histogram.getMean() / 1000.0,
+                ms(histogram.getValueAtPercentile(50)), ms(histogram.getValueAtPercentile(90)),
+                ms(histogram.getValueAtPercentile(99)), ms(histogram.getValueAtPercentile(99.9)),
+                ms(histogram.getMax()), bytesIn) + " " + statuses;
+    }
+}
@@ -0,0 +1,135 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.MemoryHttpExchange;
+import com.rest.restservice.RestHelper;
+import com.rest.restservice.RestLogger;
+import com.rest.restservice.RestParams;
+import com.rest.restservice.StaticFileService;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Hit-path throughput of StaticFileService compared with a service re-reading the file on every request (produceResponseFromFile).<br>
+ * Requests are dispatched in-process through RestServiceHelper.handle, the response body is discarded, so the numbers show
+ * the service cost without the network.<br>
+ * Usage: java com.rest.restservice.load.StaticFileBenchmark /threads/ /seconds per case/ /file size/
+ */
+public class StaticFileBenchmark {
+
+    private static class FileReader extends RestHelper.RestServiceHelper {
+        private final Path root;
+
+        FileReader(Path root) {
+            super("read");
+            this.root = root;
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            return new RestParams(RestHelper.GET, Optional.of(RestParams.CONTENT.JS), false, new ArrayList<String>());
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            String name = v.getT().getRequestURI().getPath().substring("/read/".length());
+            produceResponseFromFile(v, root.resolve(name).toFile(), false, RestHelper.HTTPOK, Optional.empty());
+        }
+    }
+
+    private static MemoryHttpExchange exchange(String path, Headers headers) {
+        MemoryHttpExchange ex = new MemoryHttpExchange(RestHelper.GET, URI.create(path), headers, new byte[0], null);
+        ex.setStreams(null, OutputStream.nullOutputStream());
+        return ex;
+    }
+
+    private static void run(String name, RestHelper.RestServiceHelper service, String path, Headers headers, int threads, int seconds) throws Exception {
+        // warm up
+        long end = System.nanoTime() + 1_000_000_000L;
+        while (System.nanoTime() < end) service.handle(exchange(path, headers));
+        MemoryHttpExchange check = exchange(path, headers);
+        service.handle(check);
+        int status = check.getResponseCode();
+        AtomicLong count = new AtomicLong();
+        long stop = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            Thread th = new Thread(() -> {
+                long n = 0;
+                try {
+                    while (System.nanoTime() < stop) {
+                        service.handle(exchange(path, headers));
+                        n++;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                count.addAndGet(n);
+            });
+            workers.add(th);
+            th.start();
+        }
+        for (Thread th : workers) th.join();
+        double sec = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-22s %6d %14.0f %12.2f", name, status, count.get() / sec, sec * 1e6 * threads / count.get()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+        // request logging would dominate the measurement
+        RestLogger.L.setLevel(Level.WARNING);
+        Path root = Files.createTempDirectory("static");
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; b.length() < size; i++) b.append("function f").append(i).append("(a, b) { return a + b * ").append(i).append("; }\n");
+        Files.write(root.resolve("app.0123abcd.js"), b.substring(0, size).getBytes(StandardCharsets.US_ASCII));
+        StaticFileService files = new StaticFileService("static", root, 64L * 1024 * 1024, 1024 * 1024);
+        FileReader reader = new FileReader(root);
+
+        Headers plain = new Headers();
+        Headers gzip = new Headers();
+        gzip.add("Accept-Encoding", "gzip, deflate");
+        // the first request loads the file, its ETag is used for revalidation
+        MemoryHttpExchange first = exchange("/static/app.0123abcd.js", plain);
+        files.handle(first);
+        Headers revalidate = new Headers();
+        revalidate.add("If-None-Match", first.getResponseHeaders().getFirst("ETag"));
+
+        System.out.println(String.format("threads %d, file %d bytes", threads, size));
+        System.out.println(String.format("%-22s %6s %14s %12s", "case", "status", "requests/s", "us/request"));
+        run("re-read file", reader, "/read/app.0123abcd.js", plain, threads, seconds);
+        run("cache hit", files, "/static/app.0123abcd.js", plain, threads, seconds);
+        run("cache hit gzip", files, "/static/app.0123abcd.js", gzip, threads, seconds);
+        run("cache hit 304", files, "/static/app.0123abcd.js", revalidate, threads, seconds);
+        System.out.println(String.format("hits %d, misses %d, cached bytes %d", files.getHits(), files.getMisses(), files.getCachedBytes()));
+        files.close();
+        Files.delete(root.resolve("app.0123abcd.js"));
+        Files.delete(root);
+    }
+}
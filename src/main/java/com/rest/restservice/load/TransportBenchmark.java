@@ -0,0 +1,56 @@
+package com.rest.restservice.load;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+import com.rest.restservice.TRANSPORT;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+/**
+ * Runs the same load profile against JDK and NIO transport and prints comparable reports.<br>
+ * Usage: java com.rest.restservice.load.TransportBenchmark load.properties<br>
+ * The property file is the same as for LoadHarness, rates=1000,2000,4000 overrides single rate.
+ */
+public class TransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Parameters: /load property file/");
+            System.exit(4);
+        }
+        Properties prop = new Properties();
+        try (InputStream input = new FileInputStream(args[0])) {
+            prop.load(input);
+        }
+        RestLogger.L.setLevel(Level.WARNING);
+        int port = Integer.parseInt(prop.getProperty("port", "7999"));
+        String[] rates = prop.getProperty("rates", prop.getProperty("rate", "1000")).split(",");
+        List<LoadReport> reports = new ArrayList<LoadReport>();
+        for (String rate : rates) {
+            prop.setProperty("rate", rate.trim());
+            for (TRANSPORT t : TRANSPORT.values()) {
+                // fresh port for every run
+                reports.add(LoadHarness.run(t.toString(), port++, false, LoadHarness.services(prop), new String[0], LoadProfile.fromProperties(prop), t));
+            }
+        }
+        System.out.println(LoadReport.header());
+        for (LoadReport r : reports) System.out.println(r);
+    }
+}
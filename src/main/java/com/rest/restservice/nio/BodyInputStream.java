@@ -0,0 +1,99 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Request body fed by the event loop and consumed by the handler thread. The loop stops reading the socket
+ * when too much data is buffered and resumes when the handler drains it.
+ */
+final class BodyInputStream extends InputStream {
+
+    private final NioHttpExchange exchange;
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private byte[] cur;
+    private int pos;
+    private long buffered;
+    private boolean eof;
+    private IOException error;
+
+    BodyInputStream(NioHttpExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    synchronized void feed(byte[] b) {
+        chunks.add(b);
+        buffered += b.length;
+        notifyAll();
+    }
+
+    synchronized void finish() {
+        eof = true;
+        notifyAll();
+    }
+
+    synchronized void abort(IOException e) {
+        if (!eof) error = e;
+        notifyAll();
+    }
+
+    synchronized long buffered() {
+        return buffered;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        exchange.continueIfExpected();
+        int n;
+        boolean drained;
+        synchronized (this) {
+            while (cur == null || pos == cur.length) {
+                cur = chunks.poll();
+                pos = 0;
+                if (cur != null) continue;
+                if (eof) return -1;
+                if (error != null) throw error;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading request body", e);
+                }
+            }
+            n = Math.min(len, cur.length - pos);
+            System.arraycopy(cur, pos, b, off, n);
+            pos += n;
+            buffered -= n;
+            drained = buffered == 0;
+        }
+        exchange.bodyConsumed(n, drained);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, buffered);
+    }
+}
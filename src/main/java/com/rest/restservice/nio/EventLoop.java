@@ -0,0 +1,202 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * Selector thread. Accepts connections (if owns acceptor), reads requests and writes responses for its connections.
+ * All connection state except output queue and request body buffer is touched only by the loop thread.
+ */
+final class EventLoop implements Runnable {
+
+    private static final int READBUFFER = 64 * 1024;
+    private static final long SWEEPINTERVAL = 1000;
+
+    private final NioHttpServer server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<NioConnection> connections = new HashSet<NioConnection>();
+    // one direct buffer per loop, data is copied to the connection only if not consumed at once
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READBUFFER);
+    private volatile boolean running = true;
+    private Thread thread;
+    private long lastSweep = System.currentTimeMillis();
+
+    EventLoop(NioHttpServer server, ServerSocketChannel acceptor) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        if (acceptor != null) {
+            acceptor.configureBlocking(false);
+            acceptor.register(selector, SelectionKey.OP_ACCEPT, acceptor);
+        }
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs the task in the loop thread
+     */
+    void execute(Runnable r) {
+        tasks.add(r);
+        if (!inLoop()) selector.wakeup();
+    }
+
+    int connectionCount() {
+        return connections.size();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join(long millis) throws InterruptedException {
+        if (thread != null) thread.join(millis);
+    }
+
+    void accepted(SocketChannel ch) {
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            NioConnection conn = new NioConnection(this, server, ch);
+            conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            connections.add(conn);
+        } catch (IOException e) {
+            RestLogger.L.log(Level.WARNING, "Cannot register connection", e);
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    void removed(NioConnection conn) {
+        connections.remove(conn);
+    }
+
+    private void accept(ServerSocketChannel ssc) {
+        while (true) {
+            SocketChannel ch;
+            try {
+                ch = ssc.accept();
+            } catch (IOException e) {
+                RestLogger.L.log(Level.WARNING, "Accept failed", e);
+                return;
+            }
+            if (ch == null) return;
+            EventLoop target = server.isReusePortActive() ? this : server.nextLoop();
+            if (target == this) accepted(ch);
+            else target.execute(() -> target.accepted(ch));
+        }
+    }
+
+    private void runTasks() {
+        Runnable r;
+        while ((r = tasks.poll()) != null) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                RestLogger.L.log(Level.SEVERE, "Event loop task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Unexpected failure handling one connection, only this connection is closed, the loop serves the others
+     */
+    private static void failed(NioConnection conn, RuntimeException e) {
+        RestLogger.limited(Level.SEVERE, "Connection failed in event loop, closed", e);
+        try {
+            conn.close();
+        } catch (RuntimeException ex) {
+            RestLogger.L.log(Level.FINE, "Error while closing failed connection", ex);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SWEEPINTERVAL);
+            } catch (IOException e) {
+                RestLogger.L.log(Level.SEVERE, "Selector failed", e);
+                break;
+            }
+            runTasks();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                if (!k.isValid()) continue;
+                if (k.attachment() instanceof ServerSocketChannel) {
+                    accept((ServerSocketChannel) k.attachment());
+                    continue;
+                }
+                NioConnection conn = (NioConnection) k.attachment();
+                try {
+                    if (k.isReadable()) conn.onReadable();
+                    if (k.isValid() && k.isWritable()) conn.flush();
+                } catch (RuntimeException e) {
+                    failed(conn, e);
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= SWEEPINTERVAL) {
+                lastSweep = now;
+                for (NioConnection conn : new ArrayList<NioConnection>(connections)) {
+                    try {
+                        conn.checkTimeout(now);
+                    } catch (RuntimeException e) {
+                        failed(conn, e);
+                    }
+                }
+            }
+        }
+        runTasks();
+        for (NioConnection conn : new ArrayList<NioConnection>(connections)) conn.close();
+        for (SelectionKey k : selector.keys()) {
+            try {
+                k.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541). Decoder supports the whole specification including Huffman coded strings,
+ * encoder uses static and dynamic table indexing and plain (not Huffman coded) literals.
+ */
+final class Hpack {
+
+    private Hpack() {
+    }
+
+    static final int DEFAULTTABLESIZE = 4096;
+
+    // RFC 7541 Appendix A, entry 0 is not used
+    private static final String[][] STATIC = {
+            {"", ""},
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // RFC 7541 Appendix B, symbol 256 is EOS
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea,
+            0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee, 0xfffffef,
+            0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7,
+            0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa,
+            0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c,
+            0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66,
+            0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0,
+            0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6, 0x74, 0x75, 0x28, 0x29,
+            0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd,
+            0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+            0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0,
+            0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+            0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1,
+            0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4,
+            0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+            0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5,
+            0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+            0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5,
+            0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9,
+            0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28,
+            28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6,
+            7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13,
+            19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11,
+            14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23,
+            23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22,
+            21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26,
+            24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22,
+            22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+    };
+
+    // Huffman decoding tree, node i has children TREE[2*i], TREE[2*i+1]; negative value is leaf -(symbol+1)
+    private static final int[] TREE;
+
+    private static final Map<String, Integer> STATICINDEX = new HashMap<String, Integer>();
+    private static final Map<String, Integer> STATICNAMEINDEX = new HashMap<String, Integer>();
+
+    static {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int sym = 0; sym < CODES.length; sym++) {
+            int node = 0;
+            for (int bit = LENGTHS[sym] - 1; bit >= 0; bit--) {
+                int b = (CODES[sym] >>> bit) & 1;
+                int slot = 2 * node + b;
+                if (bit == 0) tree[slot] = -(sym + 1);
+                else {
+                    if (tree[slot] == 0) tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+            }
+        }
+        TREE = tree;
+        for (int i = STATIC.length - 1; i > 0; i--) {
+            STATICINDEX.put(STATIC[i][0] + '\0' + STATIC[i][1], i);
+            STATICNAMEINDEX.put(STATIC[i][0], i);
+        }
+    }
+
+    static final class HpackException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HpackException(String message) {
+            super(message);
+        }
+    }
+
+    private static int entrySize(String name, String value) {
+        return 32 + name.length() + value.length();
+    }
+
+    /**
+     * Header block decoder, one instance per connection
+     */
+    static final class Decoder {
+
+        private final ArrayDeque<String[]> dynamic = new ArrayDeque<String[]>();
+        private int size = 0;
+        private int maxSize;
+        private final int limit;
+        private byte[] b;
+        private int pos;
+        private int end;
+
+        Decoder(int limit) {
+            this.limit = limit;
+            this.maxSize = limit;
+        }
+
+        private String[] entry(int index) throws HpackException {
+            if (index <= 0) throw new HpackException("Invalid header index 0");
+            if (index < STATIC.length) return STATIC[index];
+            int d = index - STATIC.length;
+            if (d >= dynamic.size()) throw new HpackException("Invalid header index " + index);
+            Iterator<String[]> it = dynamic.iterator();
+            for (int i = 0; i < d; i++) it.next();
+            return it.next();
+        }
+
+        private void evict(int room) {
+            while (size + room > maxSize && !dynamic.isEmpty()) {
+                String[] e = dynamic.removeLast();
+                size -= entrySize(e[0], e[1]);
+            }
+        }
+
+        private void add(String name, String value) {
+            int s = entrySize(name, value);
+            evict(s);
+            if (s <= maxSize) {
+                dynamic.addFirst(new String[]{name, value});
+                size += s;
+            }
+        }
+
+        private int integer(int prefix) throws HpackException {
+            if (pos >= end) throw new HpackException("Truncated header block");
+            int mask = (1 << prefix) - 1;
+            int v = b[pos++] & mask;
+            if (v < mask) return v;
+            // accumulated as long, at most 5 continuation bytes, the value never wraps to negative
+            long lv = v;
+            int shift = 0;
+            while (true) {
+                if (pos >= end) throw new HpackException("Truncated header block");
+                int c = b[pos++] & 0xff;
+                lv += (long) (c & 0x7f) << shift;
+                if (lv > Integer.MAX_VALUE) throw new HpackException("Integer overflow");
+                if ((c & 0x80) == 0) return (int) lv;
+                shift += 7;
+                if (shift > 28) throw new HpackException("Integer overflow");
+            }
+        }
+
+        private String string() throws HpackException {
+            if (pos >= end) throw new HpackException("Truncated header block");
+            boolean huffman = (b[pos] & 0x80) != 0;
+            int len = integer(7);
+            if (len < 0 || len > end - pos) throw new HpackException("Truncated header block");
+            String s = huffman ? huffman(b, pos, len) : new String(b, pos, len, StandardCharsets.ISO_8859_1);
+            pos += len;
+            return s;
+        }
+
+        private static String huffman(byte[] b, int off, int len) throws HpackException {
+            StringBuilder sb = new StringBuilder(len * 8 / 5);
+            int node = 0;
+            int depth = 0;
+            boolean ones = true;
+            for (int i = off; i < off + len; i++) {
+                for (int bit = 7; bit >= 0; bit--) {
+                    int v = (b[i] >>> bit) & 1;
+                    int next = TREE[2 * node + v];
+                    depth++;
+                    ones &= v == 1;
+                    if (next < 0) {
+                        if (next == -257) throw new HpackException("EOS in Huffman string");
+                        sb.append((char) (-next - 1));
+                        node = 0;
+                        depth = 0;
+                        ones = true;
+                    } else if (next == 0) throw new HpackException("Invalid Huffman code");
+                    else node = next;
+                }
+            }
+            // padding must be the most significant bits of EOS, shorter than 8 bits
+            if (depth > 7 || !ones) throw new HpackException("Invalid Huffman padding");
+            return sb.toString();
+        }
+
+        /**
+         * Decodes header block
+         *
+         * @return list of name, value pairs in received order
+         */
+        List<String[]> decode(byte[] block, int off, int len) throws HpackException {
+            b = block;
+            pos = off;
+            end = off + len;
+            List<String[]> res = new ArrayList<String[]>();
+            while (pos < end) {
+                int c = b[pos] & 0xff;
+                if ((c & 0x80) != 0) {
+                    String[] e = entry(integer(7));
+                    res.add(new String[]{e[0], e[1]});
+                } else if ((c & 0xc0) == 0x40) {
+                    int idx = integer(6);
+                    String name = idx == 0 ? string() : entry(idx)[0];
+                    String value = string();
+                    add(name, value);
+                    res.add(new String[]{name, value});
+                } else if ((c & 0xe0) == 0x20) {
+                    int s = integer(5);
+                    if (s > limit) throw new HpackException("Table size update above limit");
+                    maxSize = s;
+                    evict(0);
+                } else {
+                    int idx = integer(4);
+                    String name = idx == 0 ? string() : entry(idx)[0];
+                    res.add(new String[]{name, string()});
+                }
+            }
+            b = null;
+            return res;
+        }
+    }
+
+    /**
+     * Header block encoder, one instance per connection. Calls must be serialized by the caller together with sending frames.
+     */
+    static final class Encoder {
+
+        private final ArrayDeque<String[]> dynamic = new ArrayDeque<String[]>();
+        private final Map<String, Long> index = new HashMap<String, Long>();
+        private long inserted = 0;
+        private int size = 0;
+        private int maxSize = DEFAULTTABLESIZE;
+        private int pendingSizeUpdate = -1;
+
+        /**
+         * Peer SETTINGS_HEADER_TABLE_SIZE, the encoder never uses more than the default
+         */
+        void setMaxTableSize(int peer) {
+            int s = Math.min(peer, DEFAULTTABLESIZE);
+            if (s == maxSize) return;
+            maxSize = s;
+            pendingSizeUpdate = s;
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize && !dynamic.isEmpty()) {
+                String[] e = dynamic.removeLast();
+                size -= entrySize(e[0], e[1]);
+                long seq = inserted - dynamic.size() - 1;
+                String key = e[0] + '\0' + e[1];
+                Long cur = index.get(key);
+                if (cur != null && cur == seq) index.remove(key);
+            }
+        }
+
+        private static void integer(ByteArrayOutputStream out, int first, int prefix, int v) {
+            int mask = (1 << prefix) - 1;
+            if (v < mask) {
+                out.write(first | v);
+                return;
+            }
+            out.write(first | mask);
+            v -= mask;
+            while (v >= 0x80) {
+                out.write((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write(v);
+        }
+
+        private static void string(ByteArrayOutputStream out, String s) {
+            byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+            integer(out, 0, 7, b.length);
+            out.write(b, 0, b.length);
+        }
+
+        private static boolean indexable(String name) {
+            // frequently changing values would only evict useful entries
+            return !name.equals("content-length") && !name.equals("date") && !name.equals("etag") && !name.equals("last-modified");
+        }
+
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            if (pendingSizeUpdate >= 0) {
+                integer(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+            String key = name + '\0' + value;
+            Integer st = STATICINDEX.get(key);
+            if (st != null) {
+                integer(out, 0x80, 7, st);
+                return;
+            }
+            Long seq = index.get(key);
+            if (seq != null) {
+                integer(out, 0x80, 7, STATIC.length + (int) (inserted - 1 - seq));
+                return;
+            }
+            Integer ni = STATICNAMEINDEX.get(name);
+            int s = entrySize(name, value);
+            if (indexable(name) && s <= maxSize) {
+                integer(out, 0x40, 6, ni == null ? 0 : ni);
+                if (ni == null) string(out, name);
+                string(out, value);
+                dynamic.addFirst(new String[]{name, value});
+                index.put(key, inserted++);
+                size += s;
+                evict();
+            } else {
+                integer(out, 0x00, 4, ni == null ? 0 : ni);
+                if (ni == null) string(out, name);
+                string(out, value);
+            }
+        }
+    }
+}
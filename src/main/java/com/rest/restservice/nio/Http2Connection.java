@@ -0,0 +1,649 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+import com.sun.net.httpserver.Headers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * HTTP/2 connection (RFC 7540) over NioConnection: cleartext h2c with prior knowledge or HTTP/1.1 Upgrade.
+ * Frames are parsed in the event loop thread. Every stream is mapped to one NioHttpExchange and one handler call.
+ * The handler thread sending response DATA is blocked while the peer flow-control window is exhausted.
+ */
+final class Http2Connection {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int DATA = 0;
+    private static final int HEADERS = 1;
+    private static final int PRIORITY = 2;
+    private static final int RST_STREAM = 3;
+    private static final int SETTINGS = 4;
+    private static final int PUSH_PROMISE = 5;
+    private static final int PING = 6;
+    private static final int GOAWAY = 7;
+    private static final int WINDOW_UPDATE = 8;
+    private static final int CONTINUATION = 9;
+
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITYFLAG = 0x20;
+
+    private static final int NO_ERROR = 0;
+    private static final int PROTOCOL_ERROR = 1;
+    private static final int INTERNAL_ERROR = 2;
+    private static final int FLOW_CONTROL_ERROR = 3;
+    private static final int STREAM_CLOSED = 5;
+    private static final int FRAME_SIZE_ERROR = 6;
+    private static final int REFUSED_STREAM = 7;
+    private static final int COMPRESSION_ERROR = 9;
+    private static final int ENHANCE_YOUR_CALM = 11;
+
+    // streams reset by the peer allowed per RESETWINDOW, above it the connection is closed (rapid reset)
+    private static final int MAXRESETS = 100;
+    private static final long RESETWINDOW = 10_000;
+
+    private static final int DEFAULTWINDOW = 65535;
+    private static final int MAXFRAME = 16384;
+    private static final long MAXWINDOW = Integer.MAX_VALUE;
+
+    /**
+     * Connection error with HTTP/2 error code sent in GOAWAY
+     */
+    private static final class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int error;
+
+        Http2Exception(int error, String message) {
+            super(message);
+            this.error = error;
+        }
+    }
+
+    /**
+     * Stream state, window fields guarded by Http2Connection monitor
+     */
+    final class Stream {
+        final int id;
+        NioHttpExchange exchange;
+        long sendWindow;
+        long recvWindow;
+        int recvUnacked;
+        boolean remoteClosed;
+        boolean localClosed;
+        volatile boolean reset;
+        // the stream occupies a concurrency slot while open or while its handler is running
+        final AtomicInteger holders = new AtomicInteger(2);
+
+        Stream(int id) {
+            this.id = id;
+            this.sendWindow = peerInitialWindow;
+            this.recvWindow = initialWindow;
+        }
+    }
+
+    private final NioConnection conn;
+    private final NioHttpServer server;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULTTABLESIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+    private final int maxConcurrent;
+    // streams open or still handled, limited by maxConcurrent
+    private final AtomicInteger busy = new AtomicInteger();
+    private final int initialWindow;
+    private long resetWindowStart;
+    private int resets;
+    private boolean prefaceReceived;
+    private int lastStreamId;
+
+    // header block being assembled from HEADERS and CONTINUATION frames
+    private ByteArrayOutputStream headerBlock;
+    private int headerStream;
+    private boolean headerEndStream;
+
+    // peer settings and send windows, guarded by this
+    private int peerInitialWindow = DEFAULTWINDOW;
+    private int peerMaxFrame = MAXFRAME;
+    private long connSendWindow = DEFAULTWINDOW;
+    private boolean closed;
+    private volatile boolean goaway;
+
+    Http2Connection(NioConnection conn, NioHttpServer server) {
+        this.conn = conn;
+        this.server = server;
+        this.maxConcurrent = server.getHttp2MaxConcurrentStreams();
+        this.initialWindow = server.getHttp2InitialWindowSize();
+    }
+
+    int activeStreams() {
+        return busy.get();
+    }
+
+    private void release(Stream s) {
+        if (s.holders.decrementAndGet() == 0) busy.decrementAndGet();
+    }
+
+    /**
+     * Removes the stream from open streams, the slot is freed when also the handler has finished
+     */
+    private void remove(Stream s) {
+        if (streams.remove(s.id, s)) release(s);
+    }
+
+    /**
+     * Handler of the stream returned, called by the executor thread
+     */
+    void handlerFinished(Stream s) {
+        release(s);
+    }
+
+    // ===== frame output
+
+    private static byte[] frame(int type, int flags, int stream, byte[] payload, int off, int len) {
+        byte[] f = new byte[9 + len];
+        f[0] = (byte) (len >>> 16);
+        f[1] = (byte) (len >>> 8);
+        f[2] = (byte) len;
+        f[3] = (byte) type;
+        f[4] = (byte) flags;
+        f[5] = (byte) ((stream >>> 24) & 0x7f);
+        f[6] = (byte) (stream >>> 16);
+        f[7] = (byte) (stream >>> 8);
+        f[8] = (byte) stream;
+        if (len > 0) System.arraycopy(payload, off, f, 9, len);
+        return f;
+    }
+
+    private static byte[] int32(int v) {
+        return new byte[]{(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+
+    private void send(byte[] frame) throws IOException {
+        conn.enqueue(ByteBuffer.wrap(frame));
+    }
+
+    private void sendQuietly(byte[] frame) {
+        try {
+            send(frame);
+        } catch (IOException ignored) {
+            // connection already closed
+        }
+    }
+
+    void sendServerSettings() throws IOException {
+        ByteArrayOutputStream s = new ByteArrayOutputStream();
+        setting(s, 3, maxConcurrent);
+        setting(s, 4, initialWindow);
+        send(frame(SETTINGS, 0, 0, s.toByteArray(), 0, s.size()));
+    }
+
+    private static void setting(ByteArrayOutputStream s, int id, int value) {
+        s.write(id >>> 8);
+        s.write(id);
+        s.write(int32(value), 0, 4);
+    }
+
+    private void rst(int stream, int error) {
+        sendQuietly(frame(RST_STREAM, 0, stream, int32(error), 0, 4));
+    }
+
+    private void connectionError(int error, String message) {
+        RestLogger.L.log(Level.FINE, "HTTP/2 connection error: " + message);
+        byte[] p = new byte[8];
+        System.arraycopy(int32(lastStreamId), 0, p, 0, 4);
+        System.arraycopy(int32(error), 0, p, 4, 4);
+        sendQuietly(frame(GOAWAY, 0, 0, p, 0, 8));
+        conn.setCloseAfterResponse();
+        goaway = true;
+        // let the GOAWAY frame go out, then close
+        conn.exchangeFinished();
+    }
+
+    // ===== frame input, event loop thread
+
+    /**
+     * Parses frames from the input buffer
+     *
+     * @return new start position, the rest waits for more data
+     */
+    int process(byte[] in, int start, int end) {
+        if (!prefaceReceived) {
+            if (end - start < PREFACE.length) return start;
+            for (int i = 0; i < PREFACE.length; i++)
+                if (in[start + i] != PREFACE[i]) {
+                    connectionError(PROTOCOL_ERROR, "Invalid connection preface");
+                    return end;
+                }
+            start += PREFACE.length;
+            prefaceReceived = true;
+        }
+        while (end - start >= 9 && !goaway) {
+            int len = ((in[start] & 0xff) << 16) | ((in[start + 1] & 0xff) << 8) | (in[start + 2] & 0xff);
+            if (len > MAXFRAME) {
+                connectionError(FRAME_SIZE_ERROR, "Frame too large " + len);
+                return end;
+            }
+            if (end - start < 9 + len) break;
+            int type = in[start + 3] & 0xff;
+            int flags = in[start + 4] & 0xff;
+            int sid = ((in[start + 5] & 0x7f) << 24) | ((in[start + 6] & 0xff) << 16) | ((in[start + 7] & 0xff) << 8) | (in[start + 8] & 0xff);
+            try {
+                onFrame(type, flags, sid, in, start + 9, len);
+            } catch (Hpack.HpackException e) {
+                connectionError(COMPRESSION_ERROR, e.getMessage());
+                return end;
+            } catch (Http2Exception e) {
+                connectionError(e.error, e.getMessage());
+                return end;
+            } catch (IOException e) {
+                connectionError(PROTOCOL_ERROR, e.getMessage());
+                return end;
+            }
+            start += 9 + len;
+        }
+        return start;
+    }
+
+    /**
+     * RST_STREAM frames received, a reset stream may have dispatched a handler. Too many resets close the connection.
+     */
+    private void countReset() throws Http2Exception {
+        long now = System.currentTimeMillis();
+        if (now - resetWindowStart > RESETWINDOW) {
+            resetWindowStart = now;
+            resets = 0;
+        }
+        if (++resets > MAXRESETS) throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many streams reset by peer");
+    }
+
+    private void onFrame(int type, int flags, int sid, byte[] b, int off, int len) throws IOException {
+        if (headerBlock != null && (type != CONTINUATION || sid != headerStream))
+            throw new IOException("CONTINUATION expected");
+        switch (type) {
+            case DATA:
+                onData(flags, sid, b, off, len);
+                break;
+            case HEADERS: {
+                if (sid == 0 || (sid & 1) == 0) throw new IOException("Invalid stream id " + sid);
+                int pad = 0;
+                if ((flags & PADDED) != 0) {
+                    if (len < 1) throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS too short for padding");
+                    pad = b[off] & 0xff;
+                    off++;
+                    len--;
+                }
+                if ((flags & PRIORITYFLAG) != 0) {
+                    if (len < 5) throw new Http2Exception(FRAME_SIZE_ERROR, "HEADERS too short for priority");
+                    off += 5;
+                    len -= 5;
+                }
+                len -= pad;
+                if (len < 0) throw new IOException("Invalid padding");
+                headerBlock = new ByteArrayOutputStream(Math.max(len, 64));
+                headerBlock.write(b, off, len);
+                headerStream = sid;
+                headerEndStream = (flags & END_STREAM) != 0;
+                if ((flags & END_HEADERS) != 0) onHeaderBlock();
+                break;
+            }
+            case CONTINUATION:
+                if (headerBlock == null) throw new IOException("Unexpected CONTINUATION");
+                headerBlock.write(b, off, len);
+                if (headerBlock.size() > server.getMaxRequestHeaderBytes()) throw new IOException("Header block too large");
+                if ((flags & END_HEADERS) != 0) onHeaderBlock();
+                break;
+            case PRIORITY:
+                break;
+            case RST_STREAM: {
+                if (len != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM length " + len);
+                if (sid == 0) throw new IOException("RST_STREAM on stream 0");
+                // also resets of refused streams, every HEADERS and RST_STREAM pair costs decoding
+                countReset();
+                Stream s = streams.get(sid);
+                if (s != null) {
+                    remove(s);
+                    s.reset = true;
+                    if (s.exchange != null) s.exchange.body.abort(new IOException("Stream reset by peer"));
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+                break;
+            }
+            case SETTINGS:
+                if (sid != 0) throw new IOException("SETTINGS on stream " + sid);
+                if ((flags & ACK) != 0 && len != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+                if ((flags & ACK) == 0) {
+                    applySettings(b, off, len);
+                    send(frame(SETTINGS, ACK, 0, null, 0, 0));
+                }
+                break;
+            case PUSH_PROMISE:
+                throw new IOException("PUSH_PROMISE from client");
+            case PING:
+                if (len != 8) throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING length " + len);
+                if (sid != 0) throw new IOException("PING on stream " + sid);
+                if ((flags & ACK) == 0) send(frame(PING, ACK, 0, b, off, len));
+                break;
+            case GOAWAY:
+                goaway = true;
+                conn.setCloseAfterResponse();
+                if (streams.isEmpty()) conn.exchangeFinished();
+                break;
+            case WINDOW_UPDATE: {
+                if (len != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE length " + len);
+                int inc = ((b[off] & 0x7f) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+                synchronized (this) {
+                    if (sid == 0) {
+                        if (inc == 0) throw new IOException("Zero WINDOW_UPDATE increment");
+                        connSendWindow += inc;
+                        if (connSendWindow > MAXWINDOW) throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                    } else {
+                        // stream errors, only the stream is reset
+                        Stream s = streams.get(sid);
+                        if (s != null && inc == 0) streamError(s, PROTOCOL_ERROR, "Zero WINDOW_UPDATE increment");
+                        else if (s != null && (s.sendWindow += inc) > MAXWINDOW) streamError(s, FLOW_CONTROL_ERROR, "Stream window overflow");
+                    }
+                    notifyAll();
+                }
+                break;
+            }
+            default:
+                // unknown frame types are ignored
+        }
+    }
+
+    /**
+     * Applies SETTINGS payload, also used for HTTP2-Settings header of h2c upgrade
+     */
+    void applySettings(byte[] b, int off, int len) throws IOException {
+        if (len % 6 != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS length");
+        synchronized (this) {
+            for (int i = off; i < off + len; i += 6) {
+                int id = ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+                int v = ((b[i + 2] & 0xff) << 24) | ((b[i + 3] & 0xff) << 16) | ((b[i + 4] & 0xff) << 8) | (b[i + 5] & 0xff);
+                switch (id) {
+                    case 1:
+                        encoder.setMaxTableSize(v);
+                        break;
+                    case 4:
+                        if (v < 0) throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid initial window size");
+                        int delta = v - peerInitialWindow;
+                        peerInitialWindow = v;
+                        for (Stream s : streams.values())
+                            if ((s.sendWindow += delta) > MAXWINDOW) throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                        break;
+                    case 5:
+                        if (v < MAXFRAME || v > 16777215) throw new IOException("Invalid max frame size");
+                        peerMaxFrame = v;
+                        break;
+                    default:
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private void onData(int flags, int sid, byte[] b, int off, int len) throws IOException {
+        if (sid == 0) throw new IOException("DATA on stream 0");
+        int frameLen = len;
+        if ((flags & PADDED) != 0) {
+            if (len < 1) throw new Http2Exception(FRAME_SIZE_ERROR, "DATA too short for padding");
+            int pad = b[off] & 0xff;
+            off++;
+            len -= pad + 1;
+            if (len < 0) throw new IOException("Invalid padding");
+        }
+        // connection window is returned at once, per stream window controls the memory
+        if (frameLen > 0) send(frame(WINDOW_UPDATE, 0, 0, int32(frameLen), 0, 4));
+        Stream s = streams.get(sid);
+        if (s == null || s.remoteClosed) {
+            rst(sid, STREAM_CLOSED);
+            return;
+        }
+        synchronized (this) {
+            s.recvWindow -= frameLen;
+            if (s.recvWindow < 0) {
+                remove(s);
+                s.reset = true;
+                s.exchange.body.abort(new IOException("Flow control error"));
+                rst(sid, FLOW_CONTROL_ERROR);
+                return;
+            }
+            // padding is not delivered to the handler, count it as consumed
+            s.recvUnacked += frameLen - len;
+        }
+        if (len > 0) {
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+            s.exchange.body.feed(data);
+        }
+        if ((flags & END_STREAM) != 0) {
+            s.remoteClosed = true;
+            s.exchange.body.finish();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        byte[] block = headerBlock.toByteArray();
+        headerBlock = null;
+        List<String[]> fields = decoder.decode(block, 0, block.length);
+        Stream existing = streams.get(headerStream);
+        if (existing != null) {
+            // trailers
+            if (headerEndStream) {
+                existing.remoteClosed = true;
+                existing.exchange.body.finish();
+            }
+            return;
+        }
+        if (headerStream <= lastStreamId) throw new IOException("Stream id not increasing");
+        lastStreamId = headerStream;
+        if (goaway || busy.get() >= maxConcurrent) {
+            rst(headerStream, REFUSED_STREAM);
+            return;
+        }
+        String method = null;
+        String path = null;
+        String authority = null;
+        Headers headers = new Headers();
+        for (String[] f : fields) {
+            switch (f[0]) {
+                case ":method":
+                    method = f[1];
+                    break;
+                case ":path":
+                    path = f[1];
+                    break;
+                case ":authority":
+                    authority = f[1];
+                    break;
+                case ":scheme":
+                    break;
+                default:
+                    headers.add(f[0], f[1]);
+            }
+        }
+        if (method == null || path == null) {
+            rst(headerStream, PROTOCOL_ERROR);
+            return;
+        }
+        if (authority != null && !headers.containsKey("Host")) headers.set("Host", authority);
+        openStream(headerStream, method, path, headers, headerEndStream);
+    }
+
+    private void openStream(int id, String method, String path, Headers headers, boolean endStream) {
+        URI uri;
+        try {
+            uri = new URI(path);
+        } catch (URISyntaxException e) {
+            rst(id, PROTOCOL_ERROR);
+            return;
+        }
+        Stream s = new Stream(id);
+        s.exchange = new NioHttpExchange(conn, server.findContext(uri.getPath()), method, uri, "HTTP/2.0", headers, this, s);
+        busy.incrementAndGet();
+        streams.put(id, s);
+        if (endStream) {
+            s.remoteClosed = true;
+            s.exchange.body.finish();
+        }
+        server.dispatch(s.exchange);
+    }
+
+    /**
+     * h2c upgrade: the HTTP/1.1 request becomes stream 1, its body is already complete
+     */
+    void upgrade(String settings, String method, URI uri, Headers headers) throws IOException {
+        byte[] s = Base64.getUrlDecoder().decode(settings.trim());
+        applySettings(s, 0, s.length);
+        sendServerSettings();
+        lastStreamId = 1;
+        openStream(1, method, uri.toString(), headers, true);
+    }
+
+    // ===== handler side
+
+    /**
+     * Request body consumed by the handler, returns the stream window to the peer
+     */
+    void bodyConsumed(Stream s, int n) {
+        int inc = 0;
+        synchronized (this) {
+            s.recvUnacked += n;
+            if (s.recvUnacked >= initialWindow / 2 && !s.remoteClosed) {
+                inc = s.recvUnacked;
+                s.recvUnacked = 0;
+                s.recvWindow += inc;
+            }
+        }
+        if (inc > 0) sendQuietly(frame(WINDOW_UPDATE, 0, s.id, int32(inc), 0, 4));
+    }
+
+    private static boolean connectionHeader(String name) {
+        return name.equals("connection") || name.equals("transfer-encoding") || name.equals("keep-alive") || name.equals("upgrade");
+    }
+
+    void sendHeaders(Stream s, int code, Headers h, boolean endStream) throws IOException {
+        if (s.reset) throw new IOException("Stream reset");
+        synchronized (this) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.encode(block, ":status", Integer.toString(code));
+            for (Map.Entry<String, List<String>> e : h.entrySet()) {
+                String name = e.getKey().toLowerCase();
+                // HTTP/1.1 tolerates "Name:" keys, HTTP/2 field names must not contain colon
+                int colon = name.indexOf(':');
+                if (colon != -1) name = name.substring(0, colon);
+                if (name.isEmpty() || connectionHeader(name)) continue;
+                for (String v : e.getValue()) encoder.encode(block, name, v);
+            }
+            byte[] b = block.toByteArray();
+            int off = 0;
+            boolean first = true;
+            do {
+                int n = Math.min(peerMaxFrame, b.length - off);
+                boolean last = off + n == b.length;
+                int flags = (last ? END_HEADERS : 0) | (first && endStream ? END_STREAM : 0);
+                send(frame(first ? HEADERS : CONTINUATION, flags, s.id, b, off, n));
+                off += n;
+                first = false;
+            } while (off < b.length);
+        }
+        if (endStream) streamFinished(s);
+    }
+
+    /**
+     * Sends DATA frames, blocks while flow-control window is exhausted
+     */
+    void sendData(Stream s, byte[] b, int off, int len, boolean endStream) throws IOException {
+        do {
+            int n;
+            synchronized (this) {
+                while (len > 0 && !closed && !s.reset && Math.min(connSendWindow, s.sendWindow) <= 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for flow control window", e);
+                    }
+                }
+                if (closed) throw new IOException("Connection closed");
+                if (s.reset) throw new IOException("Stream reset");
+                n = (int) Math.min(len, Math.min(peerMaxFrame, Math.min(connSendWindow, s.sendWindow)));
+                connSendWindow -= n;
+                s.sendWindow -= n;
+                boolean last = endStream && n == len;
+                send(frame(DATA, last ? END_STREAM : 0, s.id, b, off, n));
+            }
+            off += n;
+            len -= n;
+        } while (len > 0);
+        if (endStream) streamFinished(s);
+        else conn.awaitWritable();
+    }
+
+    /**
+     * Resets the stream because of stream error, the connection continues. Called holding the monitor.
+     */
+    private void streamError(Stream s, int error, String message) {
+        RestLogger.L.log(Level.FINE, "HTTP/2 stream error: " + message);
+        remove(s);
+        s.reset = true;
+        if (s.exchange != null) s.exchange.body.abort(new IOException(message));
+        rst(s.id, error);
+    }
+
+    void reset(Stream s) {
+        s.reset = true;
+        rst(s.id, INTERNAL_ERROR);
+        remove(s);
+    }
+
+    private void streamFinished(Stream s) {
+        s.localClosed = true;
+        // request body not read by the handler, the peer does not need to send it
+        if (!s.remoteClosed) rst(s.id, NO_ERROR);
+        remove(s);
+        if (goaway && streams.isEmpty()) conn.exchangeFinished();
+    }
+
+    /**
+     * Connection closed, wakes up blocked senders and aborts request bodies
+     */
+    void onClose() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Stream s : streams.values()) {
+            if (s.exchange != null) s.exchange.body.abort(new IOException("Connection closed"));
+            remove(s);
+        }
+    }
+}
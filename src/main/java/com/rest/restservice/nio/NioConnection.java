@@ -0,0 +1,556 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+
+/**
+ * HTTP/1.1 connection. Requests are parsed in the loop thread and dispatched to the executor one at a time,
+ * pipelined requests wait in the input buffer and are parsed after the previous response is written.
+ */
+final class NioConnection {
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SWITCHING = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAXGATHER = 16;
+
+    /**
+     * File region sent with FileChannel.transferTo, the channel is closed after transfer
+     */
+    static final class FileRegion {
+        final FileChannel fc;
+        long position;
+        long remaining;
+
+        FileRegion(FileChannel fc, long position, long count) {
+            this.fc = fc;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        void release() {
+            try {
+                fc.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final EventLoop loop;
+    private final NioHttpServer server;
+    final SocketChannel ch;
+    SelectionKey key;
+
+    // input, loop thread only
+    private byte[] in = new byte[2048];
+    private int inStart = 0;
+    private int inEnd = 0;
+    private NioHttpExchange exchange;
+    private Http2Connection h2;
+    private boolean bodyDone;
+    private long bodyRemaining;
+    private boolean chunked;
+    private int chunkState;
+    private volatile boolean readPaused;
+    private long lastActivity = System.currentTimeMillis();
+    // written also by the exchange thread when the output queue becomes non-empty
+    private volatile long lastWrite = System.currentTimeMillis();
+
+    private static final int CH_SIZE = 0;
+    private static final int CH_DATA = 1;
+    private static final int CH_DATACRLF = 2;
+    private static final int CH_TRAILER = 3;
+
+    // output, guarded by this
+    private final ArrayDeque<Object> out = new ArrayDeque<Object>();
+    private long pendingOut;
+    // zero-copy file regions queued, not counted in pendingOut
+    private int pendingFiles;
+    private boolean flushScheduled;
+    private boolean responseDone;
+    private volatile boolean closeAfterResponse;
+    private volatile boolean closed;
+
+    NioConnection(EventLoop loop, NioHttpServer server, SocketChannel ch) {
+        this.loop = loop;
+        this.server = server;
+        this.ch = ch;
+    }
+
+    // ===== input
+
+    void onReadable() {
+        ByteBuffer rb = loop.readBuffer;
+        rb.clear();
+        int n;
+        try {
+            n = ch.read(rb);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+        if (n == 0) return;
+        lastActivity = System.currentTimeMillis();
+        rb.flip();
+        append(rb);
+        process();
+    }
+
+    private void append(ByteBuffer rb) {
+        int n = rb.remaining();
+        if (inStart == inEnd) inStart = inEnd = 0;
+        if (in.length - inEnd < n) {
+            int live = inEnd - inStart;
+            byte[] dest = live + n > in.length ? new byte[Math.max(in.length * 2, live + n)] : in;
+            System.arraycopy(in, inStart, dest, 0, live);
+            in = dest;
+            inStart = 0;
+            inEnd = live;
+        }
+        rb.get(in, inEnd, n);
+        inEnd += n;
+    }
+
+    private void process() {
+        while (!closed) {
+            if (h2 != null) {
+                inStart = h2.process(in, inStart, inEnd);
+                return;
+            }
+            if (exchange == null) {
+                if (!parseHead()) return;
+                if (h2 != null) continue;
+            }
+            if (!bodyDone) {
+                if (!feedBody()) return;
+            } else {
+                // pipelined request waits until the response is written, stop reading if too much is queued
+                if (inEnd - inStart > server.getMaxRequestHeaderBytes()) pauseRead();
+                return;
+            }
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= inEnd - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) if (in[i + j] != pattern[j]) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private boolean startsWith(byte[] prefix) {
+        int n = Math.min(prefix.length, inEnd - inStart);
+        for (int i = 0; i < n; i++) if (in[inStart + i] != prefix[i]) return false;
+        return true;
+    }
+
+    private boolean parseHead() {
+        // skip empty lines between requests (RFC 7230 3.5)
+        while (inEnd - inStart >= 2 && in[inStart] == '\r' && in[inStart + 1] == '\n') inStart += 2;
+        if (server.isHttp2Enabled() && inEnd > inStart && startsWith(Http2Connection.PREFACE)) {
+            // h2c with prior knowledge, wait for the whole preface
+            if (inEnd - inStart < Http2Connection.PREFACE.length) return false;
+            h2 = new Http2Connection(this, server);
+            try {
+                h2.sendServerSettings();
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+            bodyDone = true;
+            return true;
+        }
+        int end = indexOf(CRLFCRLF, inStart);
+        if (end == -1) {
+            if (inEnd - inStart > server.getMaxRequestHeaderBytes()) sendErrorAndClose(431, "Request Header Fields Too Large");
+            return false;
+        }
+        String head = new String(in, inStart, end - inStart, StandardCharsets.ISO_8859_1);
+        inStart = end + 4;
+        String[] lines = head.split("\r\n");
+        String[] reqline = lines[0].split(" ");
+        if (reqline.length != 3 || !reqline[2].startsWith("HTTP/")) {
+            sendErrorAndClose(400, "Bad Request");
+            return false;
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int pos = lines[i].indexOf(':');
+            if (pos <= 0) continue;
+            headers.add(lines[i].substring(0, pos).trim(), lines[i].substring(pos + 1).trim());
+        }
+        URI uri;
+        try {
+            uri = new URI(reqline[1]);
+        } catch (URISyntaxException e) {
+            sendErrorAndClose(400, "Bad Request");
+            return false;
+        }
+        String protocol = reqline[2];
+        String connection = headers.getFirst("Connection");
+        boolean http10 = "HTTP/1.0".equals(protocol);
+        closeAfterResponse = http10 ? !"keep-alive".equalsIgnoreCase(connection) : "close".equalsIgnoreCase(connection);
+
+        String te = headers.getFirst("Transfer-Encoding");
+        String cl = headers.getFirst("Content-Length");
+        chunked = te != null && te.toLowerCase().contains("chunked");
+        chunkState = CH_SIZE;
+        bodyRemaining = 0;
+        if (!chunked && cl != null) {
+            try {
+                bodyRemaining = Long.parseLong(cl.trim());
+            } catch (NumberFormatException e) {
+                bodyRemaining = -1;
+            }
+            if (bodyRemaining < 0) {
+                bodyRemaining = 0;
+                sendErrorAndClose(400, "Bad Request");
+                return false;
+            }
+        }
+        bodyDone = !chunked && bodyRemaining == 0;
+        if (server.isHttp2Enabled() && bodyDone && !http10 && "h2c".equalsIgnoreCase(headers.getFirst("Upgrade")) && headers.getFirst("HTTP2-Settings") != null) {
+            // h2c upgrade, the request is answered as stream 1 after the switch
+            try {
+                String settings = headers.getFirst("HTTP2-Settings");
+                headers.remove("Upgrade");
+                headers.remove("HTTP2-Settings");
+                headers.remove("Connection");
+                enqueue(ByteBuffer.wrap(SWITCHING));
+                h2 = new Http2Connection(this, server);
+                h2.upgrade(settings, reqline[0], uri, headers);
+            } catch (IOException | IllegalArgumentException e) {
+                close();
+                return false;
+            }
+            return true;
+        }
+        NioHttpContext ctx = server.findContext(uri.getPath());
+        exchange = new NioHttpExchange(this, ctx, reqline[0], uri, protocol, headers);
+        if (bodyDone) exchange.body.finish();
+        server.dispatch(exchange);
+        return true;
+    }
+
+    private int lineEnd() {
+        return indexOf(CRLF, inStart);
+    }
+
+    private void feed(int n) {
+        byte[] b = new byte[n];
+        System.arraycopy(in, inStart, b, 0, n);
+        inStart += n;
+        exchange.body.feed(b);
+    }
+
+    /**
+     * Moves request body bytes from input buffer to the exchange body stream
+     *
+     * @return true if body is complete
+     */
+    private boolean feedBody() {
+        if (!chunked) {
+            int n = (int) Math.min(bodyRemaining, inEnd - inStart);
+            if (n > 0) {
+                feed(n);
+                bodyRemaining -= n;
+            }
+            if (bodyRemaining == 0) bodyDone = true;
+        } else {
+            while (!bodyDone) {
+                if (chunkState == CH_SIZE) {
+                    int e = lineEnd();
+                    if (e == -1) break;
+                    String line = new String(in, inStart, e - inStart, StandardCharsets.ISO_8859_1);
+                    inStart = e + 2;
+                    int semi = line.indexOf(';');
+                    try {
+                        bodyRemaining = Long.parseLong((semi == -1 ? line : line.substring(0, semi)).trim(), 16);
+                    } catch (NumberFormatException ex) {
+                        exchange.body.abort(new IOException("Invalid chunk size"));
+                        close();
+                        return false;
+                    }
+                    chunkState = bodyRemaining == 0 ? CH_TRAILER : CH_DATA;
+                } else if (chunkState == CH_DATA) {
+                    int n = (int) Math.min(bodyRemaining, inEnd - inStart);
+                    if (n == 0) break;
+                    feed(n);
+                    bodyRemaining -= n;
+                    if (bodyRemaining == 0) chunkState = CH_DATACRLF;
+                } else if (chunkState == CH_DATACRLF) {
+                    if (inEnd - inStart < 2) break;
+                    inStart += 2;
+                    chunkState = CH_SIZE;
+                } else {
+                    int e = lineEnd();
+                    if (e == -1) break;
+                    boolean empty = e == inStart;
+                    inStart = e + 2;
+                    if (empty) bodyDone = true;
+                }
+            }
+        }
+        if (bodyDone) exchange.body.finish();
+        else if (exchange.body.buffered() > server.getMaxPendingBytes()) pauseRead();
+        return bodyDone;
+    }
+
+    private void pauseRead() {
+        if (readPaused || !key.isValid()) return;
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Called by the body stream consumer when buffered request data is drained
+     */
+    void requestResume() {
+        if (readPaused) loop.execute(this::resumeRead);
+    }
+
+    private void resumeRead() {
+        if (closed || !readPaused) return;
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        lastActivity = System.currentTimeMillis();
+        process();
+    }
+
+    // ===== output
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void setCloseAfterResponse() {
+        closeAfterResponse = true;
+    }
+
+    boolean isCloseAfterResponse() {
+        return closeAfterResponse;
+    }
+
+    void sendContinue() throws IOException {
+        enqueue(ByteBuffer.wrap(CONTINUE));
+    }
+
+    /**
+     * Queues buffer for writing, called by the exchange thread
+     */
+    void enqueue(Object o) throws IOException {
+        boolean schedule;
+        synchronized (this) {
+            if (closed) throw new IOException("Connection closed");
+            // the write timeout is measured from the moment there is something to write
+            if (pendingOut == 0 && pendingFiles == 0) lastWrite = System.currentTimeMillis();
+            out.add(o);
+            if (o instanceof ByteBuffer) pendingOut += ((ByteBuffer) o).remaining();
+            else pendingFiles++;
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (schedule) loop.execute(this::flush);
+    }
+
+    /**
+     * Blocks the exchange thread while too much data is queued for writing
+     */
+    synchronized void awaitWritable() throws IOException {
+        while (pendingOut > server.getMaxPendingBytes() && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing response", e);
+            }
+        }
+        if (closed) throw new IOException("Connection closed");
+    }
+
+    /**
+     * Exchange completed, the connection is reused after the queued data is written
+     */
+    void exchangeFinished() {
+        synchronized (this) {
+            responseDone = true;
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        loop.execute(this::flush);
+    }
+
+    void flush() {
+        if (closed) return;
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        ByteBuffer[] gather = new ByteBuffer[MAXGATHER];
+        try {
+            while (true) {
+                int n = 0;
+                FileRegion region = null;
+                synchronized (this) {
+                    for (Object o : out) {
+                        if (o instanceof FileRegion) {
+                            if (n == 0) region = (FileRegion) o;
+                            break;
+                        }
+                        gather[n++] = (ByteBuffer) o;
+                        if (n == MAXGATHER) break;
+                    }
+                }
+                if (region != null) {
+                    long w = region.fc.transferTo(region.position, region.remaining, ch);
+                    region.position += w;
+                    region.remaining -= w;
+                    if (w > 0) lastWrite = System.currentTimeMillis();
+                    if (region.remaining > 0) {
+                        setWriteInterest(true);
+                        return;
+                    }
+                    region.release();
+                    synchronized (this) {
+                        out.poll();
+                        pendingFiles--;
+                    }
+                    continue;
+                }
+                if (n == 0) break;
+                long w = ch.write(gather, 0, n);
+                if (w > 0) lastWrite = System.currentTimeMillis();
+                synchronized (this) {
+                    pendingOut -= w;
+                    while (!out.isEmpty() && out.peek() instanceof ByteBuffer && !((ByteBuffer) out.peek()).hasRemaining())
+                        out.poll();
+                    notifyAll();
+                }
+                if (gather[n - 1].hasRemaining()) {
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        setWriteInterest(false);
+        boolean done;
+        synchronized (this) {
+            done = responseDone && out.isEmpty();
+            if (done) responseDone = false;
+        }
+        if (done) afterResponse();
+    }
+
+    private void setWriteInterest(boolean on) {
+        if (!key.isValid()) return;
+        int ops = key.interestOps();
+        key.interestOps(on ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    private void afterResponse() {
+        if (h2 != null) {
+            if (closeAfterResponse) close();
+            return;
+        }
+        // request body not consumed by the handler, the connection cannot be reused
+        if (closeAfterResponse || !bodyDone) {
+            close();
+            return;
+        }
+        exchange = null;
+        lastActivity = System.currentTimeMillis();
+        if (readPaused) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        process();
+    }
+
+    private void sendErrorAndClose(int code, String reason) {
+        closeAfterResponse = true;
+        byte[] b = ("HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        try {
+            enqueue(ByteBuffer.wrap(b));
+        } catch (IOException e) {
+            return;
+        }
+        exchangeFinished();
+        bodyDone = true;
+        inStart = inEnd;
+    }
+
+    void checkTimeout(long now) {
+        long idle = server.getIdleTimeoutMillis();
+        boolean writing;
+        synchronized (this) {
+            // the client not reading zero-copy transfer is caught by the write timeout as well
+            writing = pendingOut > 0 || pendingFiles > 0;
+        }
+        if (writing && now - lastWrite > idle) {
+            RestLogger.L.log(Level.FINE, "Write timeout, closing connection");
+            close();
+        } else if (h2 != null) {
+            if (h2.activeStreams() == 0 && now - lastActivity > idle) close();
+        } else if (!writing && !readPaused && (exchange == null || !bodyDone) && now - lastActivity > idle) close();
+    }
+
+    /**
+     * Closes the connection, callable from any thread
+     */
+    void closeAsync() {
+        loop.execute(this::close);
+    }
+
+    void close() {
+        if (closed) return;
+        synchronized (this) {
+            closed = true;
+            for (Object o : out) if (o instanceof FileRegion) ((FileRegion) o).release();
+            out.clear();
+            pendingFiles = 0;
+            notifyAll();
+        }
+        if (exchange != null) exchange.body.abort(new IOException("Connection closed"));
+        if (h2 != null) h2.onClose();
+        if (key != null) key.cancel();
+        try {
+            ch.close();
+        } catch (IOException ignored) {
+        }
+        loop.removed(this);
+    }
+}
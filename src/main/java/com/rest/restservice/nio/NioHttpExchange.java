@@ -0,0 +1,449 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpExchange implementation of NioHttpServer. Response data is buffered in heap chunks and handed over to the event loop,
+ * the handler thread is blocked only if the client does not keep up and the pending output exceeds the limit.
+ */
+public class NioHttpExchange extends HttpExchange {
+
+    private static final int OUTCHUNK = 8192;
+    private static final byte[] LASTCHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioConnection conn;
+    private final NioHttpContext ctx;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    final BodyInputStream body;
+    private final ResponseStream response = new ResponseStream();
+    private final boolean expectContinue;
+    private final Http2Connection h2;
+    private final Http2Connection.Stream stream;
+    private volatile boolean continueSent;
+    private InputStream uis;
+    private OutputStream uos;
+    private HttpPrincipal principal;
+    private int responseCode = -1;
+    private boolean headersSent;
+    private boolean closed;
+
+    NioHttpExchange(NioConnection conn, NioHttpContext ctx, String method, URI uri, String protocol, Headers requestHeaders) {
+        this(conn, ctx, method, uri, protocol, requestHeaders, null, null);
+    }
+
+    /**
+     * HTTP/2 stream exchange
+     */
+    NioHttpExchange(NioConnection conn, NioHttpContext ctx, String method, URI uri, String protocol, Headers requestHeaders, Http2Connection h2, Http2Connection.Stream stream) {
+        this.h2 = h2;
+        this.stream = stream;
+        this.conn = conn;
+        this.ctx = ctx;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.body = new BodyInputStream(this);
+        this.expectContinue = stream == null && "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+    }
+
+    NioConnection getConnection() {
+        return conn;
+    }
+
+    /**
+     * Request body bytes consumed by the handler
+     */
+    void bodyConsumed(int n, boolean drained) {
+        if (stream != null) h2.bodyConsumed(stream, n);
+        else if (drained) conn.requestResume();
+    }
+
+    /**
+     * Closes the connection (HTTP/1.1) or resets the stream (HTTP/2)
+     */
+    public void abort() {
+        if (stream != null) h2.reset(stream);
+        else conn.closeAsync();
+    }
+
+    /**
+     * The handler returned (or was never run), the HTTP/2 stream no longer counts against the concurrency limit once closed
+     */
+    void handlerFinished() {
+        if (stream != null) h2.handlerFinished(stream);
+    }
+
+    /**
+     * The response cannot be followed by another request on this connection, no-op for HTTP/2 stream
+     */
+    void setCloseAfterResponse() {
+        if (stream == null) conn.setCloseAfterResponse();
+    }
+
+    /**
+     * "100 Continue" is sent lazily when the handler starts reading the request body. If the handler rejects the request
+     * without reading the body, the client does not transmit it.
+     */
+    void continueIfExpected() throws IOException {
+        if (!expectContinue || continueSent) return;
+        synchronized (this) {
+            if (continueSent || headersSent) return;
+            continueSent = true;
+        }
+        conn.sendContinue();
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return ctx;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        if (!headersSent) {
+            abort();
+            return;
+        }
+        try {
+            response.close();
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return uis != null ? uis : body;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return uos != null ? uos : response;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 202:
+                return "Accepted";
+            case 204:
+                return "No Content";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 413:
+                return "Payload Too Large";
+            case 417:
+                return "Expectation Failed";
+            case 429:
+                return "Too Many Requests";
+            case 500:
+                return "Internal Server Error";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "";
+        }
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        synchronized (this) {
+            if (headersSent) throw new IOException("headers already sent");
+            headersSent = true;
+        }
+        responseCode = rCode;
+        boolean nobody = responseLength == -1 || "HEAD".equals(method) || rCode == 204 || rCode == 304 || rCode < 200;
+        if (stream != null) {
+            if (responseLength > 0) responseHeaders.set("Content-length", Long.toString(responseLength));
+            h2.sendHeaders(stream, rCode, responseHeaders, nobody);
+            response.start(null, false, !nobody && responseLength > 0, nobody ? 0 : responseLength);
+            if (nobody) response.closeWithoutEnd();
+            return;
+        }
+        boolean chunked = !nobody && responseLength == 0;
+        if (expectContinue && !continueSent) conn.setCloseAfterResponse();
+        if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) conn.setCloseAfterResponse();
+        else if (conn.isCloseAfterResponse()) responseHeaders.set("Connection", "close");
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode)).append("\r\n");
+        if (chunked) responseHeaders.set("Transfer-encoding", "chunked");
+        else if (responseLength > 0) responseHeaders.set("Content-length", Long.toString(responseLength));
+        else if (rCode != 204 && rCode != 304 && rCode >= 200) responseHeaders.set("Content-length", "0");
+        for (Map.Entry<String, List<String>> e : responseHeaders.entrySet())
+            for (String v : e.getValue()) sb.append(e.getKey()).append(": ").append(v).append("\r\n");
+        sb.append("\r\n");
+        response.start(sb.toString().getBytes(StandardCharsets.ISO_8859_1), chunked, !chunked, nobody ? 0 : responseLength);
+        if (nobody) response.close();
+    }
+
+    /**
+     * Zero-copy response: sends the file region with FileChannel.transferTo from the event loop. Response headers
+     * should be sent with the length equal to count. The channel is closed by the server after the transfer.
+     * The handler thread does not wait for the transfer. HTTP/2 streams are copied through DATA frames.
+     *
+     * @param fc       File channel, ownership is passed to the server
+     * @param position starting position
+     * @param count    number of bytes
+     * @throws IOException
+     */
+    public void sendFile(FileChannel fc, long position, long count) throws IOException {
+        response.sendFile(fc, position, count);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) conn.ch.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) conn.ch.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        if (value == null) attributes.remove(name);
+        else attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) uis = i;
+        if (o != null) uos = o;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+
+    void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+    private final class ResponseStream extends OutputStream {
+
+        private byte[] head;
+        private boolean started;
+        private boolean chunked;
+        private long remaining;
+        private boolean fixed;
+        private final byte[] buf = new byte[OUTCHUNK];
+        private int count;
+        private boolean streamClosed;
+
+        void start(byte[] head, boolean chunked, boolean fixed, long length) {
+            this.head = head;
+            this.chunked = chunked;
+            this.fixed = fixed;
+            this.remaining = length;
+            this.started = true;
+        }
+
+        /**
+         * HTTP/2 response without body, END_STREAM was sent with HEADERS
+         */
+        void closeWithoutEnd() {
+            streamClosed = true;
+        }
+
+        private void check(int len) throws IOException {
+            if (!started) throw new IOException("response headers not sent yet");
+            if (streamClosed) throw new IOException("stream is closed");
+            if (fixed && len > remaining) throw new IOException("too many bytes to write to stream");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            buf[count++] = (byte) b;
+            if (fixed) remaining--;
+            if (count == buf.length) push(false);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check(len);
+            if (fixed) remaining -= len;
+            while (len > 0) {
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buf.length) push(false);
+            }
+        }
+
+        private void push(boolean last) throws IOException {
+            if (stream != null) {
+                // DATA frame copies the bytes, the buffer can be reused at once
+                h2.sendData(stream, buf, 0, count, last);
+                count = 0;
+                return;
+            }
+            if (head != null) {
+                conn.enqueue(ByteBuffer.wrap(head));
+                head = null;
+            }
+            if (count > 0) {
+                byte[] data;
+                if (chunked) {
+                    byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                    data = new byte[size.length + count + 2];
+                    System.arraycopy(size, 0, data, 0, size.length);
+                    System.arraycopy(buf, 0, data, size.length, count);
+                    data[data.length - 2] = '\r';
+                    data[data.length - 1] = '\n';
+                } else {
+                    data = new byte[count];
+                    System.arraycopy(buf, 0, data, 0, count);
+                }
+                count = 0;
+                conn.enqueue(ByteBuffer.wrap(data));
+            }
+            if (last && chunked) conn.enqueue(ByteBuffer.wrap(LASTCHUNK));
+            if (!last) conn.awaitWritable();
+        }
+
+        void sendFile(FileChannel fc, long position, long len) throws IOException {
+            if (stream != null) {
+                try (FileChannel c = fc) {
+                    ByteBuffer b = ByteBuffer.wrap(new byte[OUTCHUNK]);
+                    long end = position + len;
+                    while (position < end) {
+                        b.clear();
+                        if (end - position < b.capacity()) b.limit((int) (end - position));
+                        int n = c.read(b, position);
+                        if (n <= 0) break;
+                        write(b.array(), 0, n);
+                        position += n;
+                    }
+                }
+                return;
+            }
+            try {
+                check((int) Math.min(Integer.MAX_VALUE, len));
+                if (chunked) throw new IOException("sendFile requires fixed length response");
+                push(false);
+            } catch (IOException e) {
+                fc.close();
+                throw e;
+            }
+            remaining -= len;
+            conn.enqueue(new NioConnection.FileRegion(fc, position, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (started && !streamClosed) push(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (streamClosed || !started) return;
+            push(true);
+            streamClosed = true;
+            if (stream != null) return;
+            // truncated fixed length response, the client cannot reuse the connection
+            if (fixed && remaining > 0) conn.setCloseAfterResponse();
+            conn.exchangeFinished();
+        }
+    }
+}
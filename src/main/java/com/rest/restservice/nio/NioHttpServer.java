@@ -0,0 +1,363 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Selector based HTTP/1.1 server, drop-in replacement of com.sun.net.httpserver.HttpServer.<br>
+ * Several event loops (selector threads), direct read buffer per loop, keep-alive with pipelining,
+ * zero-copy file responses (NioHttpExchange.sendFile), lazy "100 Continue", idle and write timeouts.<br>
+ * HTTP/2 cleartext (h2c) is accepted with prior knowledge or by HTTP/1.1 Upgrade, every stream is one handler call.<br>
+ * If SO_REUSEPORT is supported by OS and requested, every event loop has its own listening socket bound to the same port,
+ * otherwise the first loop accepts connections and distributes them round-robin.<br>
+ * The handlers are always executed by the executor, never by the event loop.
+ */
+public class NioHttpServer extends HttpServer {
+
+    private final int loopCount;
+    private final boolean reusePort;
+    private boolean reusePortActive = false;
+    private InetSocketAddress address;
+    private final List<ServerSocketChannel> acceptors = new ArrayList<ServerSocketChannel>();
+    private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<NioHttpContext>();
+    private final AtomicInteger next = new AtomicInteger();
+    private EventLoop[] loops;
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile int maxRequestHeaderBytes = 16 * 1024;
+    private volatile long maxPendingBytes = 256 * 1024;
+    private volatile long idleTimeoutMillis = 30000;
+    private volatile boolean http2Enabled = true;
+    private volatile int http2MaxConcurrentStreams = 100;
+    private volatile int http2InitialWindowSize = 65535;
+
+    private NioHttpServer(int loopCount, boolean reusePort) {
+        this.loopCount = Math.max(1, loopCount);
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Creates the server bound to the address
+     *
+     * @param addr      address
+     * @param backlog   socket backlog, 0 system default
+     * @param loops     number of event loops, 0 number of available processors
+     * @param reusePort use SO_REUSEPORT (one listening socket per loop) if supported
+     * @return NioHttpServer
+     * @throws IOException
+     */
+    public static NioHttpServer create(InetSocketAddress addr, int backlog, int loops, boolean reusePort) throws IOException {
+        NioHttpServer server = new NioHttpServer(loops == 0 ? Runtime.getRuntime().availableProcessors() : loops, reusePort);
+        if (addr != null) server.bind(addr, backlog);
+        return server;
+    }
+
+    public static NioHttpServer create(InetSocketAddress addr, int backlog) throws IOException {
+        return create(addr, backlog, 0, false);
+    }
+
+    @Override
+    public void bind(InetSocketAddress addr, int backlog) throws IOException {
+        if (!acceptors.isEmpty()) throw new IllegalStateException("Server already bound");
+        ServerSocketChannel first = ServerSocketChannel.open();
+        reusePortActive = reusePort && loopCount > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort && !reusePortActive) RestLogger.info("SO_REUSEPORT not supported or single loop, one acceptor is used");
+        int n = reusePortActive ? loopCount : 1;
+        for (int i = 0; i < n; i++) {
+            ServerSocketChannel ssc = i == 0 ? first : ServerSocketChannel.open();
+            ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePortActive) ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            // port 0: next acceptors bind to the port chosen for the first
+            ssc.bind(i == 0 ? addr : acceptors.get(0).getLocalAddress(), backlog);
+            acceptors.add(ssc);
+        }
+        address = (InetSocketAddress) first.getLocalAddress();
+    }
+
+    @Override
+    public void start() {
+        if (acceptors.isEmpty()) throw new IllegalStateException("Server not bound");
+        if (loops != null) throw new IllegalStateException("Server already started");
+        if (executor == null) {
+            defaultExecutor = Executors.newCachedThreadPool();
+            executor = defaultExecutor;
+        }
+        loops = new EventLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++)
+                loops[i] = new EventLoop(this, i < acceptors.size() ? acceptors.get(i) : null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open selector", e);
+        }
+        for (int i = 0; i < loopCount; i++) loops[i].start("nio-loop-" + address.getPort() + "-" + i);
+        RestLogger.info("NIO server started, " + loopCount + " event loops, " + acceptors.size() + " acceptors" + (reusePortActive ? " (SO_REUSEPORT)" : ""));
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (loops != null) throw new IllegalStateException("Server already started");
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        for (ServerSocketChannel ssc : acceptors) {
+            try {
+                ssc.close();
+            } catch (IOException ignored) {
+            }
+        }
+        long deadline = System.currentTimeMillis() + delay * 1000L;
+        while (active.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (loops != null) {
+            for (EventLoop l : loops) l.shutdown();
+            for (EventLoop l : loops) {
+                try {
+                    l.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (defaultExecutor != null) defaultExecutor.shutdown();
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioHttpContext c = (NioHttpContext) createContext(path);
+        c.setHandler(handler);
+        return c;
+    }
+
+    @Override
+    public synchronized HttpContext createContext(String path) {
+        if (path == null || !path.startsWith("/")) throw new IllegalArgumentException("Invalid path: " + path);
+        for (NioHttpContext c : contexts)
+            if (c.getPath().equals(path)) throw new IllegalArgumentException("cannot add context to list");
+        NioHttpContext c = new NioHttpContext(path, null, this);
+        contexts.add(c);
+        return c;
+    }
+
+    @Override
+    public synchronized void removeContext(String path) {
+        for (NioHttpContext c : contexts)
+            if (c.getPath().equals(path)) {
+                contexts.remove(c);
+                return;
+            }
+        throw new IllegalArgumentException("cannot remove element from list");
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) throw new IllegalArgumentException("cannot remove element from list");
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * The same matching rule as JDK server: the longest context path being a prefix of the request path
+     */
+    NioHttpContext findContext(String path) {
+        if (path == null) path = "/";
+        NioHttpContext best = null;
+        for (NioHttpContext c : contexts)
+            if (path.startsWith(c.getPath()) && (best == null || c.getPath().length() > best.getPath().length()))
+                best = c;
+        return best;
+    }
+
+    boolean isReusePortActive() {
+        return reusePortActive;
+    }
+
+    EventLoop nextLoop() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * @return Number of open connections, approximate
+     */
+    public int getConnectionCount() {
+        int n = 0;
+        if (loops != null) for (EventLoop l : loops) n += l.connectionCount();
+        return n;
+    }
+
+    public int getMaxRequestHeaderBytes() {
+        return maxRequestHeaderBytes;
+    }
+
+    public void setMaxRequestHeaderBytes(int maxRequestHeaderBytes) {
+        this.maxRequestHeaderBytes = maxRequestHeaderBytes;
+    }
+
+    /**
+     * Maximum number of request or response bytes buffered per connection before reading is paused or writing handler is blocked
+     */
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Idle keep-alive, request read and response write timeout
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Accept h2c (prior knowledge and Upgrade), enabled by default
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    /**
+     * SETTINGS_MAX_CONCURRENT_STREAMS advertised to the client, streams above the limit are refused
+     */
+    public void setHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+    }
+
+    public int getHttp2InitialWindowSize() {
+        return http2InitialWindowSize;
+    }
+
+    /**
+     * SETTINGS_INITIAL_WINDOW_SIZE advertised to the client, the per stream request body buffer
+     */
+    public void setHttp2InitialWindowSize(int http2InitialWindowSize) {
+        this.http2InitialWindowSize = http2InitialWindowSize;
+    }
+
+    private static class AuthFilter extends Filter {
+
+        private final Authenticator auth;
+
+        AuthFilter(Authenticator auth) {
+            this.auth = auth;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            Authenticator.Result r = auth.authenticate(exchange);
+            if (r instanceof Authenticator.Success) {
+                ((NioHttpExchange) exchange).setPrincipal(((Authenticator.Success) r).getPrincipal());
+                chain.doFilter(exchange);
+            } else if (r instanceof Authenticator.Retry) {
+                exchange.sendResponseHeaders(((Authenticator.Retry) r).getResponseCode(), -1);
+                exchange.close();
+            } else {
+                ((NioHttpExchange) exchange).setCloseAfterResponse();
+                exchange.sendResponseHeaders(((Authenticator.Failure) r).getResponseCode(), -1);
+                exchange.close();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Authentication filter";
+        }
+    }
+
+    private void handle(NioHttpExchange ex) {
+        try {
+            NioHttpContext ctx = (NioHttpContext) ex.getHttpContext();
+            if (ctx == null || ctx.getHandler() == null) {
+                ex.setCloseAfterResponse();
+                ex.sendResponseHeaders(404, -1);
+                ex.close();
+                return;
+            }
+            List<Filter> sys = ctx.getAuthenticator() == null ? Collections.<Filter>emptyList() : Collections.<Filter>singletonList(new AuthFilter(ctx.getAuthenticator()));
+            final Filter.Chain syschain = new Filter.Chain(sys, ctx.getHandler());
+            new Filter.Chain(ctx.getFilters(), syschain::doFilter).doFilter(ex);
+        } catch (Exception e) {
+            RestLogger.L.log(Level.SEVERE, "Exception while handling request", e);
+            ex.abort();
+        } finally {
+            active.decrementAndGet();
+            ex.handlerFinished();
+        }
+    }
+
+    void dispatch(NioHttpExchange ex) {
+        active.incrementAndGet();
+        try {
+            executor.execute(() -> handle(ex));
+        } catch (RejectedExecutionException e) {
+            active.decrementAndGet();
+            RestLogger.L.log(Level.WARNING, "Executor rejected request", e);
+            ex.abort();
+            ex.handlerFinished();
+        }
+    }
+}
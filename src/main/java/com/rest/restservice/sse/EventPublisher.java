@@ -0,0 +1,307 @@
+package com.rest.restservice.sse;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestLogger;
+import com.rest.restservice.nio.NioHttpExchange;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Fan-out of server-sent events to subscribed streaming exchanges.<br>
+ * Every event is encoded once and the same byte array is queued for every subscriber. Subscribers do not own a thread:
+ * a small pool of writer threads drains the queues of subscribers having pending events.
+ * Every subscriber has a bounded queue, when it is full (slow consumer) the oldest event is dropped or the subscriber is disconnected.<br>
+ * A heartbeat comment is sent to subscribers not written for heartbeat period, subscribers not receiving any event
+ * during idle timeout are disconnected (the client is expected to reconnect).
+ * A write blocked longer than the write timeout (client not reading) aborts the subscriber exchange and frees the writer thread.
+ */
+public class EventPublisher implements Closeable {
+
+    /**
+     * Action taken when the subscriber queue is full
+     */
+    public enum OVERFLOW {
+        DROP, DISCONNECT
+    }
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long DEFAULTWRITETIMEOUTMILLIS = 30000;
+
+    private final int queueSize;
+    private final OVERFLOW overflow;
+    private final long heartbeatMillis;
+    private final long idleTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final ExecutorService writers;
+    private final ScheduledExecutorService timer;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final AtomicLong writeTimeouts = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param queueSize         Maximum number of events waiting for one subscriber
+     * @param overflow          Action when the subscriber queue is full
+     * @param heartbeatMillis   Heartbeat period
+     * @param idleTimeoutMillis Subscriber without events for this time is disconnected, 0 : no idle timeout
+     * @param writerThreads     Number of threads writing to subscribers
+     */
+    public EventPublisher(int queueSize, OVERFLOW overflow, long heartbeatMillis, long idleTimeoutMillis, int writerThreads) {
+        this(queueSize, overflow, heartbeatMillis, idleTimeoutMillis, DEFAULTWRITETIMEOUTMILLIS, writerThreads);
+    }
+
+    /**
+     * @param queueSize          Maximum number of events waiting for one subscriber
+     * @param overflow           Action when the subscriber queue is full
+     * @param heartbeatMillis    Heartbeat period
+     * @param idleTimeoutMillis  Subscriber without events for this time is disconnected, 0 : no idle timeout
+     * @param writeTimeoutMillis Subscriber whose write is blocked for this time is aborted
+     * @param writerThreads      Number of threads writing to subscribers
+     */
+    public EventPublisher(int queueSize, OVERFLOW overflow, long heartbeatMillis, long idleTimeoutMillis, long writeTimeoutMillis, int writerThreads) {
+        this.queueSize = queueSize;
+        this.overflow = overflow;
+        this.heartbeatMillis = heartbeatMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.writers = Executors.newFixedThreadPool(writerThreads, r -> daemon(r, "sse-writer"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "sse-heartbeat"));
+        long period = Math.min(heartbeatMillis, writeTimeoutMillis);
+        if (idleTimeoutMillis > 0) period = Math.min(period, idleTimeoutMillis);
+        period = Math.max(100, period / 2);
+        timer.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread th = new Thread(r, name);
+        th.setDaemon(true);
+        return th;
+    }
+
+    /**
+     * Single subscriber, streaming exchange and its queue
+     */
+    private class Subscriber {
+        private final HttpExchange t;
+        private final OutputStream out;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueSize);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile long lastWrite = System.currentTimeMillis();
+        private volatile long lastEvent = lastWrite;
+        // writer thread blocked in write and the write start, guarded by this
+        private Thread writer;
+        private long writeStarted;
+        private boolean timedOut;
+
+        Subscriber(HttpExchange t, OutputStream out) {
+            this.t = t;
+            this.out = out;
+        }
+
+        void offer(byte[] b) {
+            while (!queue.offer(b)) {
+                dropped.incrementAndGet();
+                if (overflow == OVERFLOW.DISCONNECT) {
+                    disconnected.incrementAndGet();
+                    close();
+                    return;
+                }
+                queue.poll();
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (closed.get() || !scheduled.compareAndSet(false, true)) return;
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        private void drain() {
+            synchronized (this) {
+                writer = Thread.currentThread();
+                writeStarted = System.currentTimeMillis();
+            }
+            try {
+                byte[] b;
+                while ((b = queue.poll()) != null) out.write(b);
+                out.flush();
+                lastWrite = System.currentTimeMillis();
+            } catch (IOException e) {
+                RestLogger.L.log(Level.FINE, "Event stream closed by client", e);
+                close();
+                return;
+            } finally {
+                synchronized (this) {
+                    writer = null;
+                    // the interrupt belongs to this subscriber, never to the next task of the pool thread
+                    if (timedOut) Thread.interrupted();
+                }
+                scheduled.set(false);
+            }
+            if (!queue.isEmpty()) schedule();
+        }
+
+        /**
+         * Aborts the exchange if the write is blocked too long. Interrupt closes the JDK server socket channel,
+         * NIO exchange is aborted directly. The stream is never finished, the client sees the connection dropped.
+         */
+        synchronized void checkWrite(long now) {
+            if (writer == null || timedOut || now - writeStarted <= writeTimeoutMillis) return;
+            timedOut = true;
+            writeTimeouts.incrementAndGet();
+            RestLogger.L.log(Level.FINE, "Event stream write timeout");
+            if (t instanceof NioHttpExchange) ((NioHttpExchange) t).abort();
+            writer.interrupt();
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            subscribers.remove(this);
+            queue.clear();
+            // closing can block on a slow client, never in the publisher thread
+            Runnable c = () -> {
+                try {
+                    t.close();
+                } catch (Exception e) {
+                    RestLogger.L.log(Level.FINE, "Error while closing event stream", e);
+                }
+            };
+            try {
+                writers.execute(c);
+            } catch (RejectedExecutionException e) {
+                c.run();
+            }
+        }
+    }
+
+    /**
+     * Registers streaming exchange as subscriber. The response headers should be already sent.
+     *
+     * @param t   Streaming exchange, closed by publisher when the subscriber is disconnected
+     * @param out Exchange response stream
+     */
+    public void subscribe(HttpExchange t, OutputStream out) {
+        Subscriber s = new Subscriber(t, out);
+        subscribers.add(s);
+        if (closed) s.close();
+        else s.offer(HEARTBEAT);
+    }
+
+    /**
+     * Encodes the event in text/event-stream format
+     *
+     * @param id    Event id
+     * @param event Optional, event name
+     * @param data  Event data, multiline data is split into several data fields
+     * @return Encoded event
+     */
+    static byte[] encode(long id, Optional<String> event, String data) {
+        StringBuilder b = new StringBuilder();
+        b.append("id: ").append(id).append('\n');
+        if (event.isPresent()) b.append("event: ").append(event.get()).append('\n');
+        for (String line : data.split("\r\n|\r|\n", -1)) b.append("data: ").append(line).append('\n');
+        b.append('\n');
+        return b.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Publishes event to all current subscribers. Never blocks on slow subscribers.
+     *
+     * @param event Optional, event name
+     * @param data  Event data
+     * @return Number of subscribers the event was queued for
+     */
+    public int publish(Optional<String> event, String data) {
+        byte[] b = encode(nextId.incrementAndGet(), event, data);
+        long now = System.currentTimeMillis();
+        int no = 0;
+        for (Subscriber s : subscribers) {
+            s.lastEvent = now;
+            s.offer(b);
+            no++;
+        }
+        return no;
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Subscriber s : subscribers) {
+            s.checkWrite(now);
+            if (idleTimeoutMillis > 0 && now - s.lastEvent > idleTimeoutMillis) {
+                RestLogger.L.log(Level.FINE, "Event stream idle timeout");
+                s.close();
+            } else if (now - s.lastWrite >= heartbeatMillis && s.queue.isEmpty()) s.offer(HEARTBEAT);
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return Number of events dropped because of full subscriber queue
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Number of subscribers disconnected because of full queue
+     */
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    /**
+     * @return Number of subscribers aborted because of blocked write
+     */
+    public long getWriteTimeouts() {
+        return writeTimeouts.get();
+    }
+
+    /**
+     * Disconnects all subscribers and stops writer threads
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        for (Subscriber s : subscribers) s.close();
+        writers.shutdown();
+    }
+}
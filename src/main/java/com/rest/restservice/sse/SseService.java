@@ -0,0 +1,57 @@
+package com.rest.restservice.sse;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.MemoryHttpExchange;
+import com.rest.restservice.RestHelper;
+import com.rest.restservice.RestParams;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Optional;
+
+/**
+ * Server-sent events service. GET request is answered by text/event-stream response kept open and fed by EventPublisher.
+ * The executor thread is released immediately after subscription.
+ */
+public class SseService extends RestHelper.RestServiceHelper {
+
+    private final EventPublisher publisher;
+
+    /**
+     * @param url       service URL
+     * @param publisher Events source
+     */
+    public SseService(String url, EventPublisher publisher) {
+        super(url);
+        this.publisher = publisher;
+    }
+
+    @Override
+    public RestParams getParams(HttpExchange httpExchange) throws IOException {
+        return new RestParams(RestHelper.GET, Optional.of(RestParams.CONTENT.EVENTS), false, new ArrayList<String>());
+    }
+
+    @Override
+    public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+        if (v.getT() instanceof MemoryHttpExchange) {
+            produceResponse(v, Optional.of("Event stream cannot be used in batch request"), RestHelper.HTTPBADREQUEST);
+            return;
+        }
+        OutputStream out = produceStreamingResponse(v);
+        publisher.subscribe(v.getT(), out);
+    }
+}
@@ -15,6 +15,7 @@ package com.rest.restservice.ssl;
 
 
 import com.rest.restservice.RestLogger;
+import com.rest.restservice.jfr.TlsSetupEvent;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsParameters;
@@ -61,8 +62,16 @@ public class SecureHttp {
         HttpsServer server = HttpsServer.create(new InetSocketAddress(PORT), 0);
 // create ssl context
         SSLContext sslContext = null;
+        TlsSetupEvent event = new TlsSetupEvent();
+        event.begin();
         try {
             sslContext = load(params[0], params[1]);
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = "context";
+                event.protocols = String.join(",", sslContext.getDefaultSSLParameters().getProtocols());
+                event.commit();
+            }
         } catch (CertificateException | NoSuchAlgorithmException | UnrecoverableKeyException | KeyStoreException | KeyManagementException e) {
             String mess = "Cannot initialize SSL context";
             RestLogger.L.log(Level.SEVERE, mess, e);
@@ -71,6 +80,8 @@ public class SecureHttp {
 // setup the HTTPS context and parameters
         server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
             public void configure(HttpsParameters params) {
+                TlsSetupEvent event = new TlsSetupEvent();
+                event.begin();
                 // initialise the SSL context
   //              SSLContext c = getSSLContext();
                 SSLContext c = null;
@@ -87,6 +98,13 @@ public class SecureHttp {
                 SSLParameters defaultSSLParameters = c.getDefaultSSLParameters();
 //                SSLParameters defaultSSLParameters = c.getSupportedSSLParameters();
                 params.setSSLParameters(defaultSSLParameters);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.phase = "connection";
+                    event.clientAddress = String.valueOf(params.getClientAddress());
+                    event.protocols = String.join(",", defaultSSLParameters.getProtocols());
+                    event.commit();
+                }
             }
         });
         return server;
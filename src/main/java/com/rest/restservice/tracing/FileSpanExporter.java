@@ -0,0 +1,160 @@
+package com.rest.restservice.tracing;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.Json;
+import com.rest.restservice.RestLogger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Exports spans to a local file in OTLP-JSON format, one ExportTraceServiceRequest per line (the format read by
+ * OpenTelemetry collector otlpjsonfile receiver). Spans are queued and written by a background thread, the request thread
+ * never blocks: when the queue is full the span is dropped and counted.
+ */
+public class FileSpanExporter implements ISpanSink, Closeable {
+
+    private static final int MAXBATCH = 512;
+
+    private final Writer out;
+    private final String serviceName;
+    private final ArrayBlockingQueue<Span> queue;
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong exported = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param file        Output file, appended
+     * @param serviceName service.name resource attribute
+     * @param queueSize   Maximum number of spans waiting for export
+     * @throws IOException Cannot open the file
+     */
+    public FileSpanExporter(Path file, String serviceName, int queueSize) throws IOException {
+        this.out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        this.serviceName = serviceName;
+        this.queue = new ArrayBlockingQueue<Span>(queueSize);
+        this.writer = new Thread(this::loop, "span-exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void export(Span span) {
+        if (closed || !queue.offer(span)) dropped.incrementAndGet();
+    }
+
+    private void loop() {
+        List<Span> batch = new ArrayList<Span>(MAXBATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Span s = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (s == null) continue;
+                batch.add(s);
+                queue.drainTo(batch, MAXBATCH - 1);
+                write(batch);
+                exported.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                RestLogger.limited(Level.WARNING, "Cannot write spans", e);
+            }
+            batch.clear();
+        }
+    }
+
+    private static void attribute(StringBuilder b, String key, String value, String longValue) {
+        b.append("{\"key\":");
+        Json.quote(b, key);
+        if (value != null) {
+            b.append(",\"value\":{\"stringValue\":");
+            Json.quote(b, value);
+            b.append("}}");
+        } else b.append(",\"value\":{\"intValue\":\"").append(longValue).append("\"}}");
+    }
+
+    private void write(List<Span> batch) throws IOException {
+        StringBuilder b = new StringBuilder(256 * batch.size());
+        b.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        attribute(b, "service.name", serviceName, null);
+        b.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"com.rest.restservice\"},\"spans\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            Span s = batch.get(i);
+            if (i > 0) b.append(',');
+            b.append("{\"traceId\":\"").append(s.getContext().getTraceId());
+            b.append("\",\"spanId\":\"").append(s.getContext().getSpanId()).append('"');
+            if (s.getParentSpanId() != 0) b.append(",\"parentSpanId\":\"").append(SpanContext.hex(s.getParentSpanId())).append('"');
+            b.append(",\"name\":");
+            Json.quote(b, s.getName());
+            // OTLP SpanKind: 1 internal, 2 server
+            b.append(",\"kind\":").append(s.getKind() == Span.KIND.SERVER ? 2 : 1);
+            b.append(",\"startTimeUnixNano\":\"").append(s.getStartEpochNanos());
+            b.append("\",\"endTimeUnixNano\":\"").append(s.getEndEpochNanos()).append("\",\"attributes\":[");
+            List<String[]> attrs = s.getAttributes();
+            for (int a = 0; a < attrs.size(); a++) {
+                String[] at = attrs.get(a);
+                if (a > 0) b.append(',');
+                attribute(b, at[0], at[1], at.length > 2 ? at[2] : null);
+            }
+            b.append("],\"status\":");
+            if (s.getError() == null) b.append("{\"code\":1}}");
+            else {
+                b.append("{\"code\":2,\"message\":");
+                Json.quote(b, s.getError());
+                b.append("}}");
+            }
+        }
+        b.append("]}]}]}\n");
+        out.write(b.toString());
+        out.flush();
+    }
+
+    /**
+     * @return Number of spans dropped because of full queue
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getExported() {
+        return exported.get();
+    }
+
+    /**
+     * Writes queued spans and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+    }
+}
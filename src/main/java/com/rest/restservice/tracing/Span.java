@@ -0,0 +1,151 @@
+package com.rest.restservice.tracing;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timed operation within the trace. Created by Tracer, closed (ended) in the thread that created it, use try-with-resources.
+ * Non-recording spans (tracing disabled or request not sampled) ignore attributes and are not exported.
+ */
+public class Span implements AutoCloseable {
+
+    public enum KIND {
+        INTERNAL, SERVER
+    }
+
+    static final Span NOOP = new Span();
+
+    private final String name;
+    private final KIND kind;
+    private final SpanContext context;
+    private final long parentSpanId;
+    private final Span parent;
+    private final boolean recording;
+    private final long startNanos;
+    private long endNanos;
+    private final List<String[]> attributes;
+    private String error;
+
+    private Span() {
+        this.name = "";
+        this.kind = KIND.INTERNAL;
+        this.context = null;
+        this.parentSpanId = 0;
+        this.parent = null;
+        this.recording = false;
+        this.startNanos = 0;
+        this.attributes = Collections.emptyList();
+    }
+
+    Span(String name, KIND kind, SpanContext context, long parentSpanId, Span parent, boolean recording) {
+        this.name = name;
+        this.kind = kind;
+        this.context = context;
+        this.parentSpanId = parentSpanId;
+        this.parent = parent;
+        this.recording = recording;
+        this.startNanos = recording ? Tracer.nowEpochNanos() : 0;
+        this.attributes = recording ? new ArrayList<String[]>(4) : Collections.<String[]>emptyList();
+    }
+
+    /**
+     * @return false if the span is not exported
+     */
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * @return Span context, null for the no-op span (tracing disabled)
+     */
+    public SpanContext getContext() {
+        return context;
+    }
+
+    public Span setAttribute(String key, String value) {
+        if (recording) attributes.add(new String[]{key, value});
+        return this;
+    }
+
+    public Span setAttribute(String key, long value) {
+        if (recording) attributes.add(new String[]{key, null, Long.toString(value)});
+        return this;
+    }
+
+    /**
+     * Marks the span as failed
+     *
+     * @param message Error description
+     */
+    public void setError(String message) {
+        if (recording) error = message == null ? "" : message;
+    }
+
+    Span getParent() {
+        return parent;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public KIND getKind() {
+        return kind;
+    }
+
+    /**
+     * @return Parent span id, 0 if root
+     */
+    public long getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public long getStartEpochNanos() {
+        return startNanos;
+    }
+
+    public long getEndEpochNanos() {
+        return endNanos;
+    }
+
+    /**
+     * @return Attributes: {key, string value} or {key, null, long value}
+     */
+    public List<String[]> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return Error message or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Ends the span, restores the parent as the current span and exports if recording
+     */
+    @Override
+    public void close() {
+        if (this == NOOP) return;
+        Tracer.end(this);
+        if (recording) {
+            endNanos = Tracer.nowEpochNanos();
+            Tracer.export(this);
+        }
+    }
+}
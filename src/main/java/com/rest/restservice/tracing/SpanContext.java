@@ -0,0 +1,132 @@
+package com.rest.restservice.tracing;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * W3C trace context: trace id, span id and sampled flag. Parsed from and serialized to the traceparent header.
+ */
+public final class SpanContext {
+
+    public static final String TRACEPARENT = "traceparent";
+
+    private final long traceHi;
+    private final long traceLo;
+    private final long spanId;
+    private final boolean sampled;
+
+    SpanContext(long traceHi, long traceLo, long spanId, boolean sampled) {
+        this.traceHi = traceHi;
+        this.traceLo = traceLo;
+        this.spanId = spanId;
+        this.sampled = sampled;
+    }
+
+    static long randomId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * New root context
+     */
+    static SpanContext root(boolean sampled) {
+        return new SpanContext(randomId(), randomId(), randomId(), sampled);
+    }
+
+    /**
+     * Child context in the same trace
+     */
+    SpanContext child() {
+        return new SpanContext(traceHi, traceLo, randomId(), sampled);
+    }
+
+    /**
+     * Parses traceparent header value: version-traceid-spanid-flags
+     *
+     * @param header Header value
+     * @return SpanContext or empty if the value is malformed
+     */
+    public static Optional<SpanContext> parse(String header) {
+        if (header == null) return Optional.empty();
+        String h = header.trim();
+        if (h.length() < 55 || h.charAt(2) != '-' || h.charAt(35) != '-' || h.charAt(52) != '-') return Optional.empty();
+        if (h.startsWith("ff")) return Optional.empty();
+        try {
+            long hi = Long.parseUnsignedLong(h.substring(3, 19), 16);
+            long lo = Long.parseUnsignedLong(h.substring(19, 35), 16);
+            long span = Long.parseUnsignedLong(h.substring(36, 52), 16);
+            int flags = Integer.parseInt(h.substring(53, 55), 16);
+            if ((hi == 0 && lo == 0) || span == 0) return Optional.empty();
+            return Optional.of(new SpanContext(hi, lo, span, (flags & 1) != 0));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static void hex(StringBuilder b, long v) {
+        String s = Long.toHexString(v);
+        for (int i = s.length(); i < 16; i++) b.append('0');
+        b.append(s);
+    }
+
+    static String hex(long v) {
+        StringBuilder b = new StringBuilder(16);
+        hex(b, v);
+        return b.toString();
+    }
+
+    long getSpanIdValue() {
+        return spanId;
+    }
+
+    public String getTraceId() {
+        StringBuilder b = new StringBuilder(32);
+        hex(b, traceHi);
+        hex(b, traceLo);
+        return b.toString();
+    }
+
+    public String getSpanId() {
+        return hex(spanId);
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return traceparent header value to propagate the context to downstream calls
+     */
+    public String toTraceparent() {
+        StringBuilder b = new StringBuilder(55);
+        b.append("00-");
+        hex(b, traceHi);
+        hex(b, traceLo);
+        b.append('-');
+        hex(b, spanId);
+        b.append(sampled ? "-01" : "-00");
+        return b.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toTraceparent();
+    }
+}
@@ -0,0 +1,181 @@
+package com.rest.restservice.tracing;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.rest.restservice.RestHelper;
+import com.rest.restservice.RestLogger;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+/**
+ * Request tracing with W3C traceparent propagation and head based sampling.<br>
+ * Tracer.configure installs a filter creating the SERVER span for every request (before authentication), RestServiceHelper and
+ * the Kerberos authenticator create child spans for every phase. The sampling decision is taken once per trace: the flag of
+ * incoming traceparent is honored, new traces are sampled with the configured ratio. Not sampled requests create one
+ * non-recording span carrying the context, phase spans cost a thread local lookup.
+ */
+public final class Tracer {
+
+    /**
+     * Exchange attribute holding the SERVER span
+     */
+    public static final String ATTRIBUTE = "com.rest.restservice.tracing.span";
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+    private static final long BASEEPOCHNANOS = System.currentTimeMillis() * 1_000_000L;
+    private static final long BASENANOS = System.nanoTime();
+
+    private static volatile ISpanSink sink = null;
+    private static volatile double ratio = 1.0;
+    private static TracingFilter filter = null;
+
+    private Tracer() {
+    }
+
+    /**
+     * Enables tracing. Should be called before services are registered, the tracing filter is added to services registered later.
+     *
+     * @param spanSink    Destination of sampled spans
+     * @param sampleRatio Ratio of new traces sampled, 0.0 - 1.0
+     */
+    public static synchronized void configure(ISpanSink spanSink, double sampleRatio) {
+        sink = spanSink;
+        ratio = sampleRatio;
+        if (filter == null) {
+            filter = new TracingFilter();
+            RestHelper.addFilter(filter);
+        }
+    }
+
+    /**
+     * Disables tracing, the spans are not created
+     */
+    public static synchronized void disable() {
+        sink = null;
+        if (filter != null) RestHelper.removeFilter(filter);
+        filter = null;
+    }
+
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    static long nowEpochNanos() {
+        return BASEEPOCHNANOS + (System.nanoTime() - BASENANOS);
+    }
+
+    /**
+     * Starts SERVER span for incoming request, the span becomes current
+     *
+     * @param t    Exchange
+     * @param name Span name
+     * @return Span, no-op if tracing is disabled
+     */
+    public static Span startServerSpan(HttpExchange t, String name) {
+        if (sink == null) return Span.NOOP;
+        Optional<SpanContext> parent = SpanContext.parse(t.getRequestHeaders().getFirst(SpanContext.TRACEPARENT));
+        Span s;
+        if (parent.isPresent()) {
+            SpanContext p = parent.get();
+            s = new Span(name, Span.KIND.SERVER, p.child(), p.isSampled() ? p.getSpanIdValue() : 0, CURRENT.get(), p.isSampled());
+        } else {
+            boolean sampled = ratio >= 1.0 || ThreadLocalRandom.current().nextDouble() < ratio;
+            s = new Span(name, Span.KIND.SERVER, SpanContext.root(sampled), 0, CURRENT.get(), sampled);
+        }
+        CURRENT.set(s);
+        t.setAttribute(ATTRIBUTE, s);
+        return s;
+    }
+
+    /**
+     * Starts child span of the current span, the span becomes current
+     *
+     * @param name Span name
+     * @return Span, no-op if there is no current recording span
+     */
+    public static Span startSpan(String name) {
+        Span parent = CURRENT.get();
+        if (parent == null || !parent.isRecording()) return Span.NOOP;
+        SpanContext pc = parent.getContext();
+        Span s = new Span(name, Span.KIND.INTERNAL, pc.child(), pc.getSpanIdValue(), parent, true);
+        CURRENT.set(s);
+        return s;
+    }
+
+    /**
+     * @return Current span in this thread
+     */
+    public static Optional<Span> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    static void end(Span s) {
+        if (CURRENT.get() == s) {
+            if (s.getParent() == null) CURRENT.remove();
+            else CURRENT.set(s.getParent());
+        }
+    }
+
+    static void export(Span s) {
+        ISpanSink k = sink;
+        if (k == null) return;
+        try {
+            k.export(s);
+        } catch (RuntimeException e) {
+            RestLogger.limited(Level.WARNING, "Span export failed", e);
+        }
+    }
+
+    /**
+     * Creates SERVER span around the whole exchange, including authentication
+     */
+    private static class TracingFilter extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (sink == null) {
+                chain.doFilter(exchange);
+                return;
+            }
+            try (Span s = startServerSpan(exchange, exchange.getRequestMethod() + " " + exchange.getHttpContext().getPath())) {
+                if (s.isRecording()) {
+                    s.setAttribute("http.request.method", exchange.getRequestMethod());
+                    s.setAttribute("url.path", exchange.getRequestURI().getPath());
+                }
+                try {
+                    chain.doFilter(exchange);
+                } catch (IOException | RuntimeException e) {
+                    s.setError(e.getMessage());
+                    throw e;
+                } finally {
+                    if (s.isRecording()) {
+                        int code = exchange.getResponseCode();
+                        s.setAttribute("http.response.status_code", code);
+                        if (code >= 500) s.setError("HTTP " + code);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Request tracing";
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.rest.restservice;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation budget of the request hot path. Representative requests are dispatched in-process through
+ * RestServiceHelper.handle on MemoryHttpExchange, the bytes allocated by the handling thread are measured with ThreadMXBean
+ * and attributed to the request phase (InFlightRegistry.PHASE) running at the moment: getParams, verifyURL, body, servicehandle, write.<br>
+ * Every case has budget per phase in bytes per request, the test fails if any phase exceeds its budget. The results are
+ * printed as a table. The exchanges are built before the measurement, so only the request handling is counted.
+ */
+public class AllocationBudgetTest {
+
+    private static final int REQUESTS = Integer.getInteger("restservice.alloc.requests", 5000);
+    private static final int ROUNDS = 5;
+    private static final InFlightRegistry.PHASE[] PHASES = InFlightRegistry.PHASE.values();
+    private static final String BODY;
+
+    static {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; b.length() < 1024; i++) b.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item").append(i).append("\"}");
+        BODY = b.append(']').toString();
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final List<String> table = new ArrayList<String>();
+    private static Level level;
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Attributes the bytes allocated since the last phase change to the phase left
+     */
+    private static class Meter implements InFlightRegistry.IPhaseListener {
+        private final long[] bytes = new long[PHASES.length];
+        private InFlightRegistry.PHASE current;
+        private long mark;
+
+        void start() {
+            current = InFlightRegistry.PHASE.PARAMS;
+            mark = allocated();
+        }
+
+        @Override
+        public void phase(InFlightRegistry.PHASE from, InFlightRegistry.PHASE to) {
+            long now = allocated();
+            bytes[current.ordinal()] += now - mark;
+            current = to;
+            mark = allocated();
+        }
+
+        void stop() {
+            bytes[current.ordinal()] += allocated() - mark;
+        }
+    }
+
+    private static class Query extends RestHelper.RestServiceHelper {
+
+        Query() {
+            super("query");
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            RestParams par = new RestParams(RestHelper.GET, Optional.of(RestParams.CONTENT.TEXT), true, new ArrayList<String>());
+            par.addParam("id", PARAMTYPE.INT);
+            par.addParam("name", PARAMTYPE.STRING);
+            par.addParam("active", PARAMTYPE.BOOLEAN, new ParamValue(false));
+            par.addParam("from", PARAMTYPE.DATE, new ParamValue(new java.sql.Date(0)));
+            return par;
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            produceOKResponse(v, getStringParam(v, "name"));
+        }
+    }
+
+    private static class Upload extends RestHelper.RestServiceHelper {
+
+        Upload() {
+            super("upload");
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            return new RestParams(RestHelper.POST, Optional.of(RestParams.CONTENT.TEXT), false, new ArrayList<String>(), Optional.empty(), true);
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            produceOKResponse(v, "OK");
+        }
+    }
+
+    private static class Parts extends RestHelper.RestServiceHelper {
+
+        Parts() {
+            super("parts");
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            return new RestParams(RestHelper.GET, Optional.of(RestParams.CONTENT.MIXED), false, new ArrayList<String>());
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            produce2PartResponse(v, Optional.of("{\"id\":1,\"status\":\"OK\"}"), Optional.of("<p>report</p>"), RestHelper.HTTPOK, Optional.empty());
+        }
+    }
+
+    private static MemoryHttpExchange exchange(String method, String path, byte[] body, String... headers) {
+        Headers h = new Headers();
+        for (int i = 0; i < headers.length; i += 2) h.add(headers[i], headers[i + 1]);
+        MemoryHttpExchange ex = new MemoryHttpExchange(method, URI.create(path), h, body, null);
+        ex.setStreams(null, OutputStream.nullOutputStream());
+        return ex;
+    }
+
+    /**
+     * Runs the case and checks the budgets
+     *
+     * @param name    Case name
+     * @param status  Expected response code
+     * @param budgets Bytes per request: getParams, verifyURL, body, servicehandle, write
+     */
+    private static void run(String name, RestHelper.RestServiceHelper service, int status, long[] budgets, String method, String path, byte[] body, String... headers) throws IOException {
+        long[][] rounds = new long[PHASES.length][ROUNDS];
+        MemoryHttpExchange[] ex = new MemoryHttpExchange[REQUESTS];
+        // rounds below zero warm up
+        for (int r = -2; r < ROUNDS; r++) {
+            for (int i = 0; i < REQUESTS; i++) ex[i] = exchange(method, path, body, headers);
+            Meter meter = new Meter();
+            InFlightRegistry.setPhaseListener(meter);
+            try {
+                for (MemoryHttpExchange e : ex) {
+                    meter.start();
+                    service.handle(e);
+                    meter.stop();
+                }
+            } finally {
+                InFlightRegistry.setPhaseListener(null);
+            }
+            if (r >= 0) for (int p = 0; p < PHASES.length; p++) rounds[p][r] = meter.bytes[p] / REQUESTS;
+        }
+        assertEquals(name + " status", status, ex[0].getResponseCode());
+        long[] median = new long[PHASES.length];
+        StringBuilder line = new StringBuilder(String.format("%-10s %6d", name, status));
+        List<String> over = new ArrayList<String>();
+        for (int p = 0; p < PHASES.length; p++) {
+            Arrays.sort(rounds[p]);
+            median[p] = rounds[p][ROUNDS / 2];
+            line.append(String.format(" %8d/%-8d", median[p], budgets[p]));
+            if (median[p] > budgets[p]) over.add(PHASES[p] + " " + median[p] + " > " + budgets[p]);
+        }
+        table.add(line.toString());
+        assertTrue(name + " over allocation budget: " + over, over.isEmpty());
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        assertTrue("Thread allocated memory measurement not supported", THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled());
+        // request and error logging would dominate the measurement
+        level = RestLogger.L.getLevel();
+        RestLogger.L.setLevel(Level.SEVERE);
+    }
+
+    @AfterClass
+    public static void report() {
+        RestLogger.L.setLevel(level);
+        StringBuilder b = new StringBuilder(String.format("%-10s %6s", "case", "status"));
+        for (InFlightRegistry.PHASE p : PHASES) b.append(String.format(" %17s", p + " bytes/budget"));
+        System.out.println(b);
+        for (String l : table) System.out.println(l);
+    }
+
+    private static final byte[] NONE = new byte[0];
+
+    @Test
+    public void getWithParameters() throws IOException {
+        run("get", new Query(), RestHelper.HTTPOK, new long[]{1536, 5120, 0, 256, 3072}, RestHelper.GET, "/query?id=12&name=alpha&active=true&from=2024-05-01", NONE);
+    }
+
+    @Test
+    public void postWithBody() throws IOException {
+        run("post", new Upload(), RestHelper.HTTPOK, new long[]{1024, 768, 13312, 256, 3072}, RestHelper.POST, "/upload", BODY.getBytes(StandardCharsets.UTF_8), "Content-Type", "application/json");
+    }
+
+    @Test
+    public void preflight() throws IOException {
+        run("preflight", new Query(), RestHelper.HTTPNODATA, new long[]{1024, 0, 0, 0, 0}, RestHelper.OPTIONS, "/query", NONE, "Origin", "http://example.com", "Access-Control-Request-Method", "GET");
+    }
+
+    @Test
+    public void options() throws IOException {
+        run("options", new Query(), RestHelper.HTTPNODATA, new long[]{1536, 2176, 0, 0, 0}, RestHelper.OPTIONS, "/query", NONE);
+    }
+
+    @Test
+    public void badParameter() throws IOException {
+        run("badparam", new Query(), RestHelper.HTTPBADREQUEST, new long[]{1536, 3072, 0, 0, 2048}, RestHelper.GET, "/query?id=x12&name=alpha", NONE);
+    }
+
+    @Test
+    public void badMethod() throws IOException {
+        run("badmethod", new Upload(), RestHelper.HTTPMETHODNOTALLOWED, new long[]{1024, 768, 0, 0, 1664}, RestHelper.GET, "/upload", NONE);
+    }
+
+    @Test
+    public void multipart() throws IOException {
+        run("multipart", new Parts(), RestHelper.HTTPOK, new long[]{1024, 768, 0, 2688, 3072}, RestHelper.GET, "/parts", NONE);
+    }
+}
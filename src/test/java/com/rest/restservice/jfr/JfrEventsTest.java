@@ -0,0 +1,167 @@
+package com.rest.restservice.jfr;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import com.rest.restservice.PARAMTYPE;
+import com.rest.restservice.ParamValue;
+import com.rest.restservice.RestHelper;
+import com.rest.restservice.RestLogger;
+import com.rest.restservice.RestParams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RestService JFR events are recorded with restservice.jfc profile. The server and in-process recording are started once,
+ * valid, invalid and POST requests are sent, the tests read the recording. Authentication and TLS events require Kerberos
+ * and keystore configuration and are not covered.
+ */
+public class JfrEventsTest {
+
+    private static final String PREFIX = "com.rest.restservice.";
+
+    private static final List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+    private static Level level;
+
+    /**
+     * GET with id parameter, POST echoes the body
+     */
+    private static class EchoService extends RestHelper.RestServiceHelper {
+
+        EchoService() {
+            super("echo");
+        }
+
+        @Override
+        public RestParams getParams(HttpExchange httpExchange) throws IOException {
+            String method = httpExchange.getRequestMethod();
+            RestParams par = new RestParams(method, Optional.of(RestParams.CONTENT.TEXT), false, new ArrayList<String>(), Optional.empty(), RestHelper.POST.equals(method));
+            par.addParam("id", PARAMTYPE.INT, new ParamValue(0));
+            return par;
+        }
+
+        @Override
+        public void servicehandle(RestHelper.IQueryInterface v) throws IOException {
+            if (v.getRequestData() != null) {
+                byte[] b = new byte[v.getRequestData().capacity()];
+                v.getRequestData().rewind();
+                v.getRequestData().get(b);
+                produceByteResponse(v, Optional.of(b), RestHelper.HTTPOK, Optional.empty());
+            } else
+                produceOKResponse(v, "id=" + getIntParam(v, "id"));
+        }
+    }
+
+    @BeforeClass
+    public static void record() throws Exception {
+        level = RestLogger.L.getLevel();
+        RestLogger.L.setLevel(Level.WARNING);
+        Configuration conf;
+        try (Reader r = new InputStreamReader(JfrEventsTest.class.getResourceAsStream("/restservice.jfc"), StandardCharsets.UTF_8)) {
+            conf = Configuration.create(r);
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        RestHelper.registerService(server, new EchoService());
+        server.start();
+        String base = "http://localhost:" + server.getAddress().getPort() + "/echo";
+        Path file = Files.createTempFile("restservice", ".jfr");
+        try (Recording recording = new Recording(conf)) {
+            recording.start();
+            HttpClient client = HttpClient.newHttpClient();
+            client.send(HttpRequest.newBuilder(URI.create(base + "?id=1")).build(), HttpResponse.BodyHandlers.discarding());
+            client.send(HttpRequest.newBuilder(URI.create(base + "?unknown=1")).build(), HttpResponse.BodyHandlers.discarding());
+            client.send(HttpRequest.newBuilder(URI.create(base)).POST(HttpRequest.BodyPublishers.ofString("hello")).build(), HttpResponse.BodyHandlers.discarding());
+            recording.stop();
+            recording.dump(file);
+        } finally {
+            server.stop(0);
+        }
+        try {
+            for (RecordedEvent e : RecordingFile.readAllEvents(file))
+                if (e.getEventType().getName().startsWith(PREFIX)) events.add(e);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @AfterClass
+    public static void restore() {
+        RestLogger.L.setLevel(level);
+    }
+
+    private static List<RecordedEvent> events(String type) {
+        List<RecordedEvent> l = new ArrayList<RecordedEvent>();
+        for (RecordedEvent e : events)
+            if (e.getEventType().getName().equals(PREFIX + type)) l.add(e);
+        return l;
+    }
+
+    @Test
+    public void requestEvents() {
+        List<RecordedEvent> l = events("Request");
+        assertEquals(3, l.size());
+        Set<Integer> status = new HashSet<Integer>();
+        for (RecordedEvent e : l) {
+            assertEquals("/echo", e.getString("url"));
+            status.add(e.getInt("status"));
+        }
+        assertTrue(status.contains(RestHelper.HTTPOK));
+        assertTrue(status.contains(RestHelper.HTTPBADREQUEST));
+    }
+
+    @Test
+    public void bodyReadEvent() {
+        List<RecordedEvent> l = events("BodyRead");
+        assertEquals(1, l.size());
+        assertEquals(5, l.get(0).getLong("bytes"));
+    }
+
+    @Test
+    public void responseWriteEvents() {
+        assertTrue(events("ResponseWrite").size() >= 2);
+    }
+
+    @Test
+    public void validationFailureEvent() {
+        List<RecordedEvent> l = events("ValidationFailure");
+        assertEquals(1, l.size());
+        assertEquals(RestHelper.HTTPBADREQUEST, l.get(0).getInt("status"));
+    }
+}
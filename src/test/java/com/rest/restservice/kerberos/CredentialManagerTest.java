@@ -0,0 +1,216 @@
+package com.rest.restservice.kerberos;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * CredentialManager renewal with mocked LoginContext and GSSCredential, no KDC is needed.
+ */
+public class CredentialManagerTest {
+
+    private static final Configuration CONFIG = new Configuration() {
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+            return new AppConfigurationEntry[]{new AppConfigurationEntry("MockLoginModule", AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, Collections.emptyMap())};
+        }
+    };
+
+    /**
+     * LoginContext not calling any login module
+     */
+    private static final class MockLoginContext extends LoginContext {
+        private final Subject subject;
+        private final boolean fail;
+        volatile boolean loggedIn = false;
+        volatile boolean loggedOut = false;
+
+        MockLoginContext(String name, Subject subject, boolean fail) throws LoginException {
+            super(name, subject, null, CONFIG);
+            this.subject = subject;
+            this.fail = fail;
+        }
+
+        @Override
+        public void login() throws LoginException {
+            if (fail) throw new LoginException("KDC not available");
+            loggedIn = true;
+        }
+
+        @Override
+        public void logout() {
+            loggedOut = true;
+        }
+
+        @Override
+        public Subject getSubject() {
+            return subject;
+        }
+    }
+
+    private static GSSCredential credential(int lifetimeSeconds) {
+        return (GSSCredential) Proxy.newProxyInstance(GSSCredential.class.getClassLoader(), new Class<?>[]{GSSCredential.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getRemainingLifetime":
+                    // negative lifetime : the credential is no longer valid
+                    if (lifetimeSeconds < 0) throw new GSSException(GSSException.CREDENTIALS_EXPIRED);
+                    return lifetimeSeconds;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "MockCredential";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private final List<MockLoginContext> contexts = new CopyOnWriteArrayList<MockLoginContext>();
+    private final AtomicInteger logins = new AtomicInteger();
+    private CredentialManager manager;
+
+    private CredentialManager.ILoginContextFactory loginFactory(int failFrom, int failTo) {
+        return name -> {
+            int no = logins.incrementAndGet();
+            MockLoginContext c = new MockLoginContext(name, new Subject(), no >= failFrom && no <= failTo);
+            contexts.add(c);
+            return c;
+        };
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("Timeout waiting for " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    @After
+    public void close() {
+        if (manager != null) manager.close();
+    }
+
+    @Test
+    public void renewsBeforeExpiryAndLogsOutPrevious() throws Exception {
+        manager = new CredentialManager("server", loginFactory(0, 0), s -> credential(1), 0.5, 60000, 100, 50);
+        manager.start();
+        GSSCredential first = manager.getCredential();
+        assertEquals(0, manager.getRenewals());
+        assertTrue(manager.getRemainingMillis() <= 1000);
+        await(() -> manager.getRenewals() >= 1, "renewal");
+        assertNotSame(first, manager.getCredential());
+        await(() -> contexts.get(0).loggedOut, "logout of previous login");
+        assertEquals(0, manager.getFailures());
+        assertNull(manager.getLastError());
+    }
+
+    @Test
+    public void indefiniteLifetimeIsRefreshedPeriodically() throws Exception {
+        manager = new CredentialManager("server", loginFactory(0, 0), s -> credential(GSSCredential.INDEFINITE_LIFETIME), 0.8, 200, 100, 0);
+        manager.start();
+        assertEquals(Long.MAX_VALUE, manager.getExpiresMillis());
+        await(() -> manager.getRenewals() >= 2, "periodic refresh");
+    }
+
+    @Test
+    public void failedRenewalKeepsCurrentCredentialAndRetries() throws Exception {
+        // the second and the third login fail, the fourth succeeds
+        manager = new CredentialManager("server", loginFactory(2, 3), s -> credential(1), 0.5, 60000, 100, 0);
+        manager.start();
+        GSSCredential first = manager.getCredential();
+        await(() -> manager.getFailures() >= 1, "failed renewal");
+        assertSame(first, manager.getCredential());
+        assertEquals("KDC not available", manager.getLastError());
+        await(() -> manager.getRenewals() >= 1 && manager.getLastError() == null, "renewal after retry");
+        assertEquals(2, manager.getFailures());
+        assertNotSame(first, manager.getCredential());
+    }
+
+    @Test
+    public void credentialFailureLogsOutAndPropagates() throws Exception {
+        manager = new CredentialManager("server", loginFactory(0, 0), s -> {
+            throw new IllegalStateException("No key for principal");
+        }, 0.5, 60000, 100, 0);
+        try {
+            manager.start();
+            fail("start should fail");
+        } catch (IllegalStateException e) {
+            assertEquals("No key for principal", e.getMessage());
+        }
+        assertTrue(contexts.get(0).loggedIn);
+        assertTrue(contexts.get(0).loggedOut);
+        manager = null;
+    }
+
+    @Test
+    public void expiryFailureLogsOutAndPropagates() throws Exception {
+        manager = new CredentialManager("server", loginFactory(0, 0), s -> credential(-1), 0.5, 60000, 100, 0);
+        try {
+            manager.start();
+            fail("start should fail");
+        } catch (GSSException e) {
+            assertEquals(GSSException.CREDENTIALS_EXPIRED, e.getMajor());
+        }
+        assertTrue(contexts.get(0).loggedOut);
+        manager = null;
+    }
+
+    @Test
+    public void closedManagerRejectsAccess() throws Exception {
+        CredentialManager closed = new CredentialManager("server", loginFactory(0, 0), s -> credential(3600), 0.8, 60000, 100, 0);
+        closed.start();
+        closed.close();
+        try {
+            closed.getCredential();
+            fail("getCredential after close should fail");
+        } catch (IllegalStateException e) {
+            assertEquals("Credential manager closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void closeLogsOutCurrent() throws Exception {
+        manager = new CredentialManager("server", loginFactory(0, 0), s -> credential(3600), 0.8, 60000, 100, 0);
+        manager.start();
+        assertFalse(contexts.get(0).loggedOut);
+        manager.close();
+        manager = null;
+        assertTrue(contexts.get(0).loggedOut);
+    }
+}
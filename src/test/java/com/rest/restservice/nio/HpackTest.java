@@ -0,0 +1,89 @@
+package com.rest.restservice.nio;
+
+/*
+ * Copyright 2024 stanislawbartkowski@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * HPACK decoder on valid and malformed header blocks. Malformed integers and string lengths must be reported
+ * as HpackException (COMPRESSION_ERROR), never as unchecked exception killing the event loop.
+ */
+public class HpackTest {
+
+    private static byte[] bytes(int... v) {
+        byte[] b = new byte[v.length];
+        for (int i = 0; i < v.length; i++) b[i] = (byte) v[i];
+        return b;
+    }
+
+    private static void malformed(byte[] block) {
+        try {
+            new Hpack.Decoder(4096).decode(block, 0, block.length);
+            fail("HpackException expected");
+        } catch (Hpack.HpackException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(out, ":status", "200");
+        encoder.encode(out, "content-type", "text/plain");
+        encoder.encode(out, "x-custom", "value");
+        byte[] block = out.toByteArray();
+        List<String[]> h = new Hpack.Decoder(4096).decode(block, 0, block.length);
+        assertEquals(3, h.size());
+        assertArrayEquals(new String[]{":status", "200"}, h.get(0));
+        assertArrayEquals(new String[]{"content-type", "text/plain"}, h.get(1));
+        assertArrayEquals(new String[]{"x-custom", "value"}, h.get(2));
+    }
+
+    @Test
+    public void stringLengthWrappingToNegative() {
+        // literal without indexing, new name, length 127 + 0x7f + 0x7f<<7 + 0x7f<<14 + 0x7f<<21 + 8<<28 above Integer.MAX_VALUE
+        malformed(bytes(0x00, 0x7f, 0xff, 0xff, 0xff, 0xff, 0x08, 0x61));
+    }
+
+    @Test
+    public void integerWithTooManyContinuationBytes() {
+        malformed(bytes(0xff, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01));
+    }
+
+    @Test
+    public void integerTruncated() {
+        malformed(bytes(0xff));
+        malformed(bytes(0xff, 0x80));
+    }
+
+    @Test
+    public void stringLongerThanBlock() {
+        malformed(bytes(0x00, 0x0a, 0x61, 0x62));
+        // length just below Integer.MAX_VALUE
+        malformed(bytes(0x00, 0x7f, 0x80, 0xff, 0xff, 0xff, 0x07, 0x61));
+    }
+
+    @Test
+    public void indexOutOfTable() {
+        malformed(bytes(0x80));
+        malformed(bytes(0xff, 0xff, 0xff, 0xff, 0xff, 0x07));
+    }
+}